@@ -0,0 +1,233 @@
+/*
+*      File Name     : Ec01Commarea.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : Layout of EC01-COMMAREA, generated by EciCopybook
+*                      from ec01.cpy. Change the copybook and
+*                      generate this again rather than editing it.
+*                      Numbers are unscaled, and OCCURS indexes count
+*                      from 0.
+*/
+
+//package com.ibm.ctg.samples.eci;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+public class Ec01Commarea extends EciRecord
+{
+    public static final int LENGTH = 17;
+
+    public static final int EC01_DATE_OFFSET = 0;
+    public static final int EC01_DATE_LENGTH = 8;
+    public static final int EC01_DAY_OFFSET = 0;
+    public static final int EC01_DAY_LENGTH = 2;
+    public static final int EC01_MONTH_OFFSET = 3;
+    public static final int EC01_MONTH_LENGTH = 2;
+    public static final int EC01_YEAR_OFFSET = 6;
+    public static final int EC01_YEAR_LENGTH = 2;
+    public static final int EC01_TIME_OFFSET = 9;
+    public static final int EC01_TIME_LENGTH = 8;
+    public static final int EC01_HOURS_OFFSET = 9;
+    public static final int EC01_HOURS_LENGTH = 2;
+    public static final int EC01_MINUTES_OFFSET = 12;
+    public static final int EC01_MINUTES_LENGTH = 2;
+    public static final int EC01_SECONDS_OFFSET = 15;
+    public static final int EC01_SECONDS_LENGTH = 2;
+
+
+    /**
+     * @param codec the code page of the character and zoned decimal fields
+     */
+    public Ec01Commarea(EciCodec codec)
+    {
+        super(codec);
+    }
+
+    public int length()
+    {
+        return LENGTH;
+    }
+
+    /**
+     * Points this layout at a record at the start of a byte array
+     */
+    public Ec01Commarea wrap(byte[] bytes)
+    {
+        attach(bytes, 0);
+        return this;
+    }
+
+    /**
+     * Points this layout at a record in a byte array
+     */
+    public Ec01Commarea wrap(byte[] bytes, int offset)
+    {
+        attach(bytes, offset);
+        return this;
+    }
+
+    /**
+     * Points this layout at a record in a buffer, at an absolute offset
+     */
+    public Ec01Commarea wrap(ByteBuffer buffer, int offset)
+    {
+        attach(buffer, offset);
+        return this;
+    }
+
+    /**
+     * Sets each field to its VALUE, or else character fields to spaces and
+     * numbers to zero
+     */
+    public Ec01Commarea initialize()
+    {
+        setZoned(0, 2, 0L, false);
+        setText(2, 1, "/");
+        setZoned(3, 2, 0L, false);
+        setText(5, 1, "/");
+        setZoned(6, 2, 0L, false);
+        fill(8, 1, space());
+        setZoned(9, 2, 0L, false);
+        setText(11, 1, ":");
+        setZoned(12, 2, 0L, false);
+        setText(14, 1, ":");
+        setZoned(15, 2, 0L, false);
+        return this;
+    }
+
+    /*
+     * EC01-DATE, group of 8 bytes at 0
+     */
+    public int getEc01Date(char[] dest, int destOffset)
+    {
+        return getText(0, 8, dest, destOffset);
+    }
+
+    public int getEc01Date(CharBuffer dest)
+    {
+        return getText(0, 8, dest);
+    }
+
+    public boolean ec01DateEquals(CharSequence value)
+    {
+        return textEquals(0, 8, value);
+    }
+
+    public void setEc01Date(CharSequence value)
+    {
+        setText(0, 8, value);
+    }
+
+    public String getEc01DateAsString()
+    {
+        return getString(0, 8);
+    }
+
+    /*
+     * EC01-DAY PIC 99, zoned decimal at 0
+     */
+    public long getEc01Day()
+    {
+        return getZoned(0, 2);
+    }
+
+    public void setEc01Day(long value)
+    {
+        setZoned(0, 2, value, false);
+    }
+
+    /*
+     * EC01-MONTH PIC 99, zoned decimal at 3
+     */
+    public long getEc01Month()
+    {
+        return getZoned(3, 2);
+    }
+
+    public void setEc01Month(long value)
+    {
+        setZoned(3, 2, value, false);
+    }
+
+    /*
+     * EC01-YEAR PIC 99, zoned decimal at 6
+     */
+    public long getEc01Year()
+    {
+        return getZoned(6, 2);
+    }
+
+    public void setEc01Year(long value)
+    {
+        setZoned(6, 2, value, false);
+    }
+
+    /*
+     * EC01-TIME, group of 8 bytes at 9
+     */
+    public int getEc01Time(char[] dest, int destOffset)
+    {
+        return getText(9, 8, dest, destOffset);
+    }
+
+    public int getEc01Time(CharBuffer dest)
+    {
+        return getText(9, 8, dest);
+    }
+
+    public boolean ec01TimeEquals(CharSequence value)
+    {
+        return textEquals(9, 8, value);
+    }
+
+    public void setEc01Time(CharSequence value)
+    {
+        setText(9, 8, value);
+    }
+
+    public String getEc01TimeAsString()
+    {
+        return getString(9, 8);
+    }
+
+    /*
+     * EC01-HOURS PIC 99, zoned decimal at 9
+     */
+    public long getEc01Hours()
+    {
+        return getZoned(9, 2);
+    }
+
+    public void setEc01Hours(long value)
+    {
+        setZoned(9, 2, value, false);
+    }
+
+    /*
+     * EC01-MINUTES PIC 99, zoned decimal at 12
+     */
+    public long getEc01Minutes()
+    {
+        return getZoned(12, 2);
+    }
+
+    public void setEc01Minutes(long value)
+    {
+        setZoned(12, 2, value, false);
+    }
+
+    /*
+     * EC01-SECONDS PIC 99, zoned decimal at 15
+     */
+    public long getEc01Seconds()
+    {
+        return getZoned(15, 2);
+    }
+
+    public void setEc01Seconds(long value)
+    {
+        setZoned(15, 2, value, false);
+    }
+}
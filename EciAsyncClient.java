@@ -0,0 +1,177 @@
+/*
+*      File Name     : EciAsyncClient.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : Submits ECI requests asynchronously and returns a
+*                      CompletableFuture for each one. Requests are flowed
+*                      with the ECI_ASYNC call type and a Callbackable reply
+*                      handler, in the same way as sample EciI1, so a single
+*                      thread can keep many requests in flight over one
+*                      Gateway connection.
+*
+*                      The number of requests in flight is bounded; submit
+*                      waits for a reply to arrive once the limit is
+*                      reached. A request whose reply has not arrived
+*                      within the timeout, 30 seconds by default, has its
+*                      future completed with a TimeoutException and no
+*                      longer counts as in flight, so a reply that never
+*                      comes cannot hold up submit for ever.
+*
+*                      Futures are completed on the Gateway's reply thread,
+*                      or on a timer thread when they time out.
+*                      Dependent stages that do real work should use the
+*                      *Async variants of CompletableFuture so they do not
+*                      hold up the delivery of other replies.
+*/
+
+//package com.ibm.ctg.samples.eci;
+
+import java.io.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import com.ibm.ctg.client.*;
+
+public class EciAsyncClient
+{
+    private final EciConnection gateway;
+    private final int       maxInFlight;
+    private final Semaphore inFlight;
+    private volatile long   timeoutMillis = 30000;
+
+
+    /**
+     * @param gateway       the Gateway connection to flow requests over
+     * @param maxInFlight   the maximum number of requests awaiting a reply
+     */
+    public EciAsyncClient(EciConnection gateway, int maxInFlight)
+    {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        this.gateway = gateway;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Sets how long a request waits for its reply before its future times
+     * out
+     */
+    public void setTimeout(long millis)
+    {
+        if (millis < 1) {
+            throw new IllegalArgumentException("timeout must be at least 1ms");
+        }
+        timeoutMillis = millis;
+    }
+
+    /**
+     * Submits a request asynchronously. The request is changed to the
+     * ECI_ASYNC call type and must not be reused until the future
+     * completes. A late reply may still be written into a request whose
+     * future timed out, so do not reuse that request at all.
+     *
+     * @param eciRequest    the request to flow
+     * @return a future completed with the result when the reply arrives, or
+     *         exceptionally if the request could not be flowed or its reply
+     *         did not arrive within the timeout
+     */
+    public CompletableFuture<EciResult> submit(ECIRequest eciRequest)
+    {
+        CompletableFuture<EciResult> future = new CompletableFuture<EciResult>();
+
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(
+                new InterruptedIOException("Interrupted waiting to submit an ECI request"));
+            return future;
+        }
+
+        //However the future completes, the request stops counting as in flight
+        future.whenComplete((result, failure) -> inFlight.release());
+        future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        ReplyHandler handler = new ReplyHandler(eciRequest, future);
+
+        try {
+            int rc = gateway.flowAsync(eciRequest, handler);
+            if (rc != ECIRequest.ECI_NO_ERROR) {
+                //The request was rejected, so no reply will arrive
+                handler.complete();
+            }
+        } catch (IOException | RuntimeException e) {
+            handler.fail(e);
+        }
+        return future;
+    }
+
+    /**
+     * Waits for all requests in flight to receive their replies
+     *
+     * @param timeout   the maximum time to wait
+     * @param unit      the unit of the timeout
+     * @return true if all replies arrived in time
+     */
+    public boolean drain(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        if (inFlight.tryAcquire(maxInFlight, timeout, unit)) {
+            inFlight.release(maxInFlight);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of requests awaiting a reply
+     */
+    public int getInFlight()
+    {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+
+    /**
+     * Receives the reply to one asynchronous request and completes its
+     * future
+     */
+    private class ReplyHandler implements Callbackable
+    {
+        private final ECIRequest                   eciRequest;
+        private final CompletableFuture<EciResult> future;
+        private final long                         startNanos = System.nanoTime();
+        private volatile ECIRequest                reply;
+
+        ReplyHandler(ECIRequest eciRequest, CompletableFuture<EciResult> future)
+        {
+            this.eciRequest = eciRequest;
+            this.future = future;
+        }
+
+        public void setResults(GatewayRequest gatewayRequest)
+        {
+            reply = (ECIRequest) gatewayRequest;
+        }
+
+        public void run()
+        {
+            complete();
+        }
+
+        void complete()
+        {
+            //Does nothing if the future has already timed out
+            if (!future.isDone()) {
+                ECIRequest result = (reply != null) ? reply : eciRequest;
+                future.complete(new EciResult(result, System.nanoTime() - startNanos));
+            }
+        }
+
+        void fail(Throwable t)
+        {
+            future.completeExceptionally(t);
+        }
+    }
+}
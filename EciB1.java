@@ -96,10 +96,12 @@ static final String copyright_notice ="Licensed Materials - Property of IBM 5724
                             + "[SSL keyring]");
          System.out.println("                                          "
                             + "[SSL password]");
-	 System.out.println("[CICSServer]");
+	 System.out.println("[CICSServer name or number]");
          System.out.println("\nTo enable client tracing, run the sample with "
                             + "the following Java option:");
          System.out.println(" -Dgateway.T.trace=on\n");
+         System.out.println("To keep the list of CICS servers for the next run, use:");
+         System.out.println(" -Deci.servers.cache=eciservers.txt -Deci.servers.ttl=60\n");
 
          // Process the command line arguments and display Gateway settings
          switch (args.length) {
@@ -159,16 +161,32 @@ static final String copyright_notice ="Licensed Materials - Property of IBM 5724
          }
 
          /*
-         * Obtain a list of CICS servers defined
+         * Find the CICS server chosen, by name or by its number in the list
+         * of CICS servers defined. With no server given the Gateway uses its
+         * default server.
          *
          * If an ECI_ERR_MORE_SYSTEMS error occurs this is because you have more servers
          * defined in your CICS TG configuration than the value stored in the iServerCount
          * variable. To solve this problem, increase the value assigned to iServerCount,
          * recompile and rerun this sample.
          */
-         eciRequestObject = ECIRequest.listSystems(iServerCount);
-         flowRequest(eciRequestObject);
-	 strChosenServer=CICSServer;
+         EciServerList serverList = EciServerList.forGateway(strUrl, iPort);
+         serverList.setMaxServers(iServerCount);
+         if (CICSServer != null) {
+            // A name is used as given; a number is looked up in the cached list
+            try {
+               strChosenServer = serverList.resolve(CICSServer, javaGatewayObject::flow);
+            } catch (IOException e) {
+               System.out.println("Could not list the CICS servers (" + e.getMessage()
+                                  + "), so using " + CICSServer + " as given");
+               strChosenServer = CICSServer;
+            }
+            if (strChosenServer == null) {
+               System.out.println("ERROR - there is no CICS server number " + CICSServer);
+               javaGatewayObject.close();
+               System.exit(0);
+            }
+         }
 
          /*
          * Use the extended constructor to set the parameters on the
@@ -38,6 +38,10 @@
 //package com.ibm.ctg.samples.eci;
 
 import java.io.*;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import com.ibm.ctg.client.*;
 
 public class EciB2
@@ -55,6 +59,7 @@ static final String copyright_notice ="Licensed Materials - Property of IBM 5724
 
     private boolean bDataConv = true;     // Boolean - whether to convert COMMAREA code page
     private String  strDataConv = "ASCII";// Code page to convert COMMAREA for display.
+    private EciCodec codec = EciCodec.ASCII;// Converts the COMMAREA to and from strDataConv
 
     private String strServerName;         // CICS server name
     private String strUserId;             // CICS userid
@@ -66,7 +71,42 @@ static final String copyright_notice ="Licensed Materials - Property of IBM 5724
     private String strCommarea = null;    // COMMAREA as a string
     private int iCommareaLength = -1;     // COMMAREA length parameter
 
-    private JavaGateway javaGatewayObject;// We need a connection to the Java Gateway
+    private EciConnection javaGatewayObject;// We need a connection to the Java Gateway
+
+    private long lIterations = -1;        // Load mode - number of program sequences to run
+    private long lDurationMillis = -1;    // Load mode - how long to run for
+    private EciLog.Level logLevel = null; // Verbosity, VERBOSE for a single run and NORMAL under load
+    private boolean bAsyncLog = false;    // Whether to write output on a background thread
+    private EciLog log = new EciLog(System.out, EciLog.Level.VERBOSE); // Where output is written
+    private int iThreads = 1;             // Load mode - number of worker threads
+    private int iPoolSize = -1;           // Load mode - number of Gateway connections
+    private static final int iDefaultUserPoolSize = 50; // Load mode - most connections opened for users by default
+    private int iUsers = -1;              // Load mode - number of simulated users
+    private long lRampUpMillis = 0;       // Load mode - time over which to start workers
+    private long lThinkMillis = 0;        // Load mode - pause after each sequence, as a user thinks
+    private long lLuwTimeoutMillis = 30000; // Load mode - how long an extended LUW may stay open
+    private int iBatchSize = 1;           // Load mode - requests committed together, 1 for none
+    private long lBatchWaitMillis = 10;   // Load mode - longest a request waits for its batch to fill
+    private EciCommitBatcher batcher = null; // Load mode - commits independent requests in batches
+    private double dRate = -1;            // Load mode - open loop, program sequences started per second
+    private String strReplayFile = null;  // Replay mode - JSONL workload to replay
+    private double dSpeed = 1.0;          // Replay mode - multiple of the recorded rate, 0 for flat out
+    private String strCaptureFile = null; // Capture mode - JSONL file to record flows to
+    private EciCapture capture = null;    // Capture mode - records each flow on a background thread
+    private EciCircuitBreaker breaker = null; // Fails requests fast while their server is failing
+    private String astrServers[] = null;  // Equivalent CICS servers to spread requests over
+    private int aiWeights[] = null;       // Weight of each server for weighted routing
+    private EciServerRouter.Strategy routing = EciServerRouter.Strategy.ROUND_ROBIN; // How to pick a server
+    private EciServerRouter router = null;// Picks the server for each new request
+    private EciGatewayGroup gatewayGroup = null; // Spreads connections over several Gateways
+    private String strReflow = null;      // Programs flowed again on another Gateway after a failure
+    private String strCache = null;       // Programs whose replies are cached, with their times to live
+    private int iCacheSize = 10000;       // Most replies kept in the response cache
+    private EciResponseCache responseCache = null; // Answers repeated inquiries without flowing them
+    private String strCoalesce = null;    // Idempotent programs whose identical requests share a flow
+    private EciCoalescer coalescer = null; // Shares one flow between identical requests in flight
+    private final AtomicLong lFlowCount = new AtomicLong(); // Number of ECI requests flowed
+    private final EciLatencyStats latencyStats = new EciLatencyStats(); // Latency of each flow
 
 
     /*
@@ -80,7 +120,38 @@ static final String copyright_notice ="Licensed Materials - Property of IBM 5724
 
         if (test.processArgs(args) == true)
         {
-            test.runTests();
+            try {
+                if (test.isReplayMode()) {
+                    test.runReplay();
+                } else if (test.isLoadMode()) {
+                    test.runLoad();
+                } else {
+                    test.runTests();
+                }
+            } finally {
+                //Write out anything still queued
+                if (test.capture != null) {
+                    test.capture.close();
+                    test.displayMsg("Capture         : " + test.capture.getStatistics());
+                }
+                if (test.breaker != null) {
+                    test.displayResult("Circuit breakers\n" + test.breaker.getStatistics());
+                }
+                if (test.responseCache != null) {
+                    test.displayResult("Response cache\n" + test.responseCache.getStatistics());
+                }
+                if (test.coalescer != null) {
+                    test.displayResult("Coalesced requests\n" + test.coalescer.getStatistics());
+                }
+                if (test.router != null) {
+                    test.displayResult("Server routing (" + test.routing + ")\n" + test.router.getStatistics());
+                }
+                if (test.gatewayGroup != null) {
+                    test.gatewayGroup.close();
+                    test.displayResult("Gateways\n" + test.gatewayGroup.getStatistics());
+                }
+                test.log.close();
+            }
         }
     }
 
@@ -93,35 +164,7 @@ static final String copyright_notice ="Licensed Materials - Property of IBM 5724
     {
         displayMsg("\nCICS Transaction Gateway Basic ECI Sample 2\n");
 
-        //Display the test parameters
-
-        String strDataConvStatus;
-        if (bDataConv) {
-           strDataConvStatus = strDataConv;
-        } else {
-           strDataConvStatus = "NONE";
-        }
-
-        displayMsg( " Test Parameters\n"
-                +   "CICS TG address : " + strJGateName + ":" + iJGatePort  +"\n"
-                +   "Client security : " + strClientSecurity                +"\n"
-                +   "Server security : " + strServerSecurity                +"\n"
-                +   "CICS Server     : " + strServerName                    +"\n"
-                +   "UserId          : " + strUserId                        +"\n"
-                +   "Data Conversion : " + strDataConvStatus                +"\n");
-
-        if (iCommareaLength > 0)
-        {
-            displayMsg("COMMAREA        : " + strCommarea + "\n"
-                        +   "COMMAREA length : " + iCommareaLength);
-        }
-        displayMsg("\nNumber of programs given : " + iNoOfProgNames);
-
-        for (int iDispProgLoop = 0; iDispProgLoop < iNoOfProgNames; iDispProgLoop++)
-        {
-            displayMsg("  [" + iDispProgLoop + "] : " + astrProgNames[iDispProgLoop]);
-        }
-
+        displayParameters();
 
         ECIRequest eciRequest = null;
         displayMsg("\nConnect to Gateway\n");
@@ -131,217 +174,890 @@ static final String copyright_notice ="Licensed Materials - Property of IBM 5724
 
             /*
              * Create a new JavaGateway to use
-             * This constructor sets the 4 properties below, and opens the
-             * gateway.
+             * This sets the 4 properties below, and opens the gateway.
              */
-            javaGatewayObject = new JavaGateway(strJGateName,
-                                                iJGatePort,
-                                                strClientSecurity,
-                                                strServerSecurity);
+            javaGatewayObject = openConnection();
 
             displayMsg("Successfully created JavaGateway\n");
 
+            byte abCommarea[] = buildCommarea();
+
+            displayMsg("Call Programs\n");
+
+            eciRequest = newRequest(abCommarea);
+
+            callPrograms(javaGatewayObject::flow, eciRequest);
+
+            displayResult("\nLatency (ms)\n" + latencyStats.report());
+        }
+
+        //Catch any exceptions
+        catch (java.io.UnsupportedEncodingException e)
+        {
+           displayResult("Character set " + strDataConv + " is not supported by this JVM\n");
+           displayResult("This sample can be run without performing code page conversion\n"
+                      + "by specifying the ASIS parameter.");
+           e.printStackTrace();
+        }
+        catch (IOException e)
+        {
+            displayResult("Error:");
+            e.printStackTrace();
+
             /*
-             * Convert COMMAREA from a string to an array of bytes to pass to CICS.
-             * If the COMMAREA length has been given, make the array that size
-             * otherwise make it big enough to hold the specified COMMAREA.
+             * IF javaGatewayObject is non-null then it is a valid connection
+             * and so any exception must have come from flowing an ECIRequest.
+             * In that case attempt to a back-out of any in progress LUW
+             * (if multiple programs specified).
              */
 
-            byte abCommarea[] = null;
+            if ((javaGatewayObject != null) && (eciRequest != null))
+            {
+                backout(javaGatewayObject::flow, eciRequest);
+            }
+        }
 
-            if (iCommareaLength > 0)
+        //Break our connection to the Gateway
+        finally
+        {
+            try
             {
-                abCommarea = new byte[ iCommareaLength ];
-                if (strCommarea != null )
+                if (javaGatewayObject != null)
                 {
-                    /*
-                     * Calls local getBytes function to extract byte array in either
-                     * ASCII or unconverted form.
-                     */
-                    System.arraycopy( getBytes(strCommarea),
-                        0, abCommarea,
-                        0, Math.min(abCommarea.length, strCommarea.length()));
+                    javaGatewayObject.close();
+                    displayMsg("Successfully closed JavaGateway");
                 }
-            } else if (strCommarea != null ) {
-                /*
-                 * Calls local getBytes function to extract byte array in either
-                 * ASCII or unconverted form.
-                 */
-                abCommarea = getBytes(strCommarea);
+            } catch (IOException eClose)
+            {
+                displayResult("Exception during close : " + eClose);
+            }
+        }
+    }
+
+    /*
+     * Method : runLoad
+     *   Load driver mode. Runs the program sequence given on the command line
+     *   repeatedly on one or more worker threads, until either the requested
+     *   number of iterations have run or the requested duration has elapsed,
+     *   then reports the throughput and latency of the calls. The workers
+     *   share a pool of open JavaGateway connections, so this measures ECI
+     *   throughput rather than JVM start-up or connection time.
+     *
+     *   When users is given, each simulated user runs on its own virtual
+     *   thread (Java 21 or later) and users are started evenly over the
+     *   ramp-up period.
+     *
+     *   When a rate is given the load is open loop: sequences are scheduled
+     *   at fixed intervals whatever the response times, and each latency is
+     *   measured from when its sequence was due to start. If the Gateway
+     *   slows down and the workers fall behind, the time sequences spend
+     *   waiting for a worker shows in the latencies, rather than the load
+     *   quietly dropping as it does in a closed loop.
+     */
+    public void runLoad()
+    {
+        displayMsg("\nCICS Transaction Gateway Basic ECI Sample 2 - Load Driver\n");
+
+        displayParameters();
+
+        int iWorkers = (iUsers > 0) ? iUsers : iThreads;
+        /*
+         * Users that think between sequences are mostly idle, so they share
+         * a bounded pool. Users that do not think are always flowing, so
+         * each needs its own connection unless poolsize is given.
+         */
+        int iPool = (iPoolSize > 0) ? iPoolSize
+                  : (iUsers > 0 && lThinkMillis > 0) ? Math.min(iUsers, iDefaultUserPoolSize) : iWorkers;
+        if (iPoolSize <= 0 && iUsers > iDefaultUserPoolSize && lThinkMillis <= 0)
+        {
+            displayResult("Warning - " + iUsers + " users with no think time open " + iUsers
+                          + " Gateway connections; give think or poolsize to use fewer");
+        }
+        displayMsg("Iterations      : " + (lIterations > 0 ? String.valueOf(lIterations) : "unlimited") + "\n"
+                +  "Duration        : " + (lDurationMillis > 0 ? lDurationMillis + "ms" : "unlimited") + "\n"
+                +  (iUsers > 0 ? "Users           : " + iUsers + "\n"
+                               + "Ramp-up         : " + lRampUpMillis + "ms\n"
+                             : "Threads         : " + iThreads + "\n")
+                +  (lThinkMillis > 0 ? "Think time      : " + lThinkMillis + "ms\n" : "")
+                +  (dRate > 0 ? "Target rate     : " + String.format("%.1f", dRate) + " sequences/sec\n" : "")
+                +  "Pool size       : " + iPool + "\n");
+
+        ThreadFactory threadFactory = null;
+        if (iUsers > 0)
+        {
+            threadFactory = virtualThreadFactory();
+            if (threadFactory == null)
+            {
+                displayMsg("Virtual threads need Java 21 or later, using platform threads\n");
             }
+        }
+        if (threadFactory == null)
+        {
+            threadFactory = new ThreadFactory() {
+                private int iThread = 0;
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "EciB2-load-" + iThread++);
+                }
+            };
+        }
+
+        if (iNoOfProgNames < 1)
+        {
+            displayMsg("No programs to run.");
+            return;
+        }
+
+        EciGatewayPool gatewayPool = new EciGatewayPool(this::openConnection, iPool);
+        EciCommareaPool commareaPool = new EciCommareaPool(iWorkers);
+        //Several programs run as an extended LUW, each pinned to its own connection
+        EciLuwManager luwManager = (iNoOfProgNames > 1 || iBatchSize > 1)
+                                 ? new EciLuwManager(gatewayPool, lLuwTimeoutMillis) : null;
+        //A single program can instead have its requests committed in batches
+        if (iNoOfProgNames == 1 && iBatchSize > 1)
+        {
+            batcher = new EciCommitBatcher(luwManager, gatewayPool, iBatchSize, lBatchWaitMillis);
+            displayMsg("Commit batches  : up to " + iBatchSize + " requests or " + lBatchWaitMillis + "ms\n");
+        }
+
+        try {
+            byte abCommarea[] = buildCommarea();
+
+            lFlowCount.set(0);
+            long lStart = System.nanoTime();
+            long lEnd = (lDurationMillis > 0) ? lStart + lDurationMillis * 1000000L : Long.MAX_VALUE;
+            AtomicLong lStarted = new AtomicLong();
+            long lIntervalNanos = (dRate > 0) ? Math.max(1, Math.round(1e9 / dRate)) : 0;
+            EciHistogram lag = new EciHistogram();
 
             /*
-             * Depending upon the number of programs given:
-             *  Only 1 - make a single non-extended ECI request
-             *  1+ - use multiple extended-LUW ECI requests, then explicitly commit.
+             * Spread the worker start times evenly over the ramp-up period,
+             * so the Gateway sees the load build up gradually.
              */
+            LoadWorker aWorkers[] = new LoadWorker[iWorkers];
+            Thread aThreads[] = new Thread[iWorkers];
+            for (int iWorker = 0; iWorker < iWorkers; iWorker++)
+            {
+                long lStartAt = lStart + (lRampUpMillis * 1000000L * iWorker) / iWorkers;
+                aWorkers[iWorker] = new LoadWorker(gatewayPool, (batcher == null) ? luwManager : null,
+                                                   commareaPool, abCommarea,
+                                                   lStarted, lStartAt, lEnd, (iUsers > 0) ? 64 : 1024);
+                if (lIntervalNanos > 0) {
+                    aWorkers[iWorker].schedule(lStart, lIntervalNanos, lag);
+                }
+                aThreads[iWorker] = threadFactory.newThread(aWorkers[iWorker]);
+                aThreads[iWorker].start();
+            }
+            for (int iWorker = 0; iWorker < iWorkers; iWorker++)
+            {
+                aThreads[iWorker].join();
+            }
+            long lElapsed = System.nanoTime() - lStart;
 
-            displayMsg("Call Programs\n");
+            //Merge the results of the workers
+            int iSequences = 0;
+            long lErrors = 0;
+            IOException lastException = null;
+            for (LoadWorker worker : aWorkers)
+            {
+                iSequences += worker.iSequences;
+                lErrors += worker.lErrors;
+                if (worker.lastException != null) {
+                    lastException = worker.lastException;
+                }
+            }
+            long alLatency[] = new long[iSequences];
+            int iOffset = 0;
+            for (LoadWorker worker : aWorkers)
+            {
+                System.arraycopy(worker.alLatency, 0, alLatency, iOffset, worker.iSequences);
+                iOffset += worker.iSequences;
+            }
 
-            eciRequest = new ECIRequest(strServerName, // CICS Server
-                                        strUserId,     // UserId, null for none
-                                        strPassword,   // Password, null for none
-                                        null,          // Program name
-                                        abCommarea,    // COMMAREA
-                                        ECIRequest.ECI_NO_EXTEND,
-                                        ECIRequest.ECI_LUW_NEW);
+            reportLoad(alLatency, iSequences, lErrors, lElapsed);
+            if (lIntervalNanos > 0)
+            {
+                reportSchedule(lag, iWorkers);
+            }
+            displayResult("Gateway pool    : " + gatewayPool.getStatistics());
+            displayResult("COMMAREA pool   : " + commareaPool.getStatistics());
+            if (luwManager != null)
+            {
+                displayResult("LUWs            : " + luwManager.getStatistics());
+            }
+            if (batcher != null)
+            {
+                displayResult("Commit batches  : " + batcher.getStatistics());
+            }
 
+            if (lastException != null)
+            {
+                displayResult("Last error      : " + lastException);
+            }
+        }
 
-            switch (iNoOfProgNames) {
-                case -1:
-                    displayMsg("No programs to run.");
-                    break;
-                case 1:
-                    eciRequest.Cics_Rc = 0;
+        //Catch any exceptions
+        catch (java.io.UnsupportedEncodingException e)
+        {
+           displayResult("Character set " + strDataConv + " is not supported by this JVM\n");
+           displayResult("This sample can be run without performing code page conversion\n"
+                      + "by specifying the ASIS parameter.");
+           e.printStackTrace();
+        }
+        catch (InterruptedException e)
+        {
+            displayResult("Interrupted waiting for load threads");
+        }
 
-                    //Set the program name in the eciRequest
-                    eciRequest.Program = astrProgNames[0];
-                    eciRequest.Extend_Mode = ECIRequest.ECI_NO_EXTEND;
+        //Break our connections to the Gateway, backing out any LUW left open
+        finally
+        {
+            if (luwManager != null)
+            {
+                luwManager.close();
+            }
+            gatewayPool.close();
+            displayMsg("Closed JavaGateway pool");
+        }
+    }
 
-                    //Flow the request via the JGate to CICS
-                    displayMsg("About to call : " + eciRequest.Program);
-                    if (eciRequest.Commarea != null)
-                    {
-                        if (bDataConv) {
-                               displayMsg("  COMMAREA    : "
-                                  + new String(eciRequest.Commarea,strDataConv));
-                        } else {
-                            displayMsg("  COMMAREA    : "
-                               + new String(eciRequest.Commarea));
-                        }
+    /*
+     * Method : runReplay
+     *   Replay mode. Streams the requests in a JSONL workload file, such as
+     *   one recorded from live traffic, and flows them at the recorded rate
+     *   times the speed given, over a pool of Gateway connections. Reports
+     *   the latency of each ECI call and how far behind schedule the replay
+     *   ran.
+     */
+    public void runReplay()
+    {
+        displayMsg("\nCICS Transaction Gateway Basic ECI Sample 2 - Replay\n");
+
+        displayParameters();
+
+        int iPool = (iPoolSize > 0) ? iPoolSize : iThreads;
+        displayMsg("Replay file     : " + strReplayFile + "\n"
+                +  "Speed           : " + (dSpeed > 0 ? dSpeed + "x" : "as fast as possible") + "\n"
+                +  "Threads         : " + iThreads + "\n"
+                +  "Pool size       : " + iPool + "\n");
+
+        EciGatewayPool gatewayPool = new EciGatewayPool(this::openConnection, iPool);
+        EciReplay replay = new EciReplay(gatewayPool, iThreads, dSpeed, latencyStats);
+        replay.setDefaults(strServerName, strUserId, strPassword);
+
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                 new FileInputStream(strReplayFile), java.nio.charset.StandardCharsets.UTF_8), 65536))
+        {
+            long lStart = System.nanoTime();
+            replay.run(in);
+            double dSeconds = (System.nanoTime() - lStart) / 1e9;
+
+            displayResult("\nReplay Results\n"
+                    +  "Elapsed time    : " + String.format("%.3f", dSeconds) + "s\n"
+                    +  "Replay          : " + replay.getStatistics() + "\n");
+            displayResult("Latency by ECI call (ms)\n" + latencyStats.report());
+            displayResult("Gateway pool    : " + gatewayPool.getStatistics());
+
+            if (replay.getFirstSkipReason() != null)
+            {
+                displayResult("First skipped   : " + replay.getFirstSkipReason());
+            }
+            if (replay.getLastException() != null)
+            {
+                displayResult("Last error      : " + replay.getLastException());
+            }
+        }
+        catch (IOException e)
+        {
+            displayResult("Cannot read replay file " + strReplayFile + " : " + e);
+        }
+        catch (InterruptedException e)
+        {
+            displayResult("Interrupted during replay");
+        }
+        finally
+        {
+            gatewayPool.close();
+            displayMsg("Closed JavaGateway pool");
+        }
+    }
+
+    /*
+     * Class : LoadWorker
+     *   Runs program sequences for the load driver on one thread, borrowing
+     *   a connection from the pool for each sequence. An extended LUW is
+     *   begun from the LUW manager, which pins it to one connection until
+     *   its commit and backs it out if it runs too long. In users mode each
+     *   LoadWorker is one simulated user. When scheduled, workers take the
+     *   next start time from a shared schedule rather than starting the
+     *   next sequence as soon as the last one ends.
+     */
+    class LoadWorker implements Runnable
+    {
+        private final EciGatewayPool gatewayPool;
+        private final EciLuwManager luwManager;
+        private final EciCommareaPool commareaPool;
+        private final byte abCommarea[];
+        private final AtomicLong lStarted;
+        private final long lStartAt;
+        private final long lEnd;
+        private long lScheduleStart = 0;
+        private long lIntervalNanos = 0;
+        private EciHistogram lag = null;
+        private boolean bNoConnection = false;
+
+        long alLatency[];
+        int iSequences = 0;
+        long lErrors = 0;
+        IOException lastException = null;
+
+        LoadWorker(EciGatewayPool gatewayPool, EciLuwManager luwManager, EciCommareaPool commareaPool,
+                   byte abCommarea[], AtomicLong lStarted, long lStartAt, long lEnd, int iInitialCapacity)
+        {
+            this.gatewayPool = gatewayPool;
+            this.luwManager = luwManager;
+            this.commareaPool = commareaPool;
+            this.abCommarea = abCommarea;
+            this.lStarted = lStarted;
+            this.lStartAt = lStartAt;
+            this.lEnd = lEnd;
+            this.alLatency = new long[iInitialCapacity];
+        }
+
+        /*
+         * Start sequence n at lScheduleStart + n * lIntervalNanos, recording
+         * how late each one starts.
+         */
+        void schedule(long lScheduleStart, long lIntervalNanos, EciHistogram lag)
+        {
+            this.lScheduleStart = lScheduleStart;
+            this.lIntervalNanos = lIntervalNanos;
+            this.lag = lag;
+        }
+
+        /*
+         * Borrow a connection for one flow that reaches the Gateway and give
+         * it back straight after. A connection that fails part way through a
+         * request is dropped rather than reused.
+         */
+        private int flowPooled(ECIRequest eciRequest) throws IOException
+        {
+            EciGatewayPool.Pooled pooled;
+            try {
+                pooled = gatewayPool.borrow();
+            } catch (IOException e) {
+                bNoConnection = true;
+                throw e;
+            }
+            boolean bReusable = false;
+            try {
+                int rc = pooled.flow(eciRequest);
+                bReusable = true;
+                return rc;
+            } finally {
+                if (bReusable) {
+                    gatewayPool.release(pooled);
+                } else {
+                    gatewayPool.invalidate(pooled);
+                }
+            }
+        }
+
+        public void run()
+        {
+            //Wait for this worker's turn during the ramp-up period
+            long lDelay = lStartAt - System.nanoTime();
+            if (lDelay > 0)
+            {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(lDelay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            while (true)
+            {
+                long lCallStart;
+                if (lIntervalNanos > 0) {
+                    /*
+                     * Open loop. Sequences due before the end are all run,
+                     * however late, so a backlog is measured not skipped.
+                     */
+                    long lSequence = lStarted.getAndIncrement();
+                    long lDue = lScheduleStart + lSequence * lIntervalNanos;
+                    if (lDue >= lEnd || (lIterations >= 0 && lSequence >= lIterations)) {
+                        break;
                     }
-                    displayMsg("  extend_mode : " + eciRequest.Extend_Mode + "\n"
-                             + "  LUW_token   : " + eciRequest.Luw_Token);
-
-                    javaGatewayObject.flow(eciRequest);
-
-                    if (eciRequest.Commarea != null)
-                    {
-                        if (bDataConv) {
-                            displayMsg("  Commarea    : "
-                               + new String(eciRequest.Commarea,strDataConv));
-                        } else {
-                            displayMsg("  COMMAREA    : "
-                               + new String(eciRequest.Commarea));
-                        }
+                    long lWait;
+                    while ((lWait = lDue - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(lWait);
                     }
-                    displayRc(eciRequest);
-                    break;
-                default:
-                    for (int iCallLoop = 0; iCallLoop < iNoOfProgNames; iCallLoop++)
-                    {
-                        eciRequest.Cics_Rc = 0;
-
-                        //Set the program name in the eciRequest
-                        eciRequest.Program = astrProgNames[iCallLoop];
-                        eciRequest.Extend_Mode = ECIRequest.ECI_EXTENDED;
-
-                        //Flow the request via the JGate to CICS
-                        displayMsg("About to call : " + eciRequest.Program);
-                        if (eciRequest.Commarea != null)
-                        {
-                            if (bDataConv) {
-                                displayMsg("  COMMAREA    : "
-                                   + new String(eciRequest.Commarea,strDataConv));
-                            } else {
-                                displayMsg("  COMMAREA    : "
-                                   + new String(eciRequest.Commarea));
-                            }
-                        }
-                        displayMsg("  Extend_Mode : " + eciRequest.Extend_Mode + "\n"
-                                 + "  Luw_Token   : " + eciRequest.Luw_Token);
-
-                        javaGatewayObject.flow(eciRequest);
-
-                        if (eciRequest.Commarea != null)
-                        {
-                            if (bDataConv) {
-                                displayMsg("  COMMAREA    : "
-                                   + new String(eciRequest.Commarea,"ASCII"));
-                            } else {
-                                displayMsg("  COMMAREA    : "
-                                   + new String(eciRequest.Commarea));
-                            }
-                        }
-                        displayRc(eciRequest);
+                    lag.record(System.nanoTime() - lDue);
+                    lCallStart = lDue;
+                } else {
+                    if (System.nanoTime() >= lEnd
+                        || (lIterations >= 0 && lStarted.getAndIncrement() >= lIterations)) {
+                        break;
                     }
+                    lCallStart = System.nanoTime();
+                }
 
+                /*
+                 * Each sequence gets its own copy of the COMMAREA, as the
+                 * backend program may have overwritten the previous one.
+                 * The copy is taken from the pool, which may hand out a
+                 * larger buffer, so the length is set explicitly.
+                 */
+                byte abRequest[] = (abCommarea == null) ? null : commareaPool.copyOf(abCommarea);
+                ECIRequest eciRequest = newRequest(abRequest);
+                if (abRequest != null) {
+                    eciRequest.Commarea_Length = abCommarea.length;
+                }
+                EciLuwManager.Luw luw = null;
+                bNoConnection = false;
+
+                try {
+                    if (batcher != null) {
+                        //Waits for the batch holding this request to commit
+                        callPrograms(batcher, eciRequest);
+                    } else if (luwManager != null) {
+                        //Closing backs out the LUW if it was not committed
+                        luw = luwManager.begin();
+                        try {
+                            callPrograms(luw, eciRequest);
+                        } finally {
+                            luw.close();
+                        }
+                    } else {
+                        //Cache hits and coalesced requests never reach flowPooled, so they hold no connection
+                        callPrograms(this::flowPooled, eciRequest);
+                    }
+                    if (eciRequest.getRc() != 0) {
+                        lErrors++;
+                    }
+                } catch (IOException e) {
+                    lErrors++;
+                    lastException = e;
                     /*
-                     * Commit the logical unit of work
-                     * eciRequest already contains LUW token unless above
-                     * call failed.
+                     * A sequence that never got a connection or an LUW is not
+                     * timed. One that failed part way is: flowPooled has
+                     * dropped its connection, and an LUW was already backed
+                     * out when it was closed.
                      */
-                    if (eciRequest.Luw_Token != 0) {
-                        displayMsg("About to commit LUW");
-                        eciRequest.Cics_Rc = 0;
-                        eciRequest.Extend_Mode = ECIRequest.ECI_COMMIT;
-
-                        javaGatewayObject.flow(eciRequest);
+                    boolean bFlowed = (batcher == null) && ((luwManager != null) ? luw != null : !bNoConnection);
+                    if (!bFlowed) {
+                        commareaPool.release(abRequest);
+                        if (gatewayPool.getSize() == 0) {
+                            //No connection could be opened, so stop this worker
+                            break;
+                        }
+                        continue;
+                    }
+                } catch (RuntimeException e) {
+                    //flowPooled has already dropped the connection, as it may be part way through a request
+                    lErrors++;
+                    lastException = new IOException(e);
+                }
+                //The reply is not displayed under load, so the buffer is free
+                commareaPool.release(abRequest);
 
-                        displayRc(eciRequest);
+                if (iSequences == alLatency.length) {
+                    alLatency = java.util.Arrays.copyOf(alLatency, iSequences * 2);
+                }
+                alLatency[iSequences++] = System.nanoTime() - lCallStart;
+
+                //A scheduled run starts sequences on time, so only a closed loop thinks
+                if (lThinkMillis > 0 && lIntervalNanos == 0) {
+                    long lThink = Math.min(TimeUnit.MILLISECONDS.toNanos(lThinkMillis),
+                                           lEnd - System.nanoTime());
+                    if (lThink > 0) {
+                        LockSupport.parkNanos(lThink);
                     }
                 }
-        } // End of Switch
+            }
+        }
+    }
 
-        //Catch any exceptions
-        catch (java.io.UnsupportedEncodingException e)
+    /*
+     * Method : virtualThreadFactory
+     *   Returns a factory for virtual threads, or null if this JVM does not
+     *   support them. Reflection keeps the sample compiling on older JDKs.
+     */
+    static ThreadFactory virtualThreadFactory()
+    {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class)
+                                  .invoke(builder, "EciB2-user-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Method : openConnection
+     *   Open a new connection to the Gateway using the command line
+     *   parameters. When several Gateways are given the connection is to
+     *   the least used one that is running, and moves to another if that
+     *   Gateway fails.
+     */
+    EciConnection openConnection() throws IOException
+    {
+        if (gatewayGroup != null)
         {
-           displayMsg("Character set " + strDataConv + " is not supported by this JVM\n");
-           displayMsg("This sample can be run without performing code page conversion\n"
-                      + "by specifying the ASIS parameter.");
-           e.printStackTrace();
+            return gatewayGroup.open();
         }
-        catch (IOException e)
+        return openConnection(strJGateName, iJGatePort);
+    }
+
+    /*
+     * Method : openConnection
+     *   Open a new connection to one Gateway. A URL of stub://<host>
+     *   connects to the stand-in Gateway, EciStubGateway, instead.
+     */
+    EciConnection openConnection(String strUrl, int iPort) throws IOException
+    {
+        if (EciStubConnection.isStubUrl(strUrl))
         {
-            displayMsg("Error:");
-            e.printStackTrace();
+            return EciStubConnection.open(strUrl, iPort);
+        }
+        return EciConnection.of(new JavaGateway(strUrl,
+                                                iPort,
+                                                strClientSecurity,
+                                                strServerSecurity));
+    }
+
+    /*
+     * Method : displayParameters
+     *   Display the test parameters given on the command line.
+     */
+    void displayParameters()
+    {
+        //Display the test parameters
+
+        String strDataConvStatus;
+        if (bDataConv) {
+           strDataConvStatus = strDataConv;
+        } else {
+           strDataConvStatus = "NONE";
+        }
+
+        displayMsg( " Test Parameters\n"
+                +   "CICS TG address : " + ((gatewayGroup != null) ? strJGateName + " (port " + iJGatePort + ")"
+                                                                    : strJGateName + ":" + iJGatePort) +"\n"
+                +   "Client security : " + strClientSecurity                +"\n"
+                +   "Server security : " + strServerSecurity                +"\n"
+                +   "CICS Server     : " + ((astrServers != null) ? String.join(",", astrServers) + " (" + routing + ")"
+                                                                 : strServerName) +"\n"
+                +   "UserId          : " + strUserId                        +"\n"
+                +   "Data Conversion : " + strDataConvStatus                +"\n");
+
+        if (iCommareaLength > 0)
+        {
+            displayMsg("COMMAREA        : " + strCommarea + "\n"
+                        +   "COMMAREA length : " + iCommareaLength);
+        }
+        displayMsg("\nNumber of programs given : " + iNoOfProgNames);
+
+        for (int iDispProgLoop = 0; iDispProgLoop < iNoOfProgNames; iDispProgLoop++)
+        {
+            displayMsg("  [" + iDispProgLoop + "] : " + astrProgNames[iDispProgLoop]);
+        }
+        if (strCache != null)
+        {
+            displayMsg("Cached replies  : " + strCache + " (up to " + iCacheSize + ")");
+        }
+        if (strCoalesce != null)
+        {
+            displayMsg("Coalesced progs : " + strCoalesce);
+        }
+        if (strReflow != null)
+        {
+            displayMsg("Reflowed progs  : " + strReflow);
+        }
+    }
 
+    /*
+     * Method : buildCommarea
+     *   Convert COMMAREA from a string to an array of bytes to pass to CICS.
+     *   If the COMMAREA length has been given, make the array that size
+     *   otherwise make it big enough to hold the specified COMMAREA.
+     */
+    byte[] buildCommarea() throws java.io.UnsupportedEncodingException
+    {
+        byte abCommarea[] = null;
+
+        if (iCommareaLength > 0)
+        {
+            abCommarea = new byte[ iCommareaLength ];
+            if (strCommarea != null && bDataConv)
+            {
+                //Convert straight into the COMMAREA
+                codec.encode(strCommarea, abCommarea, 0);
+            } else if (strCommarea != null ) {
+                /*
+                 * Calls local getBytes function to extract byte array in
+                 * unconverted form.
+                 */
+                System.arraycopy( getBytes(strCommarea),
+                    0, abCommarea,
+                    0, Math.min(abCommarea.length, strCommarea.length()));
+            }
+        } else if (strCommarea != null ) {
             /*
-             * IF javaGatewayObject is non-null then it is a valid connection
-             * and so any exception must have come from flowing an ECIRequest.
-             * In that case attempt to a back-out of any in progress LUW
-             * (if multiple programs specified).
+             * Calls local getBytes function to extract byte array in either
+             * ASCII or unconverted form.
              */
+            abCommarea = getBytes(strCommarea);
+        }
 
-            if ((javaGatewayObject != null) && (eciRequest != null) && iNoOfProgNames > 1)
-            {
-                try
+        return abCommarea;
+    }
+
+    /*
+     * Method : newRequest
+     *   Create the ECIRequest used to call the programs, with no program
+     *   name set yet.
+     */
+    ECIRequest newRequest(byte abCommarea[])
+    {
+        return new ECIRequest(strServerName, // CICS Server
+                              strUserId,     // UserId, null for none
+                              strPassword,   // Password, null for none
+                              null,          // Program name
+                              abCommarea,    // COMMAREA
+                              ECIRequest.ECI_NO_EXTEND,
+                              ECIRequest.ECI_LUW_NEW);
+    }
+
+    /*
+     * Method : callPrograms
+     *   Depending upon the number of programs given:
+     *    Only 1 - make a single non-extended ECI request
+     *    1+ - use multiple extended-LUW ECI requests, then explicitly commit.
+     */
+    void callPrograms(EciFlow gateway, ECIRequest eciRequest) throws IOException
+    {
+        switch (iNoOfProgNames) {
+            case -1:
+                displayMsg("No programs to run.");
+                break;
+            case 1:
+                eciRequest.Cics_Rc = 0;
+
+                //Set the program name in the eciRequest
+                eciRequest.Program = astrProgNames[0];
+                eciRequest.Extend_Mode = ECIRequest.ECI_NO_EXTEND;
+
+                //Flow the request via the JGate to CICS
+                displayDetail("About to call : " + eciRequest.Program);
+                displayCommarea(eciRequest);
+                displayDetail("  extend_mode : " + eciRequest.Extend_Mode + "\n"
+                         + "  LUW_token   : " + eciRequest.Luw_Token);
+
+                flowRequest(gateway, eciRequest);
+
+                displayCommarea(eciRequest);
+                displayRc(eciRequest);
+                break;
+            default:
+                for (int iCallLoop = 0; iCallLoop < iNoOfProgNames; iCallLoop++)
                 {
-                    /*
-                     * Use the existing eciRequest since it contains
-                     * any relevant Luw_Token
-                     */
-                    eciRequest.Extend_Mode = ECIRequest.ECI_BACKOUT;
+                    eciRequest.Cics_Rc = 0;
 
-                    displayMsg("About to attempt a backout" + "\n"
-                             + "  Extend_Mode : " + eciRequest.Extend_Mode + "\n"
+                    //Set the program name in the eciRequest
+                    eciRequest.Program = astrProgNames[iCallLoop];
+                    eciRequest.Extend_Mode = ECIRequest.ECI_EXTENDED;
+
+                    //Flow the request via the JGate to CICS
+                    displayDetail("About to call : " + eciRequest.Program);
+                    displayCommarea(eciRequest);
+                    displayDetail("  Extend_Mode : " + eciRequest.Extend_Mode + "\n"
                              + "  Luw_Token   : " + eciRequest.Luw_Token);
 
-                    javaGatewayObject.flow(eciRequest);
+                    flowRequest(gateway, eciRequest);
 
+                    displayCommarea(eciRequest);
                     displayRc(eciRequest);
                 }
-                catch (IOException eBack) {
-                    displayMsg("Exception during backout : " + eBack);
+
+                /*
+                 * Commit the logical unit of work
+                 * eciRequest already contains LUW token unless above
+                 * call failed.
+                 */
+                if (eciRequest.Luw_Token != 0) {
+                    displayDetail("About to commit LUW");
+                    eciRequest.Cics_Rc = 0;
+                    eciRequest.Extend_Mode = ECIRequest.ECI_COMMIT;
+
+                    flowRequest(gateway, eciRequest);
+
+                    displayRc(eciRequest);
                 }
             }
-        }
+    }
 
-        //Break our connection to the Gateway
-        finally
+    /*
+     * Method : backout
+     *   Attempt a back-out of any in progress LUW (if multiple programs
+     *   specified). Uses the existing eciRequest since it contains any
+     *   relevant Luw_Token.
+     */
+    void backout(EciFlow gateway, ECIRequest eciRequest)
+    {
+        if (iNoOfProgNames > 1)
         {
             try
             {
-                if (javaGatewayObject != null)
-                {
-                    javaGatewayObject.close();
-                    displayMsg("Successfully closed JavaGateway");
-                }
-            } catch (IOException eClose)
-            {
-                displayMsg("Exception during close : " + eClose);
+                eciRequest.Extend_Mode = ECIRequest.ECI_BACKOUT;
+
+                displayDetail("About to attempt a backout" + "\n"
+                         + "  Extend_Mode : " + eciRequest.Extend_Mode + "\n"
+                         + "  Luw_Token   : " + eciRequest.Luw_Token);
+
+                flowRequest(gateway, eciRequest);
+
+                displayRc(eciRequest);
+            }
+            catch (IOException eBack) {
+                displayResult("Exception during backout : " + eBack);
+            }
+        }
+    }
+
+    /*
+     * Method : flowRequest
+     *   Flow the request via the JGate to CICS, counting the calls made and
+     *   recording how long each took by server, program and return code.
+     *   When capturing, the request and reply are also recorded to file.
+     *   With a circuit breaker, requests to a failing server are rejected
+     *   without being flowed or captured. With several servers, each new
+     *   request or LUW is routed to one of them. Identical requests to
+     *   idempotent programs share one flow while it is in flight, and with
+     *   a response cache, repeated inquiries are answered before any of
+     *   these. Only requests that go on to the Gateway are counted and
+     *   timed; cache hits and coalesced requests show in the statistics
+     *   of the cache and the coalescer instead.
+     */
+    void flowRequest(EciFlow gateway, ECIRequest eciRequest) throws IOException
+    {
+        EciFlow flow = (capture != null) ? capture.capturing(gateway) : gateway;
+        if (breaker != null) {
+            flow = breaker.breaking(flow);
+        }
+        if (router != null) {
+            flow = router.routing(flow);
+        }
+        final EciFlow routed = flow;
+        flow = request -> {
+            lFlowCount.incrementAndGet();
+            long lStart = System.nanoTime();
+            boolean bFailed = true;
+            try {
+                int rc = routed.flow(request);
+                bFailed = false;
+                return rc;
+            } finally {
+                latencyStats.record(request, bFailed, System.nanoTime() - lStart);
             }
+        };
+        if (coalescer != null) {
+            flow = coalescer.coalescing(flow);
+        }
+        if (responseCache != null) {
+            flow = responseCache.caching(flow);
         }
+        flow.flow(eciRequest);
+    }
+
+    /*
+     * Method : displayCommarea
+     *   Display the COMMAREA of the request, converting the code page if
+     *   required. Nothing is converted when output is turned off.
+     */
+    void displayCommarea(ECIRequest eciRequest) throws java.io.UnsupportedEncodingException
+    {
+        if (log.isEnabled(EciLog.Level.VERBOSE) && eciRequest.Commarea != null)
+        {
+            if (bDataConv) {
+                displayDetail("  COMMAREA    : "
+                   + codec.decode(eciRequest.Commarea));
+            } else {
+                displayDetail("  COMMAREA    : "
+                   + new String(eciRequest.Commarea));
+            }
+        }
+    }
+
+    /*
+     * Method : reportLoad
+     *   Display the throughput and latency percentiles of a load driver run.
+     *   Latencies are per program sequence, including the commit when more
+     *   than one program is given.
+     */
+    void reportLoad(long alLatency[], int iSequences, long lErrors, long lElapsedNanos)
+    {
+        double dSeconds = lElapsedNanos / 1e9;
+
+        displayResult("\nLoad Driver Results\n"
+                +  "Elapsed time    : " + String.format("%.3f", dSeconds) + "s\n"
+                +  "Sequences       : " + iSequences + "\n"
+                +  "ECI calls       : " + lFlowCount.get() + "\n"
+                +  "Errors          : " + lErrors + "\n"
+                +  "Sequences/sec   : " + String.format("%.1f", iSequences / dSeconds) + "\n"
+                +  "ECI calls/sec   : " + String.format("%.1f", lFlowCount.get() / dSeconds));
+
+        if (iSequences == 0)
+        {
+            return;
+        }
+
+        long alSorted[] = java.util.Arrays.copyOf(alLatency, iSequences);
+        java.util.Arrays.sort(alSorted);
+
+        displayResult("\nLatency (ms)\n"
+                +  "  min   : " + formatMillis(alSorted[0]) + "\n"
+                +  "  p50   : " + formatMillis(percentile(alSorted, 50.0)) + "\n"
+                +  "  p90   : " + formatMillis(percentile(alSorted, 90.0)) + "\n"
+                +  "  p99   : " + formatMillis(percentile(alSorted, 99.0)) + "\n"
+                +  "  p99.9 : " + formatMillis(percentile(alSorted, 99.9)) + "\n"
+                +  "  max   : " + formatMillis(alSorted[iSequences - 1]) + "\n");
+
+        displayResult("Latency by ECI call (ms)\n" + latencyStats.report());
+    }
+
+    /*
+     * Method : reportSchedule
+     *   Display how closely an open loop run kept to its schedule. When
+     *   sequences started late the workers could not keep up, so the
+     *   Gateway did not see the target rate, although the latencies above
+     *   still include the wait.
+     */
+    void reportSchedule(EciHistogram lag, int iWorkers)
+    {
+        displayResult("Start lag (ms)  : p50=" + formatMillis(lag.getPercentile(50.0))
+                +  " p99=" + formatMillis(lag.getPercentile(99.0))
+                +  " max=" + formatMillis(lag.getMax()));
+        if (lag.getPercentile(99.0) > 10000000L)
+        {
+            displayResult("Sequences started more than 10ms late. The " + iWorkers + " workers could\n"
+                    +  "not keep up with the target rate; give more threads or users, at least\n"
+                    +  "the rate times the expected sequence time.");
+        }
+    }
+
+    static long percentile(long alSorted[], double dPercentile)
+    {
+        int iIndex = (int) Math.ceil(dPercentile / 100.0 * alSorted.length) - 1;
+        return alSorted[Math.max(0, Math.min(iIndex, alSorted.length - 1))];
+    }
+
+    static String formatMillis(long lNanos)
+    {
+        return String.format("%.3f", lNanos / 1e6);
     }
 
    public boolean processArgs (String [] astrArg) {
@@ -368,6 +1084,25 @@ static final String copyright_notice ="Licensed Materials - Property of IBM 5724
 
             } else if (strArg.startsWith("SERVER=")) {
                 strServerName = astrArg[iArgLoop].substring(7);
+                if (strServerName.indexOf(',') >= 0) {
+                    astrServers = strServerName.split(",");
+                    strServerName = astrServers[0];
+                }
+
+            } else if (strArg.startsWith("ROUTING=")) {
+                try {
+                    routing = EciServerRouter.Strategy.valueOf(strArg.substring(8));
+                } catch (IllegalArgumentException e) {
+                    displayMsg("Error - routing must be round_robin, weighted, least_outstanding or least_latency");
+                    bShowHelp = true;
+                }
+
+            } else if (strArg.startsWith("WEIGHTS=")) {
+                String astrWeights[] = strArg.substring(8).split(",");
+                aiWeights = new int[astrWeights.length];
+                for (int iWeight = 0; iWeight < astrWeights.length; iWeight++) {
+                    aiWeights[iWeight] = Integer.parseInt(astrWeights[iWeight].trim());
+                }
 
             } else if (strArg.startsWith("USERID=")) {
                 strUserId = astrArg[iArgLoop].substring(7);
@@ -382,12 +1117,94 @@ static final String copyright_notice ="Licensed Materials - Property of IBM 5724
                 iCommareaLength =
                 Integer.parseInt(astrArg[iArgLoop].substring(15));
 
+            } else if (strArg.startsWith("ITERATIONS=")) {
+                lIterations =
+                Long.parseLong(astrArg[iArgLoop].substring(11));
+
+            } else if (strArg.startsWith("REPLAY=")) {
+                strReplayFile = astrArg[iArgLoop].substring(7);
+
+            } else if (strArg.startsWith("CAPTURE=")) {
+                strCaptureFile = astrArg[iArgLoop].substring(8);
+
+            } else if (strArg.startsWith("SPEED=")) {
+                dSpeed =
+                Double.parseDouble(astrArg[iArgLoop].substring(6));
+
+            } else if (strArg.startsWith("DURATION=")) {
+                lDurationMillis =
+                parseDuration(astrArg[iArgLoop].substring(9));
+
+            } else if (strArg.startsWith("THREADS=")) {
+                iThreads =
+                Integer.parseInt(astrArg[iArgLoop].substring(8));
+
+            } else if (strArg.startsWith("POOLSIZE=")) {
+                iPoolSize =
+                Integer.parseInt(astrArg[iArgLoop].substring(9));
+
+            } else if (strArg.startsWith("USERS=")) {
+                iUsers =
+                Integer.parseInt(astrArg[iArgLoop].substring(6));
+
+            } else if (strArg.startsWith("RATE=")) {
+                dRate =
+                parseRate(astrArg[iArgLoop].substring(5));
+
+            } else if (strArg.startsWith("RAMPUP=")) {
+                lRampUpMillis =
+                parseDuration(astrArg[iArgLoop].substring(7));
+
+            } else if (strArg.startsWith("THINK=")) {
+                lThinkMillis =
+                parseDuration(astrArg[iArgLoop].substring(6));
+
+            } else if (strArg.startsWith("BATCH=")) {
+                iBatchSize =
+                Integer.parseInt(astrArg[iArgLoop].substring(6));
+
+            } else if (strArg.startsWith("BATCHWAIT=")) {
+                lBatchWaitMillis =
+                parseDuration(astrArg[iArgLoop].substring(10));
+
+            } else if (strArg.startsWith("LUWTIMEOUT=")) {
+                lLuwTimeoutMillis =
+                parseDuration(astrArg[iArgLoop].substring(11));
+
+            } else if (strArg.startsWith("VERBOSITY=")) {
+                try {
+                    logLevel = EciLog.Level.valueOf(strArg.substring(10));
+                } catch (IllegalArgumentException e) {
+                    displayMsg("Error - verbosity must be quiet, normal or verbose");
+                    bShowHelp = true;
+                }
+
+            } else if (strArg.startsWith("CACHE=")) {
+                strCache = astrArg[iArgLoop].substring(6);
+
+            } else if (strArg.startsWith("CACHESIZE=")) {
+                iCacheSize =
+                Integer.parseInt(astrArg[iArgLoop].substring(10));
+
+            } else if (strArg.startsWith("COALESCE=")) {
+                strCoalesce = astrArg[iArgLoop].substring(9);
+
+            } else if (strArg.startsWith("REFLOW=")) {
+                strReflow = astrArg[iArgLoop].substring(7);
+
+            } else if (strArg.startsWith("BREAKER")) {
+                breaker = new EciCircuitBreaker();
+
+            } else if (strArg.startsWith("ASYNCLOG")) {
+                bAsyncLog = true;
+
             } else if (strArg.startsWith("TRACE")) {
                 T.setOn(true);
 
             } else if (strArg.startsWith("ASCII")) {
                 bDataConv = true;
                 strDataConv = "ASCII";
+                codec = EciCodec.ASCII;
 
             } else if (strArg.startsWith("ASIS")) {
                 bDataConv = false;
@@ -396,6 +1213,12 @@ static final String copyright_notice ="Licensed Materials - Property of IBM 5724
             } else if (strArg.startsWith("EBCDIC")) {
                 bDataConv = true;
                 strDataConv = "IBM037";
+                codec = EciCodec.IBM037;
+
+            } else if (strArg.startsWith("IBM1047")) {
+                bDataConv = true;
+                strDataConv = "IBM1047";
+                codec = EciCodec.IBM1047;
 
             } else if (strArg.startsWith("PROG")) {
                 if (strArg.charAt(5) == '=')
@@ -416,7 +1239,7 @@ static final String copyright_notice ="Licensed Materials - Property of IBM 5724
             }
         }
 
-        if (strJGateName == null )
+        if (strJGateName == null || iThreads < 1)
         {
             bShowHelp = true;
         }
@@ -447,17 +1270,22 @@ static final String copyright_notice ="Licensed Materials - Property of IBM 5724
             + "page of the COMMAREA flowed on the ECI call can be controlled as an input\n"
             + "parameter.\n\n"
             + "Note: jgateport is ignored for local mode (jgate=local:)\n"
+            + "jgate=stub://<host> connects to the stand-in Gateway, EciStubGateway\n"
             + "IPIC_url syntax is <protocol>://<host>:<port>, where protocol is \"tcp\"\n"
             + "or \"ssl\" and <host>:<port> represent the CICS IPIC TCPIP service definition\n");
 
 
 
             displayMsg( "Usage:\n"
-                      + "  java com.ibm.ctg.samples.eci.EciB2  [jgate=gateway_URL]\n"
+                      + "  java com.ibm.ctg.samples.eci.EciB2  [jgate=gateway_URL[:port][,...]]\n"
                       + "                                      [jgateport=gateway_port]\n"
+                      + "                                      [reflow=prog_name[,...]]\n"
                       + "                                      [clientsecurity=client_security_class]\n"
                       + "                                      [serversecurity=server_security_class]\n"
-                      + "                                      [server=cics_server_name or IPIC_url]\n"
+                      + "                                      [server=cics_server_name or IPIC_url[,...]]\n"
+                      + "                                      [routing=round_robin | weighted |\n"
+                      + "                                               least_outstanding | least_latency]\n"
+                      + "                                      [weights=weight,...]\n"
                       + "                                      [userid=cics_user ID]\n"
                       + "                                      [password=cics_password]\n"
                       + "                                      [prog<0..9>=prog_name]\n"
@@ -465,30 +1293,248 @@ static final String copyright_notice ="Licensed Materials - Property of IBM 5724
                       + "                                      [COMMAREAlength=comm_area_length]\n"
                       + "                                      [status]\n"
                       + "                                      [trace]\n"
-                      + "                                      [ascii | ebcdic | asis]");
+                      + "                                      [ascii | ebcdic | ibm1047 | asis]\n"
+                      + "                                      [iterations=count]\n"
+                      + "                                      [duration=time<ms|s|m>]\n"
+                      + "                                      [threads=load_threads]\n"
+                      + "                                      [poolsize=gateway_connections]\n"
+                      + "                                      [users=simulated_users]\n"
+                      + "                                      [rampup=time<ms|s|m>]\n"
+                      + "                                      [think=time<ms|s|m>]\n"
+                      + "                                      [rate=sequences</s|/m>]\n"
+                      + "                                      [luwtimeout=time<ms|s|m>]\n"
+                      + "                                      [batch=requests [batchwait=time<ms|s|m>]]\n"
+                      + "                                      [replay=workload.jsonl]\n"
+                      + "                                      [speed=rate_multiplier]\n"
+                      + "                                      [capture=capture.jsonl]\n"
+                      + "                                      [breaker]\n"
+                      + "                                      [cache=prog_name:time<ms|s|m>[,...]\n"
+                      + "                                       [cachesize=replies]]\n"
+                      + "                                      [coalesce=prog_name[,...]]\n"
+                      + "                                      [verbosity=quiet | normal | verbose]\n"
+                      + "                                      [asynclog]");
 
             displayMsg( "\nExample:\n"
                       + "  java com.ibm.ctg.samples.eci.EciB2 jgate=tcp://server.ibm.com jgateport=2006\n"
                       + "   server=mycics prog0=EC01 COMMAREA=mydata userid=myuid password=mypwd");
+
+            displayMsg( "\nGiving iterations or duration runs the programs repeatedly on one or more\n"
+                      + "threads over a pool of Gateway connections and reports calls/sec and\n"
+                      + "latency percentiles. The pool size defaults to the number of threads.\n"
+                      + "Giving users runs each simulated user on its own virtual thread (Java 21\n"
+                      + "or later), with users started evenly over the rampup time. Giving think,\n"
+                      + "such as think=2s, pauses after each sequence as a real user would; users\n"
+                      + "that think share at most 50 connections, and users that do not think get\n"
+                      + "one each. Give poolsize to size the pool to what the Gateway will accept,\n"
+                      + "in which case the latencies include waiting for a connection. With several\n"
+                      + "programs, each thread runs its own extended LUW on its own connection, and\n"
+                      + "an LUW still open after luwtimeout, 30s by default, is backed out.");
+
+            displayMsg( "\nGiving rate, such as rate=2000/s, starts program sequences at that rate\n"
+                      + "whatever the response times, and measures latency from when each was due\n"
+                      + "to start, so queueing delay is included. Give enough threads or users to\n"
+                      + "cover the rate times the sequence time. A run that falls behind carries on\n"
+                      + "until every sequence due within the duration has run.");
+
+            displayMsg( "\nGiving batch with a single program commits up to that many requests from\n"
+                      + "all threads as one extended LUW, so CICS takes one syncpoint per batch. A\n"
+                      + "batch is flowed when it is full or its first request has waited batchwait,\n"
+                      + "10ms by default. If any request fails the batch is backed out and each\n"
+                      + "request is flowed again on its own. Only use it where requests need not\n"
+                      + "be atomic on their own.");
+
+            displayMsg( "\nGiving replay flows the requests in a JSONL workload file, at the recorded\n"
+                      + "rate times speed on the given number of threads. speed=0 replays as fast\n"
+                      + "as possible. server and userid are used where a record does not give one.");
+
+            displayMsg( "\nGiving capture records each request and reply to JSONL files that replay\n"
+                      + "can read, starting a new file every 256MB and keeping the last 10. Files\n"
+                      + "are written on a background thread; records are dropped rather than\n"
+                      + "slowing the flows if the disk cannot keep up.");
+
+            displayMsg( "\nGiving several equivalent servers, such as server=CICSA,CICSB, spreads each\n"
+                      + "new request or LUW over them. round_robin takes each in turn, weighted\n"
+                      + "follows weights, least_outstanding picks the server with fewest requests\n"
+                      + "in flight and least_latency the one with the lowest recent latency. With\n"
+                      + "breaker, servers whose breaker is open are skipped.");
+
+            displayMsg( "\nGiving several Gateways, such as jgate=tcp://gw1,tcp://gw2:2007, spreads\n"
+                      + "connections over them. A connection to a Gateway that has failed moves to\n"
+                      + "another before its next request. A request whose flow fails part way may\n"
+                      + "have run in CICS, so it fails rather than being flowed again, unless its\n"
+                      + "program is given in reflow, such as reflow=EC01. Only give programs that\n"
+                      + "are safe to run twice. A call within an extended LUW always fails, as its\n"
+                      + "LUW was lost. Gateways that are down or idle are probed every second with\n"
+                      + "listSystems.");
+
+            displayMsg( "\nbreaker adds a circuit breaker for each CICS server. When half of the last\n"
+                      + "20 calls to a server could not reach it, its requests fail at once with\n"
+                      + "ECI_ERR_NO_CICS for 5 seconds, then a few trial requests test it again.");
+
+            displayMsg( "\nGiving cache, such as cache=EC01:5s, keeps the replies of read-only\n"
+                      + "programs for the time given. A request with the same server, program,\n"
+                      + "userid and input COMMAREA as a cached reply is answered without flowing\n"
+                      + "it. Up to cachesize replies are kept, 10000 by default, dropping the least\n"
+                      + "recently used. Only cache programs whose reply depends on their input alone.");
+
+            displayMsg( "\nGiving coalesce, such as coalesce=EC01, marks programs as idempotent. A\n"
+                      + "request identical to one already in flight waits for that one's reply and\n"
+                      + "gets a copy of it instead of being flowed. Only give programs that are\n"
+                      + "safe to run once for many callers.");
+
+            displayMsg( "\nverbosity=verbose shows each request and reply, which is the default\n"
+                      + "for a single run, normal shows progress, the default under load, and\n"
+                      + "quiet shows only results and errors. asynclog writes output in batches on\n"
+                      + "a background thread, so flowing requests never waits for the console.");
             //Returns false if program to stop after printing command line usage.
             return false;
         }
+
+        //Set up the output as requested
+        EciLog.Level level = (logLevel != null) ? logLevel
+                           : ((isLoadMode() || isReplayMode()) ? EciLog.Level.NORMAL
+                                                                : EciLog.Level.VERBOSE);
+        log = bAsyncLog ? new EciLog(System.out, level, 100000) : new EciLog(System.out, level);
+
+        //Route over several servers, avoiding any whose breaker would reject the request
+        if (astrServers != null) {
+            try {
+                router = new EciServerRouter(java.util.Arrays.asList(astrServers), aiWeights, routing);
+            } catch (IllegalArgumentException e) {
+                displayResult("Error - " + e.getMessage());
+                return false;
+            }
+            if (breaker != null) {
+                final EciCircuitBreaker serverBreaker = breaker;
+                router.setAvailable(serverBreaker::allowsRequest);
+            }
+        }
+
+        //Spread connections over several Gateways, probing each for failures
+        if (strJGateName.indexOf(',') >= 0) {
+            try {
+                gatewayGroup = new EciGatewayGroup(java.util.Arrays.asList(strJGateName.split(",")),
+                                                   iJGatePort, this::openConnection);
+                if (strReflow != null) {
+                    for (String strProgram : strReflow.split(",")) {
+                        if (!strProgram.trim().isEmpty()) {
+                            gatewayGroup.setReflow(strProgram.trim());
+                        }
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                displayResult("Error - " + e.getMessage());
+                return false;
+            }
+        }
+
+        //Cache the replies of the programs given, in at most 64MB
+        if (strCache != null) {
+            try {
+                responseCache = new EciResponseCache(iCacheSize, 64L * 1024 * 1024);
+                for (String strEntry : strCache.split(",")) {
+                    int iColon = strEntry.indexOf(':');
+                    if (iColon <= 0) {
+                        throw new IllegalArgumentException("cache needs prog_name:time, not " + strEntry);
+                    }
+                    responseCache.setTimeToLive(strEntry.substring(0, iColon).trim(),
+                                                parseDuration(strEntry.substring(iColon + 1).trim()));
+                }
+            } catch (IllegalArgumentException e) {
+                displayResult("Error - " + e.getMessage());
+                return false;
+            }
+        }
+
+        //Share flows between identical requests to idempotent programs
+        if (strCoalesce != null) {
+            coalescer = new EciCoalescer();
+            for (String strProgram : strCoalesce.split(",")) {
+                if (!strProgram.trim().isEmpty()) {
+                    coalescer.setIdempotent(strProgram.trim());
+                }
+            }
+        }
+
+        //Start capturing, holding at most 64MB of data waiting to be written
+        if (strCaptureFile != null) {
+            capture = new EciCapture(strCaptureFile, 64L * 1024 * 1024);
+        }
         return true;
     }
 
+    /*
+     * Load driver mode is used when an iteration count, a duration, a
+     * number of users or a rate is given.
+     */
+    public boolean isLoadMode() {
+        return (lIterations > 0) || (lDurationMillis > 0) || (iUsers > 0) || (dRate > 0);
+    }
+
+    /*
+     * Replay mode is used when a replay file is given.
+     */
+    public boolean isReplayMode() {
+        return strReplayFile != null;
+    }
+
+    /*
+     * Parse a duration such as 500ms, 60s or 5m into milliseconds. A value
+     * with no unit is taken to be seconds.
+     */
+    static long parseDuration(String strDuration) {
+        String strValue = strDuration.trim().toLowerCase();
+        if (strValue.endsWith("ms")) {
+            return Long.parseLong(strValue.substring(0, strValue.length() - 2));
+        } else if (strValue.endsWith("s")) {
+            return Long.parseLong(strValue.substring(0, strValue.length() - 1)) * 1000L;
+        } else if (strValue.endsWith("m")) {
+            return Long.parseLong(strValue.substring(0, strValue.length() - 1)) * 60000L;
+        }
+        return Long.parseLong(strValue) * 1000L;
+    }
+
+    /*
+     * Parse a rate such as 2000/s or 600/m into sequences per second. A
+     * value with no unit is taken to be per second.
+     */
+    static double parseRate(String strRate) {
+        String strValue = strRate.trim().toLowerCase();
+        if (strValue.endsWith("/s")) {
+            return Double.parseDouble(strValue.substring(0, strValue.length() - 2));
+        } else if (strValue.endsWith("/m")) {
+            return Double.parseDouble(strValue.substring(0, strValue.length() - 2)) / 60.0;
+        }
+        return Double.parseDouble(strValue);
+    }
+
+    //Progress messages, shown unless running quietly
     void displayMsg (String message) {
-        System.out.println(message);
+        log.log(EciLog.Level.NORMAL, message);
+    }
+
+    //Each request and reply, shown only when verbose
+    void displayDetail (String message) {
+        log.log(EciLog.Level.VERBOSE, message);
+    }
+
+    //Results and errors, always shown
+    void displayResult (String message) {
+        log.log(EciLog.Level.QUIET, message);
     }
 
     void displayRc (ECIRequest eciRequest) {
-        displayMsg("Return code   : " + eciRequest.getRcString()
+        if (!log.isEnabled(EciLog.Level.VERBOSE)) {
+            return;
+        }
+        displayDetail("Return code   : " + eciRequest.getRcString()
                  + "(" + eciRequest.getRc() + ")");
-        displayMsg("Abend code    : " + eciRequest.Abend_Code);
+        displayDetail("Abend code    : " + eciRequest.Abend_Code);
     }
 
     byte[] getBytes(String source) throws java.io.UnsupportedEncodingException {
         if (bDataConv) {
-            return source.getBytes(strDataConv);
+            return codec.encode(source);
         } else {
             return source.getBytes();
         }
@@ -49,9 +49,10 @@
 *         advised of the possibility of such damages.
 */
 
-package com.ibm.ctg.samples.eci;
+//package com.ibm.ctg.samples.eci;
 
 import java.io.*;
+import java.util.List;
 import java.util.Properties;
 import com.ibm.ctg.client.*;
 
@@ -94,6 +95,9 @@ static final String copyright_notice ="Licensed Materials - Property of IBM 5724
     private String         gatewayUrl = "local:";
     private int            gatewayPort = 2006;
     private JavaGateway    gateway;
+    private EciFlow        programFlow;
+    private EciCapture     capture;
+    private EciRetryPolicy retryPolicy = new EciRetryPolicy();
     private ECIRequest     eciReq;
     private BufferedReader reader;
     
@@ -140,6 +144,23 @@ static final String copyright_notice ="Licensed Materials - Property of IBM 5724
         System.out.println("\t-Dgateway.T.trace=on");
         System.out.println();
         
+        //Display capture option
+        System.out.println("To record each program request and reply to JSONL files, run the sample with:");
+        System.out.println("\t-Deci.capture=capture.jsonl");
+        System.out.println();
+        
+        //Display retry option
+        System.out.println("Requests that fail for a transient reason are retried with backoff. To set the");
+        System.out.println("most attempts made at each request, 1 for no retries, run the sample with:");
+        System.out.println("\t-Deci.retry.attempts=3");
+        System.out.println();
+        
+        //Display server list cache options
+        System.out.println("The list of CICS servers is cached. To set how long it is kept, in seconds, and");
+        System.out.println("to keep it in a file for the next run, run the sample with:");
+        System.out.println("\t-Deci.servers.ttl=60 -Deci.servers.cache=eciservers.txt");
+        System.out.println();
+        
         //Process commandline arguments
         switch (args.length) {
         case 4:
@@ -178,6 +199,21 @@ static final String copyright_notice ="Licensed Materials - Property of IBM 5724
         //Display gateway URL and port
         System.out.println("The address of the gateway has been set to " +
                            gatewayUrl + " port " + gatewayPort);
+        
+        //Set up retries
+        try {
+            retryPolicy.setMaxAttempts(Integer.getInteger("eci.retry.attempts", 3));
+        } catch (IllegalArgumentException e) {
+            System.out.println("eci.retry.attempts must be at least 1");
+            return false;
+        }
+        
+        //Start capturing if requested
+        String captureFile = System.getProperty("eci.capture");
+        if (captureFile != null) {
+            capture = new EciCapture(captureFile, 64L * 1024 * 1024);
+            System.out.println("Capturing flows to " + captureFile);
+        }
                 
         return true;
     }
@@ -210,6 +246,14 @@ static final String copyright_notice ="Licensed Materials - Property of IBM 5724
                 
             }
             
+            //Program requests go through the capture, if there is one,
+            //and are retried if they fail for a transient reason
+            programFlow = gateway::flow;
+            if (capture != null) {
+                programFlow = capture.capturing(programFlow);
+            }
+            programFlow = retryPolicy.retrying(programFlow);
+            
             
             if (gatewayUrl.toLowerCase().startsWith("local:")) {
                 //IPIC servers are not listed by listSystems in local mode, so
@@ -306,6 +350,12 @@ static final String copyright_notice ="Licensed Materials - Property of IBM 5724
                     gateway.close();
                 }
                 
+                //Write out any captured flows
+                if (capture != null) {
+                    capture.close();
+                    System.out.println("Capture: " + capture.getStatistics());
+                }
+                
                 //Close the BufferedReader
                 reader.close();
             } catch (IOException e) {
@@ -346,11 +396,13 @@ static final String copyright_notice ="Licensed Materials - Property of IBM 5724
 
         	try {
         		//Attempt flow
-        		gateway.flow(eciReq);
+        		programFlow.flow(eciReq);
         		flowRc = eciReq.getRc();
 
         	} catch (IOException e) {
+        		//Not retried, as the program may have run before the connection failed
         		e.printStackTrace();
+        		System.out.println("Retries: " + retryPolicy.getStatistics());
         		return false;
         	}
 
@@ -392,8 +444,9 @@ static final String copyright_notice ="Licensed Materials - Property of IBM 5724
 
         	case ECIRequest.ECI_ERR_NO_CICS:
 
-        		//CICS not found
+        		//CICS not found, even after retrying
         		System.out.println("CICS server not found");
+        		System.out.println("Retries: " + retryPolicy.getStatistics());
         		return false;
 
         	default:
@@ -443,16 +496,19 @@ static final String copyright_notice ="Licensed Materials - Property of IBM 5724
         int    serverNum;
         String serverName = null;
         
-        //Query the Gateway daemon for a list of defined CICS servers
-        eciReq = ECIRequest.listSystems(MAX_SERVER_COUNT);
-        gateway.flow(eciReq);
-        
-        if (eciReq.getRc() != ECIRequest.ECI_NO_ERROR) {
-            System.out.println("The request to list the defined CICS servers failed with " + eciReq.getRcString());
+        //Get the list of defined CICS servers, from the Gateway daemon
+        //unless a recent list is cached
+        EciServerList serverList = EciServerList.forGateway(gatewayUrl, gatewayPort);
+        serverList.setMaxServers(MAX_SERVER_COUNT);
+        List<EciServerList.Server> servers;
+        try {
+            servers = serverList.getServers(gateway::flow);
+        } catch (IOException e) {
+            System.out.println("The request to list the defined CICS servers failed: " + e.getMessage());
             return null;
         }
         
-        if (eciReq.numServersReturned == 0) {
+        if (servers.isEmpty()) {
             System.out.println("No CICS servers have been defined");
             return null;
         }
@@ -462,7 +518,7 @@ static final String copyright_notice ="Licensed Materials - Property of IBM 5724
             //Display CICS server list
             System.out.println("CICS servers defined:");
             
-            for (int i = 0; i < eciReq.numServersReturned; i++) {
+            for (int i = 0; i < servers.size(); i++) {
                 
                 if (i < 9) {
                     System.out.print("\t " + (i + 1) + ". ");
@@ -471,9 +527,7 @@ static final String copyright_notice ="Licensed Materials - Property of IBM 5724
                 }
                 
                 //Print the name and description of the CICS server
-                //as contained in the SystemList vector
-                System.out.println(eciReq.SystemList.elementAt(i * 2) + " -" +
-                                   eciReq.SystemList.elementAt((i * 2) + 1));
+                System.out.println(servers.get(i));
             }
             
             //Prompt for user selection
@@ -490,8 +544,8 @@ static final String copyright_notice ="Licensed Materials - Property of IBM 5724
             try {
                 serverNum = Integer.parseInt(choice) - 1;
                 
-                if ((serverNum >= 0) && (serverNum < eciReq.numServersReturned)) {
-                    serverName = eciReq.SystemList.elementAt(serverNum * 2);
+                if ((serverNum >= 0) && (serverNum < servers.size())) {
+                    serverName = servers.get(serverNum).name;
                 } else {
                     System.out.println("Invalid selection");
                     System.out.println();
@@ -0,0 +1,553 @@
+/*
+*      File Name     : EciCapture.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : Records ECI flows to JSONL files, one request and
+*                      reply per line: the time, server, program, userid,
+*                      extend mode and LUW, the COMMAREA or channel
+*                      containers sent and returned, the return code,
+*                      abend code and latency. COMMAREAs are written
+*                      without their trailing nulls, with commareaLength
+*                      giving the full length. The files can be replayed
+*                      with EciReplay, which groups extended LUW calls by
+*                      their LUW token.
+*
+*                      The flowing thread only copies the request and reply
+*                      data. A background thread formats and writes them,
+*                      starting a new file when one reaches its size limit
+*                      and deleting the oldest files beyond a count. The
+*                      data waiting to be written is limited in bytes; if
+*                      the writer falls behind, records are dropped and
+*                      counted so the flow path never blocks.
+*/
+
+//package com.ibm.ctg.samples.eci;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import com.ibm.ctg.client.*;
+
+public class EciCapture
+{
+    //Most records written in one batch
+    private static final int BATCH_SIZE = 1024;
+    private static final byte[] BASE64 =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+
+    private final String filePrefix;
+    private final String fileSuffix;
+    private final long maxPendingBytes;
+    private long maxFileBytes = 256L * 1024 * 1024;
+    private int maxFiles = 10;
+
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicLong captured = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final long startMillis = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private final Thread writer;
+    private volatile boolean closed = false;
+    private volatile IOException writeError = null;
+
+    //Writer thread only
+    private final ArrayDeque<File> files = new ArrayDeque<File>();
+    private final StringBuilder scratch = new StringBuilder();
+    private byte[] buffer = new byte[256 * 1024];
+    private int length = 0;
+    private OutputStream out = null;
+    private long fileBytes = 0;
+    private volatile int fileSequence = 0;
+
+
+    /**
+     * Starts capturing to files named after the given path. capture.jsonl
+     * is written as capture-0001.jsonl, capture-0002.jsonl and so on.
+     *
+     * @param path              the capture file path
+     * @param maxPendingBytes   the most COMMAREA and container data waiting
+     *                          to be written before records are dropped
+     */
+    public EciCapture(String path, long maxPendingBytes)
+    {
+        int dot = path.lastIndexOf('.');
+        if (dot > path.lastIndexOf(File.separatorChar)) {
+            filePrefix = path.substring(0, dot);
+            fileSuffix = path.substring(dot);
+        } else {
+            filePrefix = path;
+            fileSuffix = ".jsonl";
+        }
+        this.maxPendingBytes = maxPendingBytes;
+
+        writer = new Thread(this::writeEntries, "EciCapture-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Sets the size at which a new file is started, 256MB by default
+     */
+    public void setMaxFileBytes(long bytes)
+    {
+        maxFileBytes = bytes;
+    }
+
+    /**
+     * Sets how many files are kept, 10 by default. The oldest is deleted
+     * when another is started.
+     */
+    public void setMaxFiles(int count)
+    {
+        maxFiles = count;
+    }
+
+    /**
+     * Wraps a flow so that each request through it is captured
+     *
+     * @param flow  the flow to capture
+     */
+    public EciFlow capturing(final EciFlow flow)
+    {
+        return eciRequest -> {
+            Entry entry = closed ? null : before(eciRequest);
+            long start = System.nanoTime();
+            IOException failure = null;
+            try {
+                return flow.flow(eciRequest);
+            } catch (IOException e) {
+                failure = e;
+                throw e;
+            } finally {
+                if (entry != null) {
+                    after(entry, eciRequest, System.nanoTime() - start, failure);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the number of records written or waiting to be written
+     */
+    public long getCaptured()
+    {
+        return captured.get();
+    }
+
+    /**
+     * @return the number of records dropped because the writer was behind
+     */
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * @return a one line summary of the capture
+     */
+    public String getStatistics()
+    {
+        return "captured=" + captured.get() + " dropped=" + dropped.get()
+               + " files=" + fileSequence
+               + ((writeError != null) ? " error=" + writeError.getMessage() : "");
+    }
+
+    /**
+     * Writes any waiting records and closes the current file
+     */
+    public void close()
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Copies what is sent, before the flow can change it
+     */
+    private Entry before(ECIRequest eciRequest)
+    {
+        Entry entry = new Entry();
+        entry.offsetNanos = System.nanoTime() - startNanos;
+        entry.server = eciRequest.Server;
+        entry.program = eciRequest.Program;
+        entry.userid = eciRequest.Userid;
+        entry.extendMode = eciRequest.Extend_Mode;
+        entry.luwToken = eciRequest.Luw_Token;
+        if (eciRequest.Commarea != null) {
+            entry.commareaLength = (eciRequest.Commarea_Length > 0)
+                                   ? Math.min(eciRequest.Commarea_Length, eciRequest.Commarea.length)
+                                   : eciRequest.Commarea.length;
+            entry.commareaIn = copyData(eciRequest.Commarea, entry.commareaLength);
+            entry.bytes += entry.commareaIn.length;
+        }
+        if (eciRequest.hasChannel()) {
+            entry.channel = eciRequest.getChannel().getName();
+            entry.containersIn = copyContainers(eciRequest.getChannel(), entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Copies what came back and queues the record for writing
+     */
+    private void after(Entry entry, ECIRequest eciRequest, long latencyNanos, IOException failure)
+    {
+        entry.latencyNanos = latencyNanos;
+        entry.failure = (failure != null) ? failure.toString() : null;
+        entry.rc = eciRequest.getRc();
+        entry.abendCode = eciRequest.Abend_Code;
+        entry.luwTokenOut = eciRequest.Luw_Token;
+        if (eciRequest.Commarea != null) {
+            entry.commareaOut = copyData(eciRequest.Commarea,
+                                         (entry.commareaIn != null) ? entry.commareaLength
+                                                                    : eciRequest.Commarea.length);
+            entry.bytes += entry.commareaOut.length;
+        }
+        if (eciRequest.hasChannel()) {
+            entry.containersOut = copyContainers(eciRequest.getChannel(), entry);
+        }
+
+        if (closed || pendingBytes.addAndGet(entry.bytes) > maxPendingBytes) {
+            if (!closed) {
+                pendingBytes.addAndGet(-entry.bytes);
+            }
+            dropped.incrementAndGet();
+            return;
+        }
+        queue.offer(entry);
+        //The writer may have seen closed and an empty queue before the offer, so take it back
+        if (closed && queue.remove(entry)) {
+            pendingBytes.addAndGet(-entry.bytes);
+            dropped.incrementAndGet();
+            return;
+        }
+        captured.incrementAndGet();
+    }
+
+    /**
+     * Copies a COMMAREA without its trailing nulls. Most COMMAREAs are
+     * fixed length and mostly empty, so this keeps the files small.
+     */
+    private static byte[] copyData(byte[] commarea, int length)
+    {
+        while (length > 0 && commarea[length - 1] == 0) {
+            length--;
+        }
+        return java.util.Arrays.copyOf(commarea, length);
+    }
+
+    private static List<Item> copyContainers(Channel channel, Entry entry)
+    {
+        List<Item> items = new ArrayList<Item>();
+        try {
+            for (Container container : channel.getContainers()) {
+                Item item = new Item();
+                item.name = container.getName();
+                item.isChar = (container.getType() == Container.ContainerType.CHAR);
+                if (item.isChar) {
+                    item.text = container.getCHARData();
+                    entry.bytes += item.text.length() * 2L;
+                } else {
+                    item.data = container.getBITData();
+                    entry.bytes += item.data.length;
+                }
+                items.add(item);
+            }
+        } catch (Exception e) {
+            //Record what could be read
+        }
+        return items;
+    }
+
+    /**
+     * Formats and writes records until closed. Records are formatted
+     * straight into bytes, so the writer does little more than copy. The
+     * writer is never woken by a flow; when there is nothing to write it
+     * sleeps briefly, so records are written in large batches and flowing
+     * threads never wait for it.
+     */
+    private void writeEntries()
+    {
+        while (true) {
+            boolean wasClosed = closed;
+            int count = 0;
+            Entry entry;
+            while (count < BATCH_SIZE && (entry = queue.poll()) != null) {
+                pendingBytes.addAndGet(-entry.bytes);
+                format(entry);
+                put((byte) '\n');
+                count++;
+            }
+
+            if (count == 0) {
+                if (wasClosed) {
+                    break;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                continue;
+            }
+
+            if (writeError == null && length > 0) {
+                try {
+                    write();
+                } catch (IOException e) {
+                    //Stop writing, but keep the flow path running
+                    writeError = e;
+                }
+            }
+            length = 0;
+        }
+
+        try {
+            if (out != null) {
+                out.close();
+            }
+        } catch (IOException e) {
+            writeError = e;
+        }
+    }
+
+    private void write() throws IOException
+    {
+        if (out == null || fileBytes >= maxFileBytes) {
+            rotate();
+        }
+        out.write(buffer, 0, length);
+        fileBytes += length;
+    }
+
+    private void rotate() throws IOException
+    {
+        if (out != null) {
+            out.close();
+        }
+        fileSequence++;
+        File file = new File(String.format("%s-%04d%s", filePrefix, fileSequence, fileSuffix));
+        out = new FileOutputStream(file);
+        fileBytes = 0;
+        files.addLast(file);
+        while (maxFiles > 0 && files.size() > maxFiles) {
+            files.removeFirst().delete();
+        }
+    }
+
+    private void format(Entry entry)
+    {
+        ascii("{\"offsetMillis\":");
+        number(entry.offsetNanos / 1000000L);
+        ascii(",\"timestamp\":");
+        number(startMillis + entry.offsetNanos / 1000000L);
+        ascii(",\"server\":");
+        string(entry.server);
+        ascii(",\"program\":");
+        string(entry.program);
+        ascii(",\"userid\":");
+        string(entry.userid);
+        ascii(",\"extendMode\":\"");
+        ascii(extendModeName(entry.extendMode));
+        put((byte) '"');
+
+        //Group the calls of an extended LUW by their token
+        int luwToken = (entry.luwToken != 0) ? entry.luwToken : entry.luwTokenOut;
+        if (entry.extendMode != ECIRequest.ECI_NO_EXTEND && luwToken != 0) {
+            ascii(",\"luw\":\"");
+            number(luwToken);
+            put((byte) '"');
+        }
+        if (entry.commareaIn != null) {
+            ascii(",\"commareaLength\":");
+            number(entry.commareaLength);
+            ascii(",\"commareaBase64\":");
+            base64(entry.commareaIn);
+        }
+        if (entry.commareaOut != null) {
+            ascii(",\"replyBase64\":");
+            base64(entry.commareaOut);
+        }
+        if (entry.channel != null) {
+            ascii(",\"channel\":");
+            string(entry.channel);
+            ascii(",\"containers\":");
+            containers(entry.containersIn);
+            ascii(",\"replyContainers\":");
+            containers(entry.containersOut);
+        }
+        ascii(",\"rc\":");
+        number(entry.rc);
+        ascii(",\"abendCode\":");
+        string(entry.abendCode);
+        ascii(",\"latencyMicros\":");
+        number(entry.latencyNanos / 1000L);
+        if (entry.failure != null) {
+            ascii(",\"error\":");
+            string(entry.failure);
+        }
+        put((byte) '}');
+    }
+
+    private void containers(List<Item> items)
+    {
+        put((byte) '[');
+        if (items != null) {
+            for (int i = 0; i < items.size(); i++) {
+                Item item = items.get(i);
+                if (i > 0) {
+                    put((byte) ',');
+                }
+                ascii("{\"name\":");
+                string(item.name);
+                if (item.isChar) {
+                    ascii(",\"type\":\"CHAR\",\"text\":");
+                    string(item.text);
+                } else {
+                    ascii(",\"type\":\"BIT\",\"dataBase64\":");
+                    base64(item.data);
+                }
+                put((byte) '}');
+            }
+        }
+        put((byte) ']');
+    }
+
+    private void put(byte b)
+    {
+        ensure(1);
+        buffer[length++] = b;
+    }
+
+    private void ascii(String text)
+    {
+        ensure(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            buffer[length++] = (byte) text.charAt(i);
+        }
+    }
+
+    private void number(long value)
+    {
+        ascii(Long.toString(value));
+    }
+
+    /**
+     * Appends a quoted JSON string, in UTF-8
+     */
+    private void string(String value)
+    {
+        scratch.setLength(0);
+        EciJson.appendString(scratch, value);
+        for (int i = 0; i < scratch.length(); i++) {
+            if (scratch.charAt(i) >= 0x80) {
+                byte[] utf8 = scratch.toString().getBytes(StandardCharsets.UTF_8);
+                ensure(utf8.length);
+                System.arraycopy(utf8, 0, buffer, length, utf8.length);
+                length += utf8.length;
+                return;
+            }
+        }
+        ensure(scratch.length());
+        for (int i = 0; i < scratch.length(); i++) {
+            buffer[length++] = (byte) scratch.charAt(i);
+        }
+    }
+
+    /**
+     * Appends bytes as a quoted base64 string
+     */
+    private void base64(byte[] data)
+    {
+        ensure((data.length + 2) / 3 * 4 + 2);
+        buffer[length++] = '"';
+        int i = 0;
+        for (; i + 3 <= data.length; i += 3) {
+            int bits = (data[i] & 0xFF) << 16 | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF);
+            buffer[length++] = BASE64[bits >>> 18];
+            buffer[length++] = BASE64[(bits >>> 12) & 0x3F];
+            buffer[length++] = BASE64[(bits >>> 6) & 0x3F];
+            buffer[length++] = BASE64[bits & 0x3F];
+        }
+        if (i < data.length) {
+            int bits = (data[i] & 0xFF) << 16 | ((i + 1 < data.length) ? (data[i + 1] & 0xFF) << 8 : 0);
+            buffer[length++] = BASE64[bits >>> 18];
+            buffer[length++] = BASE64[(bits >>> 12) & 0x3F];
+            buffer[length++] = (i + 1 < data.length) ? BASE64[(bits >>> 6) & 0x3F] : (byte) '=';
+            buffer[length++] = '=';
+        }
+        buffer[length++] = '"';
+    }
+
+    private void ensure(int more)
+    {
+        if (length + more > buffer.length) {
+            buffer = java.util.Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + more));
+        }
+    }
+
+    static String extendModeName(int extendMode)
+    {
+        switch (extendMode) {
+            case ECIRequest.ECI_NO_EXTEND:
+                return "NO_EXTEND";
+            case ECIRequest.ECI_EXTENDED:
+                return "EXTENDED";
+            case ECIRequest.ECI_COMMIT:
+                return "COMMIT";
+            case ECIRequest.ECI_BACKOUT:
+                return "BACKOUT";
+            default:
+                return Integer.toString(extendMode);
+        }
+    }
+
+
+    /**
+     * One captured flow
+     */
+    private static class Entry
+    {
+        long       offsetNanos;
+        String     server;
+        String     program;
+        String     userid;
+        int        extendMode;
+        int        luwToken;
+        int        luwTokenOut;
+        int        commareaLength;
+        byte[]     commareaIn;
+        byte[]     commareaOut;
+        String     channel;
+        List<Item> containersIn;
+        List<Item> containersOut;
+        int        rc;
+        String     abendCode;
+        long       latencyNanos;
+        String     failure;
+        long       bytes = 256;
+    }
+
+    /**
+     * A copy of one container
+     */
+    private static class Item
+    {
+        String  name;
+        boolean isChar;
+        String  text;
+        byte[]  data;
+    }
+}
@@ -0,0 +1,363 @@
+/*
+*      File Name     : EciCircuitBreaker.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : A circuit breaker for each CICS server. While a
+*                      server is failing, requests to it fail at once with
+*                      ECI_ERR_NO_CICS instead of each waiting for a
+*                      timeout, so threads and Gateway connections stay
+*                      free for the servers that are working.
+*
+*                      Each server's breaker is closed while its recent
+*                      failure rate is low, counting the outcomes of its
+*                      last calls in a sliding window. When the failure
+*                      rate passes the threshold the breaker opens and
+*                      requests are rejected. After the open time a few
+*                      trial requests are let through (half open); if they
+*                      all succeed the breaker closes, and if any fails it
+*                      opens again.
+*
+*                      Failures are IOExceptions and return codes that say
+*                      the server could not be reached or did not answer.
+*                      Abends and security errors are the program's or the
+*                      caller's problem, not the server's, and count as
+*                      successes. Calls that continue an existing extended
+*                      LUW, including its commit or backout, are never
+*                      rejected.
+*/
+
+//package com.ibm.ctg.samples.eci;
+
+import java.io.*;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import com.ibm.ctg.client.*;
+
+public class EciCircuitBreaker
+{
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    //How a call was let through, if it was
+    private enum Admission { REJECTED, CALL, TRIAL }
+
+    private final Map<String, Breaker> breakers = new ConcurrentHashMap<String, Breaker>();
+    private final Set<Integer> failureRcs = ConcurrentHashMap.newKeySet();
+    private int    windowSize = 20;
+    private int    minimumCalls = 10;
+    private double failureThreshold = 0.5;
+    private long   openNanos = TimeUnit.SECONDS.toNanos(5);
+    private int    trialCalls = 3;
+
+
+    /**
+     * Creates breakers that open when half of the last 20 calls to a server
+     * failed, stay open for 5 seconds, then let 3 trial calls through
+     */
+    public EciCircuitBreaker()
+    {
+        failureRcs.add(ECIRequest.ECI_ERR_NO_CICS);
+        failureRcs.add(ECIRequest.ECI_ERR_CICS_DIED);
+        failureRcs.add(ECIRequest.ECI_ERR_REQUEST_TIMEOUT);
+        failureRcs.add(ECIRequest.ECI_ERR_RESPONSE_TIMEOUT);
+        failureRcs.add(ECIRequest.ECI_ERR_SYSTEM_ERROR);
+        failureRcs.add(ECIRequest.ECI_ERR_RESOURCE_SHORTAGE);
+        failureRcs.add(ECIRequest.ECI_ERR_NO_SESSIONS);
+    }
+
+    /**
+     * Sets the number of recent calls the failure rate is taken over, and
+     * how many there must be before the breaker can open. Breakers already
+     * made start a new window of the new size.
+     */
+    public void setWindow(int windowSize, int minimumCalls)
+    {
+        if (windowSize < 1 || minimumCalls < 1 || minimumCalls > windowSize) {
+            throw new IllegalArgumentException("Need 1 <= minimumCalls <= windowSize");
+        }
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+        for (Breaker breaker : breakers.values()) {
+            breaker.resize(windowSize);
+        }
+    }
+
+    /**
+     * Sets the failure rate, from 0 to 1, at which the breaker opens
+     */
+    public void setFailureThreshold(double threshold)
+    {
+        failureThreshold = threshold;
+    }
+
+    /**
+     * Sets how long the breaker stays open before trial calls are allowed
+     */
+    public void setOpenTime(long millis)
+    {
+        openNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Sets how many trial calls must succeed to close the breaker again
+     */
+    public void setTrialCalls(int calls)
+    {
+        trialCalls = Math.max(1, calls);
+    }
+
+    /**
+     * Counts a return code as a failure of the server
+     */
+    public void failOn(int rc)
+    {
+        failureRcs.add(rc);
+    }
+
+    /**
+     * @return the state of a server's breaker. A breaker whose open time
+     *         has passed reports HALF_OPEN, as its next request would be
+     *         let through as a trial.
+     */
+    public State getState(String server)
+    {
+        Breaker breaker = breakers.get(String.valueOf(server));
+        return (breaker == null) ? State.CLOSED : breaker.currentState();
+    }
+
+    /**
+     * @return true if a new request to a server would be let through now,
+     *         either because its breaker is closed or because it would be
+     *         a trial call. A router should pick only these servers, so a
+     *         server whose breaker opened is sent trial calls once its open
+     *         time has passed.
+     */
+    public boolean allowsRequest(String server)
+    {
+        Breaker breaker = breakers.get(String.valueOf(server));
+        return (breaker == null) || breaker.allowsRequest();
+    }
+
+    /**
+     * Wraps a flow so that requests to a failing server are rejected. A
+     * rejected request is not flowed; its return code is set to
+     * ECI_ERR_NO_CICS.
+     *
+     * @param flow  the flow to protect
+     */
+    public EciFlow breaking(final EciFlow flow)
+    {
+        return eciRequest -> {
+            Breaker breaker = breakers.computeIfAbsent(String.valueOf(eciRequest.Server),
+                                                       server -> new Breaker());
+            boolean continuesLuw = (eciRequest.Luw_Token != ECIRequest.ECI_LUW_NEW);
+            Admission admission = breaker.tryAcquire(continuesLuw);
+            if (admission == Admission.REJECTED) {
+                eciRequest.Cics_Rc = ECIRequest.ECI_ERR_NO_CICS;
+                return ECIRequest.ECI_ERR_NO_CICS;
+            }
+            boolean failed = true;
+            try {
+                int rc = flow.flow(eciRequest);
+                failed = failureRcs.contains(rc);
+                return rc;
+            } finally {
+                breaker.record(failed, admission == Admission.TRIAL);
+            }
+        };
+    }
+
+    /**
+     * @return one line per server giving its state and counts
+     */
+    public String getStatistics()
+    {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, Breaker> entry : new TreeMap<String, Breaker>(breakers).entrySet()) {
+            Breaker breaker = entry.getValue();
+            if (report.length() > 0) {
+                report.append('\n');
+            }
+            report.append(String.format("%-10s %-9s calls=%d failures=%d rejected=%d opened=%d",
+                                        entry.getKey(), breaker.currentState(), breaker.calls.get(),
+                                        breaker.failures.get(), breaker.rejected.get(),
+                                        breaker.opened.get()));
+        }
+        return report.toString();
+    }
+
+
+    /**
+     * The breaker for one server
+     */
+    private class Breaker
+    {
+        private final ReentrantLock lock = new ReentrantLock();
+        //Guarded by lock
+        private boolean[] window = new boolean[windowSize];
+        private int  windowCount = 0;
+        private int  windowNext = 0;
+        private int  windowFailures = 0;
+        private int  trialsStarted = 0;
+        private int  trialsPassed = 0;
+        private volatile long openedAt = 0;
+        //Read without the lock, so rejecting while open costs no locking
+        private volatile State state = State.CLOSED;
+
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        final AtomicLong opened = new AtomicLong();
+
+        State currentState()
+        {
+            State current = state;
+            if (current == State.OPEN && System.nanoTime() - openedAt >= openNanos) {
+                return State.HALF_OPEN;
+            }
+            return current;
+        }
+
+        /**
+         * @return true if tryAcquire would let a new request through now
+         */
+        boolean allowsRequest()
+        {
+            switch (state) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    return System.nanoTime() - openedAt >= openNanos;
+                default:
+                    lock.lock();
+                    try {
+                        return state != State.HALF_OPEN || trialsStarted < trialCalls;
+                    } finally {
+                        lock.unlock();
+                    }
+            }
+        }
+
+        /**
+         * @return whether a call may go ahead, and if so whether it is a
+         *         trial call
+         */
+        Admission tryAcquire(boolean continuesLuw)
+        {
+            if (state == State.CLOSED || continuesLuw) {
+                return Admission.CALL;
+            }
+            if (state == State.OPEN && System.nanoTime() - openedAt < openNanos) {
+                rejected.incrementAndGet();
+                return Admission.REJECTED;
+            }
+            lock.lock();
+            try {
+                if (state == State.OPEN) {
+                    if (System.nanoTime() - openedAt < openNanos) {
+                        rejected.incrementAndGet();
+                        return Admission.REJECTED;
+                    }
+                    state = State.HALF_OPEN;
+                    trialsStarted = 0;
+                    trialsPassed = 0;
+                }
+                if (state == State.HALF_OPEN) {
+                    if (trialsStarted >= trialCalls) {
+                        rejected.incrementAndGet();
+                        return Admission.REJECTED;
+                    }
+                    trialsStarted++;
+                    return Admission.TRIAL;
+                }
+                return Admission.CALL;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @param trial     true if the call was let through as a trial
+         */
+        void record(boolean failed, boolean trial)
+        {
+            calls.incrementAndGet();
+            if (failed) {
+                failures.incrementAndGet();
+            }
+            lock.lock();
+            try {
+                switch (state) {
+                    case CLOSED:
+                        if (window[windowNext] && windowCount == window.length) {
+                            windowFailures--;
+                        }
+                        window[windowNext] = failed;
+                        windowNext = (windowNext + 1) % window.length;
+                        windowCount = Math.min(windowCount + 1, window.length);
+                        if (failed) {
+                            windowFailures++;
+                        }
+                        if (windowCount >= minimumCalls
+                            && windowFailures >= failureThreshold * windowCount) {
+                            open();
+                        }
+                        break;
+                    case HALF_OPEN:
+                        if (!trial) {
+                            //An LUW continuing, or a call let through before the breaker opened
+                            break;
+                        }
+                        if (failed) {
+                            open();
+                        } else if (++trialsPassed >= trialCalls) {
+                            close();
+                        }
+                        break;
+                    case OPEN:
+                        //A call let through before the breaker opened
+                        break;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void open()
+        {
+            openedAt = System.nanoTime();
+            state = State.OPEN;
+            opened.incrementAndGet();
+        }
+
+        /**
+         * Starts a new window of a different size
+         */
+        void resize(int size)
+        {
+            lock.lock();
+            try {
+                window = new boolean[size];
+                windowCount = 0;
+                windowNext = 0;
+                windowFailures = 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void close()
+        {
+            java.util.Arrays.fill(window, false);
+            windowCount = 0;
+            windowNext = 0;
+            windowFailures = 0;
+            state = State.CLOSED;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+*      File Name     : EciCoalescer.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : Coalesces identical requests to idempotent programs
+*                      while one of them is in flight, so a spike of the
+*                      same inquiry from many threads costs the Gateway and
+*                      CICS one call instead of hundreds.
+*
+*                      The first request with a given server, program,
+*                      userid and input COMMAREA is flowed. Identical
+*                      requests arriving before its reply wait for it
+*                      instead of being flowed, and each is then given its
+*                      own copy of the reply COMMAREA and the same return
+*                      code, or the same failure. A request arriving after
+*                      the reply is flowed again, so no reply is used
+*                      beyond the moment it arrives; put a response cache
+*                      in front to keep replies for longer.
+*
+*                      Only programs marked as idempotent are coalesced,
+*                      as a request that updates CICS must run once for
+*                      each caller. Only synchronous, non-extended COMMAREA
+*                      requests are coalesced; the rest are always flowed.
+*/
+
+//package com.ibm.ctg.samples.eci;
+
+import java.io.*;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import com.ibm.ctg.client.*;
+
+public class EciCoalescer
+{
+    private final Map<String, Program> programs = new ConcurrentHashMap<String, Program>();
+    private final ConcurrentHashMap<EciRequestKey, Flight> inFlight =
+        new ConcurrentHashMap<EciRequestKey, Flight>();
+
+
+    /**
+     * Marks a program as idempotent, so identical requests to it may share
+     * one flow
+     */
+    public void setIdempotent(String program)
+    {
+        programs.computeIfAbsent(program, name -> new Program());
+    }
+
+    /**
+     * Wraps a flow so that identical requests to idempotent programs made
+     * while one is in flight share its reply
+     *
+     * @param flow  the flow to send requests that are not coalesced
+     */
+    public EciFlow coalescing(final EciFlow flow)
+    {
+        return eciRequest -> {
+            Program program = (eciRequest.Program == null) ? null : programs.get(eciRequest.Program);
+            if (program == null || !isCoalescable(eciRequest)) {
+                return flow.flow(eciRequest);
+            }
+
+            EciRequestKey probe = new EciRequestKey(eciRequest);
+            Flight flight = inFlight.get(probe);
+            if (flight == null) {
+                //The reply overwrites the COMMAREA, so the table keeps its own copy of the input
+                EciRequestKey key = probe.copy();
+                Flight mine = new Flight();
+                flight = inFlight.putIfAbsent(key, mine);
+                if (flight == null) {
+                    return lead(flow, eciRequest, key, mine, program);
+                }
+            }
+            return join(flight, eciRequest, program);
+        };
+    }
+
+    /**
+     * @return the number of distinct requests in flight
+     */
+    public int getInFlight()
+    {
+        return inFlight.size();
+    }
+
+    /**
+     * @return one line per idempotent program giving the requests flowed
+     *         and the requests that shared another's flow
+     */
+    public String getStatistics()
+    {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, Program> entry : new TreeMap<String, Program>(programs).entrySet()) {
+            Program program = entry.getValue();
+            long flows = program.flows.get();
+            long coalesced = program.coalesced.get();
+            if (report.length() > 0) {
+                report.append('\n');
+            }
+            long requests = flows + coalesced;
+            report.append(String.format("%-8s flows=%d coalesced=%d saved=%.1f%% mostWaiting=%d",
+                                        entry.getKey(), flows, coalesced,
+                                        (requests == 0) ? 0.0 : coalesced * 100.0 / requests,
+                                        program.mostWaiting.get()));
+        }
+        return report.toString();
+    }
+
+    private static boolean isCoalescable(ECIRequest eciRequest)
+    {
+        return eciRequest.Extend_Mode == ECIRequest.ECI_NO_EXTEND
+               && eciRequest.Luw_Token == ECIRequest.ECI_LUW_NEW
+               && eciRequest.Call_Type != ECIRequest.ECI_ASYNC
+               && !eciRequest.hasChannel();
+    }
+
+    /**
+     * Flows the request, then hands its outcome to the requests that
+     * joined it
+     */
+    private int lead(EciFlow flow, ECIRequest eciRequest, EciRequestKey key, Flight flight, Program program)
+        throws IOException
+    {
+        program.flows.incrementAndGet();
+        try {
+            int rc = flow.flow(eciRequest);
+            flight.complete(eciRequest, rc);
+            return rc;
+        } catch (IOException e) {
+            flight.failure = e;
+            throw e;
+        } catch (RuntimeException e) {
+            flight.failure = new IOException(e);
+            throw e;
+        } finally {
+            if (!flight.isComplete && flight.failure == null) {
+                flight.failure = new IOException("Request ended without a reply");
+            }
+            //Later requests flow again rather than join a flight that has landed
+            inFlight.remove(key, flight);
+            int waiting = flight.waiting.get();
+            long most;
+            while (waiting > (most = program.mostWaiting.get())
+                   && !program.mostWaiting.compareAndSet(most, waiting)) {
+                //Another flight raised the most, so compare again
+            }
+            flight.done.countDown();
+        }
+    }
+
+    /**
+     * Waits for the request in flight and copies its outcome
+     */
+    private int join(Flight flight, ECIRequest eciRequest, Program program) throws IOException
+    {
+        program.coalesced.incrementAndGet();
+        flight.waiting.incrementAndGet();
+        try {
+            flight.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for an identical request in flight");
+        }
+
+        if (flight.failure != null) {
+            //A new exception, so each caller's stack trace shows where it waited
+            throw new IOException("Identical request in flight failed: " + flight.failure.getMessage(),
+                                  flight.failure);
+        }
+        if (flight.commarea != null && eciRequest.Commarea != null) {
+            System.arraycopy(flight.commarea, 0, eciRequest.Commarea, 0,
+                             Math.min(flight.commarea.length, eciRequest.Commarea.length));
+        }
+        eciRequest.Commarea_Length = flight.commareaLength;
+        eciRequest.Cics_Rc = flight.cicsRc;
+        eciRequest.Abend_Code = flight.abendCode;
+        return flight.rc;
+    }
+
+
+    /**
+     * Counts for one idempotent program
+     */
+    private static class Program
+    {
+        final AtomicLong flows = new AtomicLong();
+        final AtomicLong coalesced = new AtomicLong();
+        final AtomicLong mostWaiting = new AtomicLong();
+    }
+
+    /**
+     * One request in flight and its outcome. The outcome is written before
+     * done is counted down, which makes it visible to the waiting threads.
+     */
+    private static class Flight
+    {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger  waiting = new AtomicInteger();
+        int         rc;
+        int         cicsRc;
+        String      abendCode;
+        byte[]      commarea;
+        int         commareaLength;
+        IOException failure;
+        boolean     isComplete = false;
+
+        void complete(ECIRequest eciRequest, int rc)
+        {
+            this.isComplete = true;
+            this.rc = rc;
+            this.cicsRc = eciRequest.Cics_Rc;
+            this.abendCode = eciRequest.Abend_Code;
+            this.commareaLength = eciRequest.Commarea_Length;
+            //Copied even if no one is waiting yet, as a request may be about to join
+            if (eciRequest.Commarea != null) {
+                this.commarea = java.util.Arrays.copyOf(eciRequest.Commarea,
+                                                        Math.max(0, Math.min(eciRequest.Commarea.length,
+                                                                             eciRequest.Commarea_Length)));
+            }
+        }
+    }
+}
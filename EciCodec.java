@@ -0,0 +1,311 @@
+/*
+*      File Name     : EciCodec.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : Converts COMMAREAs between Java characters and the
+*                      ASCII, IBM037 and IBM1047 code pages using 256 entry
+*                      translation tables, in place of String.getBytes and
+*                      new String with a code page name.
+*
+*                      The encode and decode methods write into a byte[],
+*                      char[] or CharBuffer supplied by the caller and do
+*                      not allocate. Each character converts to exactly one
+*                      byte; characters the code page cannot represent
+*                      become the substitute character 0x3F, as the JDK
+*                      encoders do.
+*/
+
+//package com.ibm.ctg.samples.eci;
+
+import java.io.*;
+import java.nio.BufferOverflowException;
+import java.nio.CharBuffer;
+
+public final class EciCodec
+{
+    //Characters for each byte 0x00 to 0xFF, generated from the JDK charsets
+    private static final String IBM037_CHARS =
+          "\u0000\u0001\u0002\u0003\u009C\u0009\u0086\u007F"
+        + "\u0097\u008D\u008E\u000B\u000C\r\u000E\u000F"
+        + "\u0010\u0011\u0012\u0013\u009D\n\u0008\u0087"
+        + "\u0018\u0019\u0092\u008F\u001C\u001D\u001E\u001F"
+        + "\u0080\u0081\u0082\u0083\u0084\n\u0017\u001B"
+        + "\u0088\u0089\u008A\u008B\u008C\u0005\u0006\u0007"
+        + "\u0090\u0091\u0016\u0093\u0094\u0095\u0096\u0004"
+        + "\u0098\u0099\u009A\u009B\u0014\u0015\u009E\u001A"
+        + "\u0020\u00A0\u00E2\u00E4\u00E0\u00E1\u00E3\u00E5"
+        + "\u00E7\u00F1\u00A2\u002E\u003C\u0028\u002B\u007C"
+        + "\u0026\u00E9\u00EA\u00EB\u00E8\u00ED\u00EE\u00EF"
+        + "\u00EC\u00DF\u0021\u0024\u002A\u0029\u003B\u00AC"
+        + "\u002D\u002F\u00C2\u00C4\u00C0\u00C1\u00C3\u00C5"
+        + "\u00C7\u00D1\u00A6\u002C\u0025\u005F\u003E\u003F"
+        + "\u00F8\u00C9\u00CA\u00CB\u00C8\u00CD\u00CE\u00CF"
+        + "\u00CC\u0060\u003A\u0023\u0040\u0027\u003D\""
+        + "\u00D8\u0061\u0062\u0063\u0064\u0065\u0066\u0067"
+        + "\u0068\u0069\u00AB\u00BB\u00F0\u00FD\u00FE\u00B1"
+        + "\u00B0\u006A\u006B\u006C\u006D\u006E\u006F\u0070"
+        + "\u0071\u0072\u00AA\u00BA\u00E6\u00B8\u00C6\u00A4"
+        + "\u00B5\u007E\u0073\u0074\u0075\u0076\u0077\u0078"
+        + "\u0079\u007A\u00A1\u00BF\u00D0\u00DD\u00DE\u00AE"
+        + "\u005E\u00A3\u00A5\u00B7\u00A9\u00A7\u00B6\u00BC"
+        + "\u00BD\u00BE\u005B\u005D\u00AF\u00A8\u00B4\u00D7"
+        + "\u007B\u0041\u0042\u0043\u0044\u0045\u0046\u0047"
+        + "\u0048\u0049\u00AD\u00F4\u00F6\u00F2\u00F3\u00F5"
+        + "\u007D\u004A\u004B\u004C\u004D\u004E\u004F\u0050"
+        + "\u0051\u0052\u00B9\u00FB\u00FC\u00F9\u00FA\u00FF"
+        + "\\\u00F7\u0053\u0054\u0055\u0056\u0057\u0058"
+        + "\u0059\u005A\u00B2\u00D4\u00D6\u00D2\u00D3\u00D5"
+        + "\u0030\u0031\u0032\u0033\u0034\u0035\u0036\u0037"
+        + "\u0038\u0039\u00B3\u00DB\u00DC\u00D9\u00DA\u009F";
+
+    private static final String IBM1047_CHARS =
+          "\u0000\u0001\u0002\u0003\u009C\u0009\u0086\u007F"
+        + "\u0097\u008D\u008E\u000B\u000C\r\u000E\u000F"
+        + "\u0010\u0011\u0012\u0013\u009D\n\u0008\u0087"
+        + "\u0018\u0019\u0092\u008F\u001C\u001D\u001E\u001F"
+        + "\u0080\u0081\u0082\u0083\u0084\u0085\u0017\u001B"
+        + "\u0088\u0089\u008A\u008B\u008C\u0005\u0006\u0007"
+        + "\u0090\u0091\u0016\u0093\u0094\u0095\u0096\u0004"
+        + "\u0098\u0099\u009A\u009B\u0014\u0015\u009E\u001A"
+        + "\u0020\u00A0\u00E2\u00E4\u00E0\u00E1\u00E3\u00E5"
+        + "\u00E7\u00F1\u00A2\u002E\u003C\u0028\u002B\u007C"
+        + "\u0026\u00E9\u00EA\u00EB\u00E8\u00ED\u00EE\u00EF"
+        + "\u00EC\u00DF\u0021\u0024\u002A\u0029\u003B\u005E"
+        + "\u002D\u002F\u00C2\u00C4\u00C0\u00C1\u00C3\u00C5"
+        + "\u00C7\u00D1\u00A6\u002C\u0025\u005F\u003E\u003F"
+        + "\u00F8\u00C9\u00CA\u00CB\u00C8\u00CD\u00CE\u00CF"
+        + "\u00CC\u0060\u003A\u0023\u0040\u0027\u003D\""
+        + "\u00D8\u0061\u0062\u0063\u0064\u0065\u0066\u0067"
+        + "\u0068\u0069\u00AB\u00BB\u00F0\u00FD\u00FE\u00B1"
+        + "\u00B0\u006A\u006B\u006C\u006D\u006E\u006F\u0070"
+        + "\u0071\u0072\u00AA\u00BA\u00E6\u00B8\u00C6\u00A4"
+        + "\u00B5\u007E\u0073\u0074\u0075\u0076\u0077\u0078"
+        + "\u0079\u007A\u00A1\u00BF\u00D0\u005B\u00DE\u00AE"
+        + "\u00AC\u00A3\u00A5\u00B7\u00A9\u00A7\u00B6\u00BC"
+        + "\u00BD\u00BE\u00DD\u00A8\u00AF\u005D\u00B4\u00D7"
+        + "\u007B\u0041\u0042\u0043\u0044\u0045\u0046\u0047"
+        + "\u0048\u0049\u00AD\u00F4\u00F6\u00F2\u00F3\u00F5"
+        + "\u007D\u004A\u004B\u004C\u004D\u004E\u004F\u0050"
+        + "\u0051\u0052\u00B9\u00FB\u00FC\u00F9\u00FA\u00FF"
+        + "\\\u00F7\u0053\u0054\u0055\u0056\u0057\u0058"
+        + "\u0059\u005A\u00B2\u00D4\u00D6\u00D2\u00D3\u00D5"
+        + "\u0030\u0031\u0032\u0033\u0034\u0035\u0036\u0037"
+        + "\u0038\u0039\u00B3\u00DB\u00DC\u00D9\u00DA\u009F";
+    //Byte for characters the code page cannot represent
+    private static final byte SUBSTITUTE = 0x3F;
+
+    public static final EciCodec ASCII   = new EciCodec("ASCII", asciiChars());
+    public static final EciCodec IBM037  = new EciCodec("IBM037", IBM037_CHARS.toCharArray());
+    public static final EciCodec IBM1047 = new EciCodec("IBM1047", IBM1047_CHARS.toCharArray());
+
+    static {
+        //The JDK IBM037 decodes 0x15 as LF rather than NEL, but still
+        //encodes NEL to 0x15
+        IBM037.toByte[0x85] = 0x15;
+    }
+
+    private final String name;
+    private final char[] toChar = new char[256];
+    private final byte[] toByte = new byte[256];
+
+
+    private EciCodec(String name, char[] chars)
+    {
+        this.name = name;
+        java.util.Arrays.fill(toByte, SUBSTITUTE);
+        for (int b = 0; b < 256; b++) {
+            toChar[b] = chars[b];
+            //Where two bytes give the same character, encode to the first
+            if (chars[b] < 256 && toByte[chars[b]] == SUBSTITUTE && b != SUBSTITUTE) {
+                toByte[chars[b]] = (byte) b;
+            }
+        }
+    }
+
+    private static char[] asciiChars()
+    {
+        char[] chars = new char[256];
+        for (int b = 0; b < 256; b++) {
+            chars[b] = (b < 128) ? (char) b : '\uFFFD';
+        }
+        return chars;
+    }
+
+    /**
+     * Gets the codec for a code page name
+     *
+     * @param name  ASCII, US-ASCII, IBM037, CP037, IBM1047 or CP1047
+     * @throws UnsupportedEncodingException if there is no codec for it
+     */
+    public static EciCodec forName(String name) throws UnsupportedEncodingException
+    {
+        switch (name.toUpperCase()) {
+        case "ASCII":
+        case "US-ASCII":
+            return ASCII;
+        case "IBM037":
+        case "IBM-037":
+        case "CP037":
+            return IBM037;
+        case "IBM1047":
+        case "IBM-1047":
+        case "CP1047":
+            return IBM1047;
+        default:
+            throw new UnsupportedEncodingException(name);
+        }
+    }
+
+    /**
+     * @return the code page name
+     */
+    public String name()
+    {
+        return name;
+    }
+
+    /**
+     * Encodes one character
+     */
+    public byte encode(char c)
+    {
+        return (c > 0xff) ? SUBSTITUTE : toByte[c];
+    }
+
+    /**
+     * Decodes one byte
+     */
+    public char decode(byte b)
+    {
+        return toChar[b & 0xff];
+    }
+
+    /**
+     * Encodes characters into a byte array
+     *
+     * @param source        the characters to encode
+     * @param sourceOffset  index of the first character
+     * @param length        number of characters, which is also the number
+     *                      of bytes written
+     * @param dest          the array to write to
+     * @param destOffset    index of the first byte to write
+     * @return the number of bytes written
+     */
+    public int encode(CharSequence source, int sourceOffset, int length, byte[] dest, int destOffset)
+    {
+        if (destOffset < 0 || length > dest.length - destOffset) {
+            throw new ArrayIndexOutOfBoundsException("No room for " + length + " bytes at " + destOffset);
+        }
+        byte[] table = toByte;
+        int end = destOffset + length;
+        if (source instanceof String) {
+            String string = (String) source;
+            for (int i = sourceOffset, j = destOffset; j < end; i++, j++) {
+                char c = string.charAt(i);
+                dest[j] = table[c & 0xff];
+                if (c > 0xff) {
+                    dest[j] = SUBSTITUTE;
+                }
+            }
+        } else {
+            for (int i = sourceOffset, j = destOffset; j < end; i++, j++) {
+                char c = source.charAt(i);
+                dest[j] = table[c & 0xff];
+                if (c > 0xff) {
+                    dest[j] = SUBSTITUTE;
+                }
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Encodes as many characters as fit into a byte array
+     *
+     * @param source        the characters to encode
+     * @param dest          the array to write to
+     * @param destOffset    index of the first byte to write
+     * @return the number of bytes written
+     */
+    public int encode(CharSequence source, byte[] dest, int destOffset)
+    {
+        return encode(source, 0, Math.min(source.length(), dest.length - destOffset), dest, destOffset);
+    }
+
+    /**
+     * Encodes a string into a new byte array
+     */
+    public byte[] encode(String source)
+    {
+        byte[] bytes = new byte[source.length()];
+        encode(source, 0, bytes.length, bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * Decodes bytes into a char array
+     *
+     * @param source        the bytes to decode
+     * @param sourceOffset  index of the first byte
+     * @param length        number of bytes, which is also the number of
+     *                      characters written
+     * @param dest          the array to write to
+     * @param destOffset    index of the first character to write
+     * @return the number of characters written
+     */
+    public int decode(byte[] source, int sourceOffset, int length, char[] dest, int destOffset)
+    {
+        if (destOffset < 0 || length > dest.length - destOffset) {
+            throw new ArrayIndexOutOfBoundsException("No room for " + length + " characters at " + destOffset);
+        }
+        char[] table = toChar;
+        int end = destOffset + length;
+        for (int i = sourceOffset, j = destOffset; j < end; i++, j++) {
+            dest[j] = table[source[i] & 0xff];
+        }
+        return length;
+    }
+
+    /**
+     * Decodes bytes into a CharBuffer at its position, advancing it
+     *
+     * @param source        the bytes to decode
+     * @param sourceOffset  index of the first byte
+     * @param length        number of bytes to decode
+     * @param dest          the buffer to write to
+     * @return the number of characters written
+     * @throws BufferOverflowException if the buffer has too little room
+     */
+    public int decode(byte[] source, int sourceOffset, int length, CharBuffer dest)
+    {
+        if (length > dest.remaining()) {
+            throw new BufferOverflowException();
+        }
+        if (dest.hasArray()) {
+            decode(source, sourceOffset, length, dest.array(), dest.arrayOffset() + dest.position());
+            dest.position(dest.position() + length);
+        } else {
+            char[] table = toChar;
+            for (int i = 0; i < length; i++) {
+                dest.put(table[source[sourceOffset + i] & 0xff]);
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Decodes a byte array into a new string
+     */
+    public String decode(byte[] source)
+    {
+        char[] chars = new char[source.length];
+        decode(source, 0, source.length, chars, 0);
+        return new String(chars);
+    }
+
+    public String toString()
+    {
+        return name;
+    }
+}
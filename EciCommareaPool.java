@@ -0,0 +1,250 @@
+/*
+*      File Name     : EciCommareaPool.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : A thread-safe pool of COMMAREA buffers, so that
+*                      ECIRequests can be built without allocating a new
+*                      byte array for each call.
+*
+*                      Buffers are grouped into size classes, powers of two
+*                      from 64 bytes to 32KB, and a buffer may be larger
+*                      than the length asked for. Set Commarea_Length on the
+*                      ECIRequest to the length actually needed. Lengths
+*                      above 32KB are allocated and never pooled.
+*
+*                      Release a buffer once the reply in it has been used,
+*                      and do not touch it afterwards.
+*/
+
+//package com.ibm.ctg.samples.eci;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class EciCommareaPool
+{
+    public static final int MIN_SIZE = 64;
+    public static final int MAX_SIZE = 32 * 1024;
+
+    private final SizeClass[] sizeClasses;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder unpooled = new LongAdder();
+    private final LongAdder discards = new LongAdder();
+    private final LongAdder bytesReused = new LongAdder();
+    private final LongAdder bytesAllocated = new LongAdder();
+
+
+    /**
+     * @param maxPerClass   the most idle buffers kept in each size class,
+     *                      usually the number of threads building requests
+     */
+    public EciCommareaPool(int maxPerClass)
+    {
+        if (maxPerClass < 1) {
+            throw new IllegalArgumentException("maxPerClass must be at least 1");
+        }
+        int classes = Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1;
+        sizeClasses = new SizeClass[classes];
+        for (int i = 0; i < classes; i++) {
+            sizeClasses[i] = new SizeClass(MIN_SIZE << i, maxPerClass);
+        }
+    }
+
+    /**
+     * @return the size of buffer handed out for a length, or the length
+     *         itself if it is too large to pool
+     */
+    public static int classSize(int length)
+    {
+        if (length <= MIN_SIZE) {
+            return MIN_SIZE;
+        }
+        if (length > MAX_SIZE) {
+            return length;
+        }
+        return Integer.highestOneBit(length - 1) << 1;
+    }
+
+    /**
+     * Gets a buffer of at least the given length, with the first length
+     * bytes set to zero
+     *
+     * @param length    the COMMAREA length needed
+     */
+    public byte[] acquire(int length)
+    {
+        byte[] buffer = take(length);
+        Arrays.fill(buffer, 0, length, (byte) 0);
+        return buffer;
+    }
+
+    /**
+     * Gets a buffer holding a copy of a COMMAREA, for example one built
+     * once from the command line and sent on every call
+     *
+     * @param source    the COMMAREA to copy
+     */
+    public byte[] copyOf(byte[] source)
+    {
+        byte[] buffer = take(source.length);
+        System.arraycopy(source, 0, buffer, 0, source.length);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers that did not come from a pool,
+     * or that would take a size class over its limit, are left for the
+     * garbage collector.
+     *
+     * @param buffer    the buffer, or null
+     */
+    public void release(byte[] buffer)
+    {
+        if (buffer == null) {
+            return;
+        }
+        SizeClass sizeClass = sizeClassOf(buffer.length);
+        if (sizeClass == null || sizeClass.size != buffer.length) {
+            return;
+        }
+        if (!sizeClass.push(buffer)) {
+            discards.increment();
+        }
+    }
+
+    private byte[] take(int length)
+    {
+        SizeClass sizeClass = sizeClassOf(length);
+        if (sizeClass == null) {
+            unpooled.increment();
+            bytesAllocated.add(length);
+            return new byte[length];
+        }
+        byte[] buffer = sizeClass.pop();
+        if (buffer != null) {
+            hits.increment();
+            bytesReused.add(buffer.length);
+            return buffer;
+        }
+        misses.increment();
+        bytesAllocated.add(sizeClass.size);
+        return new byte[sizeClass.size];
+    }
+
+    private SizeClass sizeClassOf(int length)
+    {
+        if (length > MAX_SIZE) {
+            return null;
+        }
+        return sizeClasses[Integer.numberOfTrailingZeros(classSize(length) / MIN_SIZE)];
+    }
+
+    /**
+     * @return the fraction of buffers handed out that were reused
+     */
+    public double getHitRate()
+    {
+        long reused = hits.sum();
+        long total = reused + misses.sum() + unpooled.sum();
+        return (total == 0) ? 0 : (double) reused / total;
+    }
+
+    /**
+     * @return the bytes the pool has avoided allocating by reusing buffers
+     */
+    public long getBytesReused()
+    {
+        return bytesReused.sum();
+    }
+
+    /**
+     * @return the number of idle buffers held
+     */
+    public int getIdle()
+    {
+        int idle = 0;
+        for (SizeClass sizeClass : sizeClasses) {
+            idle += sizeClass.count();
+        }
+        return idle;
+    }
+
+    /**
+     * @return a one line summary of the pool's activity
+     */
+    public String getStatistics()
+    {
+        return String.format("hitRate=%.1f%% hits=%d misses=%d unpooled=%d discards=%d idle=%d"
+                             + " reused=%.1fMB allocated=%.1fMB",
+                             getHitRate() * 100, hits.sum(), misses.sum(), unpooled.sum(),
+                             discards.sum(), getIdle(),
+                             bytesReused.sum() / 1048576.0, bytesAllocated.sum() / 1048576.0);
+    }
+
+    public String toString()
+    {
+        return "EciCommareaPool[" + getStatistics() + "]";
+    }
+
+
+    /**
+     * The idle buffers of one size, held in an array so that pooling does
+     * not itself allocate
+     */
+    private static class SizeClass
+    {
+        final int size;
+        private final byte[][] idle;
+        private int count = 0;
+        private final ReentrantLock lock = new ReentrantLock();
+
+        SizeClass(int size, int maxIdle)
+        {
+            this.size = size;
+            this.idle = new byte[maxIdle][];
+        }
+
+        byte[] pop()
+        {
+            lock.lock();
+            try {
+                if (count == 0) {
+                    return null;
+                }
+                byte[] buffer = idle[--count];
+                idle[count] = null;
+                return buffer;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean push(byte[] buffer)
+        {
+            lock.lock();
+            try {
+                if (count == idle.length) {
+                    return false;
+                }
+                idle[count++] = buffer;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int count()
+        {
+            lock.lock();
+            try {
+                return count;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
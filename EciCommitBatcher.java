@@ -0,0 +1,338 @@
+/*
+*      File Name     : EciCommitBatcher.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : Groups independent non-extended requests into one
+*                      extended LUW with a single commit, so a bulk load
+*                      pays for one syncpoint per batch instead of one per
+*                      request.
+*
+*                      Requests from any number of threads are collected
+*                      until the batch holds the most requests allowed or
+*                      the first of them has waited the most time allowed.
+*                      The thread whose request opened the batch then flows
+*                      them all as one LUW over a single connection and
+*                      commits it, while the other callers wait for the
+*                      outcome. Requests for different servers or userids
+*                      are batched separately, as an LUW is with one server
+*                      for one user.
+*
+*                      If any request in a batch, or the commit, returns a
+*                      non-zero return code, the LUW is backed out and each
+*                      request is flowed again on its own with its original
+*                      COMMAREA, so each caller gets the result of its
+*                      request run on its own, as without batching. A
+*                      failing request costs its batch the saving, so
+*                      batching suits loads where failures are rare.
+*
+*                      If a call or the commit throws an exception, or the
+*                      commit times out, CICS may have committed the batch
+*                      before the reply was lost. Flowing the requests again
+*                      could then run them twice, so instead each caller is
+*                      given an IOException saying the outcome is unknown.
+*
+*                      Only use batching where the requests do not need to
+*                      be atomic on their own: until the batch commits, an
+*                      update is not visible to others, and its locks are
+*                      held for the whole batch.
+*/
+
+//package com.ibm.ctg.samples.eci;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import com.ibm.ctg.client.*;
+
+public class EciCommitBatcher implements EciFlow
+{
+    //How a batch run as an LUW ended
+    private enum Outcome { COMMITTED, BACKED_OUT, UNKNOWN }
+
+    private final EciLuwManager luwManager;
+    private final EciFlow single;
+    private final int maxBatch;
+    private final long maxWaitNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition sealed = lock.newCondition();
+    //Batches still being filled, by server and userid. Guarded by lock.
+    private final Map<String, Batch> filling = new HashMap<String, Batch>();
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong batched = new AtomicLong();
+    private final AtomicLong committed = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+    private final AtomicLong unknown = new AtomicLong();
+    private final AtomicLong passedThrough = new AtomicLong();
+
+
+    /**
+     * @param luwManager    runs each batch as an LUW on its own connection
+     * @param single        flows requests one at a time, when a batch fails
+     *                      and for requests that cannot be batched
+     * @param maxBatch      the most requests in a batch
+     * @param maxWaitMillis the longest the first request of a batch waits
+     *                      for others to join it
+     */
+    public EciCommitBatcher(EciLuwManager luwManager, EciFlow single, int maxBatch, long maxWaitMillis)
+    {
+        if (maxBatch < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.luwManager = luwManager;
+        this.single = single;
+        this.maxBatch = maxBatch;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    }
+
+    /**
+     * Adds a request to a batch and waits for the batch to be committed.
+     * Extended, asynchronous and channel requests are flowed on their own
+     * straight away.
+     *
+     * @return the request's return code, as it would have been unbatched
+     */
+    public int flow(ECIRequest eciRequest) throws IOException
+    {
+        if (eciRequest.Extend_Mode != ECIRequest.ECI_NO_EXTEND
+            || eciRequest.Luw_Token != ECIRequest.ECI_LUW_NEW
+            || eciRequest.Call_Type == ECIRequest.ECI_ASYNC
+            || eciRequest.hasChannel()) {
+            passedThrough.incrementAndGet();
+            return single.flow(eciRequest);
+        }
+
+        Entry entry = new Entry(eciRequest);
+        String key = eciRequest.Server + "\0" + eciRequest.Userid;
+        Batch batch;
+        boolean leader = false;
+
+        lock.lock();
+        try {
+            batch = filling.get(key);
+            if (batch == null) {
+                batch = new Batch(System.nanoTime() + maxWaitNanos);
+                filling.put(key, batch);
+                leader = true;
+            }
+            batch.entries.add(entry);
+            if (batch.entries.size() >= maxBatch) {
+                filling.remove(key);
+                batch.isSealed = true;
+                sealed.signalAll();
+            }
+
+            //The first caller waits for the batch to fill or its time to run out
+            if (leader) {
+                long remaining;
+                while (!batch.isSealed && (remaining = batch.deadlineNanos - System.nanoTime()) > 0) {
+                    try {
+                        sealed.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                if (!batch.isSealed) {
+                    filling.remove(key);
+                    batch.isSealed = true;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (leader) {
+            run(batch);
+        } else {
+            try {
+                batch.done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a batch to commit");
+            }
+        }
+
+        if (entry.failure != null) {
+            throw entry.failure;
+        }
+        return entry.rc;
+    }
+
+    /**
+     * @return a one line summary of the batches committed and replayed
+     */
+    public String getStatistics()
+    {
+        long count = batches.get();
+        return "batches=" + count + " requests=" + batched.get()
+               + String.format(" avgSize=%.1f", (count == 0) ? 0.0 : batched.get() / (double) count)
+               + " committed=" + committed.get() + " fallbacks=" + fallbacks.get()
+               + " unknown=" + unknown.get()
+               + " unbatched=" + passedThrough.get();
+    }
+
+    /**
+     * Flows a batch as one LUW, or each request on its own if that fails
+     */
+    private void run(Batch batch)
+    {
+        batches.incrementAndGet();
+        batched.addAndGet(batch.entries.size());
+        try {
+            Outcome outcome = runAsLuw(batch);
+            if (outcome == Outcome.COMMITTED) {
+                committed.incrementAndGet();
+            } else if (outcome == Outcome.UNKNOWN) {
+                unknown.incrementAndGet();
+                for (Entry entry : batch.entries) {
+                    entry.request.Extend_Mode = ECIRequest.ECI_NO_EXTEND;
+                    entry.request.Luw_Token = ECIRequest.ECI_LUW_NEW;
+                    entry.failure = new IOException("Outcome of commit batch unknown, so the request was not"
+                                                    + " flowed again: " + batch.unknownCause.getMessage(),
+                                                    batch.unknownCause);
+                }
+            } else {
+                fallbacks.incrementAndGet();
+                for (Entry entry : batch.entries) {
+                    entry.restore();
+                    try {
+                        entry.rc = single.flow(entry.request);
+                    } catch (IOException e) {
+                        entry.failure = e;
+                    } catch (RuntimeException e) {
+                        entry.failure = new IOException(e);
+                    }
+                }
+            }
+        } finally {
+            batch.done.countDown();
+        }
+    }
+
+    /**
+     * Flows a batch as one LUW and commits it
+     *
+     * @return COMMITTED if every request ran and the LUW was committed,
+     *         BACKED_OUT if a request or the commit returned an error, so
+     *         nothing was committed, or UNKNOWN with the reason in the
+     *         batch's unknownCause
+     */
+    private Outcome runAsLuw(Batch batch)
+    {
+        EciLuwManager.Luw luw;
+        try {
+            luw = luwManager.begin();
+        } catch (IOException | RuntimeException e) {
+            //Nothing has been flowed, so the requests can be flowed on their own
+            return Outcome.BACKED_OUT;
+        }
+        try {
+            ECIRequest last = null;
+            for (Entry entry : batch.entries) {
+                ECIRequest request = entry.request;
+                request.Extend_Mode = ECIRequest.ECI_EXTENDED;
+                request.Luw_Token = luw.getLuwToken();
+                int rc = luw.flow(request);
+                if (rc != ECIRequest.ECI_NO_ERROR) {
+                    //Closing the Luw backs out whatever has run
+                    return Outcome.BACKED_OUT;
+                }
+                entry.rc = rc;
+                last = request;
+            }
+
+            ECIRequest commit = new ECIRequest();
+            commit.Call_Type = ECIRequest.ECI_SYNC;
+            commit.Extend_Mode = ECIRequest.ECI_COMMIT;
+            commit.Luw_Token = luw.getLuwToken();
+            commit.Server = last.Server;
+            commit.Userid = last.Userid;
+            commit.Password = last.Password;
+            int rc = luw.flow(commit);
+            if (rc == ECIRequest.ECI_ERR_RESPONSE_TIMEOUT || rc == ECIRequest.ECI_ERR_CICS_DIED) {
+                batch.unknownCause = new IOException("commit returned " + rc);
+                return Outcome.UNKNOWN;
+            }
+            if (rc != ECIRequest.ECI_NO_ERROR) {
+                return Outcome.BACKED_OUT;
+            }
+
+            //Hand each request back as it was given, with its reply
+            for (Entry entry : batch.entries) {
+                entry.request.Extend_Mode = ECIRequest.ECI_NO_EXTEND;
+                entry.request.Luw_Token = ECIRequest.ECI_LUW_NEW;
+            }
+            return Outcome.COMMITTED;
+        } catch (IOException | RuntimeException e) {
+            batch.unknownCause = (e instanceof IOException) ? (IOException) e : new IOException(e);
+            return Outcome.UNKNOWN;
+        } finally {
+            luw.close();
+        }
+    }
+
+
+    /**
+     * Requests to be committed together
+     */
+    private static class Batch
+    {
+        final List<Entry>    entries = new ArrayList<Entry>();
+        final long           deadlineNanos;
+        final CountDownLatch done = new CountDownLatch(1);
+        //Guarded by the batcher's lock
+        boolean isSealed = false;
+        //Only used by the thread running the batch
+        IOException unknownCause;
+
+        Batch(long deadlineNanos)
+        {
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+
+    /**
+     * One request in a batch, with a copy of its COMMAREA to flow again
+     * from if the batch is backed out
+     */
+    private static class Entry
+    {
+        final ECIRequest request;
+        final byte[]     commarea;
+        final int        commareaLength;
+        int         rc;
+        IOException failure;
+
+        Entry(ECIRequest request)
+        {
+            this.request = request;
+            //CICS only writes within the COMMAREA length, so only that much is kept
+            this.commarea = (request.Commarea == null) ? null
+                          : java.util.Arrays.copyOf(request.Commarea,
+                                                    Math.min(request.Commarea.length, request.Commarea_Length));
+            this.commareaLength = request.Commarea_Length;
+        }
+
+        void restore()
+        {
+            if (commarea != null) {
+                System.arraycopy(commarea, 0, request.Commarea, 0, commarea.length);
+            }
+            request.Commarea_Length = commareaLength;
+            request.Extend_Mode = ECIRequest.ECI_NO_EXTEND;
+            request.Luw_Token = ECIRequest.ECI_LUW_NEW;
+            request.Cics_Rc = 0;
+            request.Abend_Code = null;
+        }
+    }
+}
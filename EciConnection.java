@@ -0,0 +1,69 @@
+/*
+*      File Name     : EciConnection.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : An open connection to a Gateway daemon. Wraps a
+*                      JavaGateway so that connections can be pooled and
+*                      flowed through alongside other EciFlow
+*                      implementations.
+*/
+
+//package com.ibm.ctg.samples.eci;
+
+import java.io.*;
+import com.ibm.ctg.client.*;
+
+public interface EciConnection extends EciFlow
+{
+    /**
+     * Flows a request asynchronously. The callback is given the results and
+     * run when the reply arrives.
+     *
+     * @param eciRequest    the request to flow
+     * @param callback      handles the reply
+     * @return the return code of submitting the request
+     */
+    default int flowAsync(ECIRequest eciRequest, Callbackable callback) throws IOException
+    {
+        eciRequest.Call_Type = ECIRequest.ECI_ASYNC;
+        eciRequest.setCallback(callback);
+        return flow(eciRequest);
+    }
+
+    /**
+     * @return true if the connection is still open
+     */
+    boolean isOpen();
+
+    /**
+     * Closes the connection to the Gateway daemon
+     */
+    void close() throws IOException;
+
+    /**
+     * Wraps an open JavaGateway as an EciConnection
+     *
+     * @param javaGateway   the gateway to wrap
+     */
+    static EciConnection of(final JavaGateway javaGateway)
+    {
+        return new EciConnection() {
+            public int flow(ECIRequest eciRequest) throws IOException {
+                return javaGateway.flow(eciRequest);
+            }
+
+            public boolean isOpen() {
+                return javaGateway.isOpen();
+            }
+
+            public void close() throws IOException {
+                javaGateway.close();
+            }
+
+            public String toString() {
+                return javaGateway.getURL();
+            }
+        };
+    }
+}
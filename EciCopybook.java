@@ -0,0 +1,1229 @@
+/*
+*      File Name     : EciCopybook.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : Generates a COMMAREA layout class from a COBOL
+*                      copybook. The class extends EciRecord and has a get
+*                      and set method for each field, which read and write
+*                      the field in place in the COMMAREA, so a reply can be
+*                      read without building Strings from it.
+*
+*                      Supported:
+*                        levels 01 to 49 and 77, FILLER, REDEFINES
+*                        OCCURS, including nested, and OCCURS DEPENDING ON
+*                          at its largest size
+*                        PIC X and A, and numeric edited pictures, as text
+*                        PIC 9 with S and V as DISPLAY, COMP, COMP-4,
+*                          COMP-5, BINARY, COMP-3 and PACKED-DECIMAL, up to
+*                          18 digits
+*                        USAGE given on a group
+*                        VALUE, used by the generated initialize method
+*                        88 levels, as is and set methods
+*
+*                      Not supported, and reported as errors: COPY, 66
+*                      levels, PIC N, P scaling, COMP-1, COMP-2, POINTER,
+*                      INDEX and separate or leading signs. SYNCHRONIZED
+*                      and JUSTIFIED are ignored with a warning, so a
+*                      layout relying on slack bytes must add them as
+*                      FILLER.
+*
+*                      Usage:
+*                        java EciCopybook copybook=ec01.cpy class=Ec01Commarea
+*                                         [record=EC01-COMMAREA] [dir=.]
+*/
+
+//package com.ibm.ctg.samples.eci;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class EciCopybook
+{
+    //Kinds of data item
+    enum Kind { GROUP, TEXT, ZONED, PACKED, BINARY, NATIVE_BINARY }
+
+    //Words that start a clause, so end a list of names or literals
+    private static final Set<String> CLAUSE_WORDS = new HashSet<String>(Arrays.asList(
+        "PIC", "PICTURE", "USAGE", "OCCURS", "REDEFINES", "VALUE", "VALUES", "SIGN",
+        "SYNC", "SYNCHRONIZED", "JUST", "JUSTIFIED", "BLANK", "INDEXED", "ASCENDING",
+        "DESCENDING", "GLOBAL", "EXTERNAL", "DISPLAY", "BINARY", "PACKED-DECIMAL",
+        "COMP", "COMP-1", "COMP-2", "COMP-3", "COMP-4", "COMP-5",
+        "COMPUTATIONAL", "COMPUTATIONAL-1", "COMPUTATIONAL-2", "COMPUTATIONAL-3",
+        "COMPUTATIONAL-4", "COMPUTATIONAL-5", "POINTER", "INDEX", "NATIONAL"));
+
+    /**
+     * A data item, or an 88 level condition, from the copybook
+     */
+    static class Item
+    {
+        final int    level;
+        final String name;
+        final int    line;
+        Item         parent;
+        final List<Item> children = new ArrayList<Item>();
+        final List<Item> conditions = new ArrayList<Item>();
+
+        String picture;
+        String usage;
+        int    occurs = 1;
+        String redefines;
+        //VALUE literals; for an 88 level, pairs of low and high values
+        final List<String> values = new ArrayList<String>();
+
+        Kind    kind;
+        boolean signed;
+        int     digits;
+        int     scale;
+        int     size;
+        int     offset;
+        String  javaName;
+        String  constantName;
+
+        Item(int level, String name, int line)
+        {
+            this.level = level;
+            this.name = name;
+            this.line = line;
+        }
+
+        boolean isFiller()
+        {
+            return name == null;
+        }
+
+        boolean isNumeric()
+        {
+            return kind == Kind.ZONED || kind == Kind.PACKED || kind == Kind.BINARY
+                   || kind == Kind.NATIVE_BINARY;
+        }
+    }
+
+    private final List<Item> records = new ArrayList<Item>();
+    private final List<String> warnings = new ArrayList<String>();
+    private int fillers = 0;
+
+
+    /**
+     * Program entry point
+     *
+     * @param args  command line arguments passed to the program
+     */
+    public static void main(String[] args)
+    {
+        String copybook = null;
+        String className = null;
+        String recordName = null;
+        String dir = ".";
+        boolean showHelp = (args.length == 0);
+
+        for (String arg : args) {
+            String upper = arg.toUpperCase();
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (upper.startsWith("COPYBOOK=")) {
+                copybook = value;
+            } else if (upper.startsWith("CLASS=")) {
+                className = value;
+            } else if (upper.startsWith("RECORD=")) {
+                recordName = value;
+            } else if (upper.startsWith("DIR=")) {
+                dir = value;
+            } else {
+                System.out.println("Error - unrecognised argument: " + arg);
+                showHelp = true;
+            }
+        }
+        if (copybook == null || className == null) {
+            showHelp = true;
+        }
+
+        if (showHelp) {
+            System.out.println();
+            System.out.println("Usage: java EciCopybook copybook=file class=ClassName");
+            System.out.println("                        [record=record_name]");
+            System.out.println("                        [dir=output_directory]");
+            System.out.println();
+            System.out.println("Writes ClassName.java, a layout of the record for reading and writing");
+            System.out.println("its fields in place in a COMMAREA. The first 01 level is used unless");
+            System.out.println("record is given.");
+            return;
+        }
+
+        EciCopybook generator = new EciCopybook();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(copybook),
+                                                                          StandardCharsets.UTF_8))) {
+            generator.parse(in);
+            Item record = generator.select(recordName);
+            generator.layout(record);
+            String source = generator.generate(record, className, new File(copybook).getName());
+
+            File output = new File(dir, className + ".java");
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8)) {
+                out.write(source);
+            }
+            for (String warning : generator.warnings) {
+                System.out.println("Warning - " + warning);
+            }
+            System.out.println("Wrote " + output + " for " + record.name + ", " + record.size + " bytes");
+        } catch (IOException e) {
+            System.out.println("Error - cannot read or write: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error - " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the data items of a copybook
+     *
+     * @throws IllegalArgumentException if the copybook uses something that
+     *         is not supported, giving the line
+     */
+    public void parse(BufferedReader in) throws IOException
+    {
+        List<String> lines = new ArrayList<String>();
+        String line;
+        while ((line = in.readLine()) != null) {
+            lines.add(line);
+        }
+        boolean fixed = isFixedFormat(lines);
+
+        Deque<Item> open = new ArrayDeque<Item>();
+        Item last = null;
+        StringBuilder statement = new StringBuilder();
+        int statementLine = 0;
+        for (int number = 1; number <= lines.size(); number++) {
+            String text = sourceText(lines.get(number - 1), fixed);
+            if (text == null) {
+                continue;
+            }
+            char quote = 0;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (quote != 0) {
+                    if (c == quote) {
+                        quote = 0;
+                    }
+                } else if (c == '\'' || c == '"') {
+                    quote = c;
+                } else if (c == '.' && (i + 1 == text.length() || Character.isWhitespace(text.charAt(i + 1)))) {
+                    last = addItem(statement.toString(), statementLine, open, last);
+                    statement.setLength(0);
+                    continue;
+                }
+                if (statement.length() == 0) {
+                    if (Character.isWhitespace(c)) {
+                        continue;
+                    }
+                    statementLine = number;
+                }
+                statement.append(c);
+            }
+            if (statement.length() > 0) {
+                statement.append(' ');
+            }
+        }
+        if (statement.length() > 0) {
+            throw new IllegalArgumentException("Line " + statementLine + ": no full stop after the last item");
+        }
+        if (records.isEmpty()) {
+            throw new IllegalArgumentException("No data items found");
+        }
+    }
+
+    /**
+     * Picks the record to generate a layout for
+     */
+    Item select(String recordName)
+    {
+        if (recordName == null) {
+            if (records.size() > 1) {
+                warnings.add("the copybook has " + records.size() + " records; using " + records.get(0).name);
+            }
+            return records.get(0);
+        }
+        for (Item record : records) {
+            if (recordName.equalsIgnoreCase(record.name)) {
+                return record;
+            }
+        }
+        throw new IllegalArgumentException("No record called " + recordName);
+    }
+
+    /**
+     * Fixed format copybooks have a sequence number or spaces in columns 1
+     * to 6 and an indicator in column 7
+     */
+    private static boolean isFixedFormat(List<String> lines)
+    {
+        for (String line : lines) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            if (line.length() < 7) {
+                return false;
+            }
+            String sequence = line.substring(0, 6);
+            if (!sequence.trim().isEmpty() && !sequence.matches("[0-9]{6}")) {
+                return false;
+            }
+            if (" *-/Dd".indexOf(line.charAt(6)) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the COBOL text of a line, or null for a comment or blank line
+     */
+    private static String sourceText(String line, boolean fixed)
+    {
+        String text;
+        if (fixed) {
+            if (line.length() < 8 || "*/Dd".indexOf(line.charAt(6)) >= 0) {
+                return null;
+            }
+            text = line.substring(7, Math.min(line.length(), 72));
+        } else {
+            text = line.trim();
+            if (text.startsWith("*")) {
+                return null;
+            }
+        }
+        int comment = text.indexOf("*>");
+        if (comment >= 0) {
+            text = text.substring(0, comment);
+        }
+        return text.trim().isEmpty() ? null : text;
+    }
+
+    /**
+     * Splits a statement into words, keeping quoted literals whole.
+     * Commas and semicolons followed by a space separate words, as in COBOL.
+     */
+    private static List<String> words(String statement)
+    {
+        List<String> words = new ArrayList<String>();
+        StringBuilder word = new StringBuilder();
+        char quote = 0;
+        for (int i = 0; i < statement.length(); i++) {
+            char c = statement.charAt(i);
+            if (quote != 0) {
+                word.append(c);
+                if (c == quote) {
+                    quote = 0;
+                }
+                continue;
+            }
+            boolean separator = Character.isWhitespace(c)
+                || ((c == ',' || c == ';')
+                    && (i + 1 == statement.length() || Character.isWhitespace(statement.charAt(i + 1))));
+            if (separator) {
+                if (word.length() > 0) {
+                    words.add(word.toString());
+                    word.setLength(0);
+                }
+                continue;
+            }
+            if (c == '\'' || c == '"') {
+                quote = c;
+            }
+            word.append(c);
+        }
+        if (word.length() > 0) {
+            words.add(word.toString());
+        }
+        return words;
+    }
+
+    /**
+     * Parses one data description entry and places it under its parent
+     *
+     * @return the item, or the last data item for an 88 level
+     */
+    private Item addItem(String statement, int line, Deque<Item> open, Item last)
+    {
+        List<String> words = words(statement);
+        if (words.isEmpty()) {
+            return last;
+        }
+        String first = words.get(0).toUpperCase();
+        if (first.equals("COPY") || first.equals("REPLACE") || first.equals("EXEC")) {
+            throw new IllegalArgumentException("Line " + line + ": " + first
+                                               + " is not supported; expand the copybook first");
+        }
+        int level;
+        try {
+            level = Integer.parseInt(first);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Line " + line + ": expected a level number, found " + words.get(0));
+        }
+        if (level == 66) {
+            throw new IllegalArgumentException("Line " + line + ": 66 level RENAMES is not supported");
+        }
+        if (level != 77 && level != 88 && (level < 1 || level > 49)) {
+            throw new IllegalArgumentException("Line " + line + ": bad level number " + level);
+        }
+
+        int next = 1;
+        String name = null;
+        if (next < words.size() && !CLAUSE_WORDS.contains(words.get(next).toUpperCase())) {
+            name = words.get(next++).toUpperCase();
+            if (name.equals("FILLER")) {
+                name = null;
+            }
+        }
+        if (name == null && level == 88) {
+            throw new IllegalArgumentException("Line " + line + ": an 88 level needs a name");
+        }
+        Item item = new Item(level, name, line);
+        parseClauses(item, words, next);
+
+        if (level == 88) {
+            if (last == null) {
+                throw new IllegalArgumentException("Line " + line + ": 88 level with no data item");
+            }
+            item.parent = last;
+            last.conditions.add(item);
+            return last;
+        }
+
+        if (level == 1 || level == 77) {
+            open.clear();
+        } else {
+            while (!open.isEmpty() && open.peek().level >= level) {
+                open.pop();
+            }
+        }
+        if (open.isEmpty()) {
+            records.add(item);
+        } else {
+            item.parent = open.peek();
+            if (item.parent.picture != null) {
+                throw new IllegalArgumentException("Line " + line + ": " + item.parent.name
+                                                   + " has a PIC so cannot have subordinate items");
+            }
+            item.parent.children.add(item);
+        }
+        open.push(item);
+        return item;
+    }
+
+    private void parseClauses(Item item, List<String> words, int next)
+    {
+        String where = "Line " + item.line + ": ";
+        while (next < words.size()) {
+            String word = words.get(next++).toUpperCase();
+            switch (word) {
+                case "PIC":
+                case "PICTURE":
+                    next = skip(words, next, "IS");
+                    item.picture = requireWord(words, next++, where + "PIC needs a picture").toUpperCase();
+                    break;
+                case "USAGE":
+                    next = skip(words, next, "IS");
+                    item.usage = usage(requireWord(words, next++, where + "USAGE needs a usage").toUpperCase(),
+                                       where);
+                    break;
+                case "DISPLAY":
+                case "BINARY":
+                case "PACKED-DECIMAL":
+                case "COMP":
+                case "COMP-3":
+                case "COMP-4":
+                case "COMP-5":
+                case "COMPUTATIONAL":
+                case "COMPUTATIONAL-3":
+                case "COMPUTATIONAL-4":
+                case "COMPUTATIONAL-5":
+                case "COMP-1":
+                case "COMP-2":
+                case "COMPUTATIONAL-1":
+                case "COMPUTATIONAL-2":
+                case "POINTER":
+                case "INDEX":
+                case "NATIONAL":
+                    item.usage = usage(word, where);
+                    break;
+                case "OCCURS": {
+                    int count = number(requireWord(words, next++, where + "OCCURS needs a count"), where);
+                    if (next < words.size() && words.get(next).equalsIgnoreCase("TO")) {
+                        count = number(requireWord(words, next + 1, where + "OCCURS TO needs a count"), where);
+                        next += 2;
+                        warnings.add(where + "OCCURS DEPENDING ON is laid out at its largest, " + count);
+                    }
+                    item.occurs = count;
+                    next = skip(words, next, "TIMES");
+                    if (next < words.size() && words.get(next).equalsIgnoreCase("DEPENDING")) {
+                        next = skip(words, next + 1, "ON") + 1;
+                    }
+                    break;
+                }
+                case "REDEFINES":
+                    item.redefines = requireWord(words, next++, where + "REDEFINES needs a name").toUpperCase();
+                    break;
+                case "VALUE":
+                case "VALUES":
+                    next = skip(words, skip(words, next, "IS"), "ARE");
+                    next = values(item, words, next, where);
+                    break;
+                case "SIGN":
+                    next = skip(words, next, "IS");
+                    String position = requireWord(words, next++, where + "SIGN needs LEADING or TRAILING").toUpperCase();
+                    if (position.equals("LEADING")
+                        || (next < words.size() && words.get(next).equalsIgnoreCase("SEPARATE"))) {
+                        throw new IllegalArgumentException(where + "only SIGN TRAILING without SEPARATE is supported");
+                    }
+                    break;
+                case "SYNC":
+                case "SYNCHRONIZED":
+                    warnings.add(where + "SYNCHRONIZED is ignored, so no slack bytes are added");
+                    next = skip(words, skip(words, next, "LEFT"), "RIGHT");
+                    break;
+                case "JUST":
+                case "JUSTIFIED":
+                    warnings.add(where + "JUSTIFIED is ignored, so text is set from the left");
+                    next = skip(words, next, "RIGHT");
+                    break;
+                case "BLANK":
+                    next = skip(words, next, "WHEN") + 1;
+                    break;
+                case "GLOBAL":
+                case "EXTERNAL":
+                    break;
+                case "INDEXED":
+                case "ASCENDING":
+                case "DESCENDING":
+                    //Index and key names are not part of the layout
+                    while (next < words.size() && !CLAUSE_WORDS.contains(words.get(next).toUpperCase())) {
+                        next++;
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException(where + "unexpected " + words.get(next - 1));
+            }
+        }
+    }
+
+    private static String usage(String word, String where)
+    {
+        switch (word) {
+            case "DISPLAY":
+                return "DISPLAY";
+            case "BINARY":
+            case "COMP":
+            case "COMP-4":
+            case "COMPUTATIONAL":
+            case "COMPUTATIONAL-4":
+                return "BINARY";
+            case "COMP-5":
+            case "COMPUTATIONAL-5":
+                return "COMP-5";
+            case "COMP-3":
+            case "COMPUTATIONAL-3":
+            case "PACKED-DECIMAL":
+                return "PACKED";
+            default:
+                throw new IllegalArgumentException(where + "USAGE " + word + " is not supported");
+        }
+    }
+
+    /**
+     * Reads the literals of a VALUE clause, with THRU ranges for 88 levels
+     */
+    private int values(Item item, List<String> words, int next, String where)
+    {
+        int start = next;
+        while (next < words.size() && !CLAUSE_WORDS.contains(words.get(next).toUpperCase())) {
+            String word = words.get(next++);
+            String upper = word.toUpperCase();
+            if (upper.equals("THRU") || upper.equals("THROUGH")) {
+                if (item.level != 88 || item.values.isEmpty()) {
+                    throw new IllegalArgumentException(where + "THRU is only supported in 88 levels");
+                }
+                //Replace the single value with a range
+                item.values.set(item.values.size() - 1,
+                                item.values.get(item.values.size() - 1) + "\u0000"
+                                + literal(requireWord(words, next++, where + "THRU needs a value"), where));
+                continue;
+            }
+            if (upper.equals("ALL")) {
+                throw new IllegalArgumentException(where + "VALUE ALL is not supported");
+            }
+            item.values.add(literal(word, where));
+        }
+        if (next == start) {
+            throw new IllegalArgumentException(where + "VALUE needs a literal");
+        }
+        return next;
+    }
+
+    /**
+     * @return a literal without its quotes, or a figurative constant as a
+     *         keyword in braces, such as {SPACES}
+     */
+    private static String literal(String word, String where)
+    {
+        String upper = word.toUpperCase();
+        if ((word.startsWith("'") || word.startsWith("\"")) && word.length() >= 2
+            && word.charAt(word.length() - 1) == word.charAt(0)) {
+            String quote = word.substring(0, 1);
+            return word.substring(1, word.length() - 1).replace(quote + quote, quote);
+        }
+        switch (upper) {
+            case "SPACE":
+            case "SPACES":
+                return "{SPACES}";
+            case "ZERO":
+            case "ZEROS":
+            case "ZEROES":
+                return "{ZEROS}";
+            case "LOW-VALUE":
+            case "LOW-VALUES":
+                return "{LOW-VALUES}";
+            case "HIGH-VALUE":
+            case "HIGH-VALUES":
+                return "{HIGH-VALUES}";
+            default:
+                try {
+                    new BigDecimal(word);
+                    return word;
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException(where + "literal " + word + " is not supported");
+                }
+        }
+    }
+
+    private static int skip(List<String> words, int next, String optional)
+    {
+        return (next < words.size() && words.get(next).equalsIgnoreCase(optional)) ? next + 1 : next;
+    }
+
+    private static String requireWord(List<String> words, int index, String message)
+    {
+        if (index >= words.size()) {
+            throw new IllegalArgumentException(message);
+        }
+        return words.get(index);
+    }
+
+    private static int number(String word, String where)
+    {
+        try {
+            return Integer.parseInt(word);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(where + "expected a number, found " + word);
+        }
+    }
+
+    /**
+     * Works out the kind, size and offset of every item in a record, and
+     * gives each a Java name
+     */
+    void layout(Item record)
+    {
+        measure(record, null);
+        place(record, 0);
+        name(record);
+    }
+
+    private void measure(Item item, String inheritedUsage)
+    {
+        String where = "Line " + item.line + ": ";
+        String usage = (item.usage != null) ? item.usage : inheritedUsage;
+        if (item.occurs < 1) {
+            throw new IllegalArgumentException(where + "OCCURS must be at least 1");
+        }
+        if (!item.children.isEmpty()) {
+            item.kind = Kind.GROUP;
+            for (Item child : item.children) {
+                measure(child, usage);
+            }
+            return;
+        }
+        if (item.picture == null) {
+            throw new IllegalArgumentException(where + (item.isFiller() ? "FILLER" : item.name)
+                                               + " has no PIC and no subordinate items");
+        }
+
+        String picture = expand(item.picture, where);
+        if (picture.indexOf('N') >= 0 || picture.indexOf('G') >= 0) {
+            throw new IllegalArgumentException(where + "PIC N and G are not supported");
+        }
+        if (picture.matches("[XA9]*") && !picture.matches("9*")) {
+            item.kind = Kind.TEXT;
+            item.size = picture.length();
+        } else if (picture.matches("S?9*(V9*)?")) {
+            item.signed = picture.startsWith("S");
+            int point = picture.indexOf('V');
+            item.scale = (point < 0) ? 0 : picture.length() - point - 1;
+            item.digits = picture.replace("S", "").replace("V", "").length();
+            if (item.digits == 0) {
+                throw new IllegalArgumentException(where + "PIC " + item.picture + " has no digits");
+            }
+            if (item.digits > 18) {
+                throw new IllegalArgumentException(where + "PIC " + item.picture
+                                                   + " has more than the 18 digits a long holds");
+            }
+            if (usage == null || usage.equals("DISPLAY")) {
+                item.kind = Kind.ZONED;
+                item.size = item.digits;
+            } else if (usage.equals("PACKED")) {
+                item.kind = Kind.PACKED;
+                item.size = item.digits / 2 + 1;
+            } else {
+                item.kind = usage.equals("COMP-5") ? Kind.NATIVE_BINARY : Kind.BINARY;
+                item.size = (item.digits <= 4) ? 2 : (item.digits <= 9) ? 4 : 8;
+            }
+        } else if (picture.indexOf('P') >= 0) {
+            throw new IllegalArgumentException(where + "PIC P scaling is not supported");
+        } else {
+            //Numeric edited, read and written as the text it displays as
+            item.kind = Kind.TEXT;
+            item.size = picture.replace("V", "").length();
+        }
+        if (item.kind == Kind.TEXT && usage != null && !usage.equals("DISPLAY")) {
+            throw new IllegalArgumentException(where + "PIC " + item.picture + " must be USAGE DISPLAY");
+        }
+    }
+
+    /**
+     * Expands repeat counts, so X(3) becomes XXX. CR and DB each stand for
+     * two characters, so are kept as they are.
+     */
+    private static String expand(String picture, String where)
+    {
+        StringBuilder expanded = new StringBuilder();
+        for (int i = 0; i < picture.length(); i++) {
+            char c = picture.charAt(i);
+            if (c == '(') {
+                int close = picture.indexOf(')', i);
+                if (close < 0 || expanded.length() == 0) {
+                    throw new IllegalArgumentException(where + "bad PIC " + picture);
+                }
+                int count = number(picture.substring(i + 1, close), where);
+                char repeated = expanded.charAt(expanded.length() - 1);
+                for (int j = 1; j < count; j++) {
+                    expanded.append(repeated);
+                }
+                i = close;
+            } else {
+                expanded.append(c);
+            }
+        }
+        return expanded.toString();
+    }
+
+    /**
+     * Sets the offset of an item and everything in it
+     *
+     * @return the bytes the item takes, including every occurrence
+     */
+    private int place(Item item, int offset)
+    {
+        item.offset = offset;
+        if (item.kind == Kind.GROUP) {
+            int position = offset;
+            int end = offset;
+            for (Item child : item.children) {
+                int start = position;
+                if (child.redefines != null) {
+                    Item redefined = null;
+                    for (Item sibling : item.children) {
+                        if (sibling == child) {
+                            break;
+                        }
+                        if (child.redefines.equals(sibling.name)) {
+                            redefined = sibling;
+                        }
+                    }
+                    if (redefined == null) {
+                        throw new IllegalArgumentException("Line " + child.line + ": " + child.redefines
+                                                           + " is not an earlier item at the same level");
+                    }
+                    start = redefined.offset;
+                    end = Math.max(end, start + place(child, start));
+                } else {
+                    position = start + place(child, start);
+                    end = Math.max(end, position);
+                }
+            }
+            item.size = end - offset;
+        }
+        return item.size * item.occurs;
+    }
+
+    /**
+     * Gives each item a unique Java name, qualifying names used more than
+     * once with their parent's name
+     */
+    private void name(Item record)
+    {
+        List<Item> items = new ArrayList<Item>();
+        collect(record, items);
+        for (Item item : items) {
+            String cobolName = item.isFiller() ? "FILLER-" + (++fillers) : item.name;
+            item.javaName = camel(cobolName);
+            item.constantName = constant(cobolName);
+        }
+        for (int pass = 0; pass < 8; pass++) {
+            Set<String> seen = new HashSet<String>();
+            Set<String> duplicated = new HashSet<String>();
+            for (Item item : items) {
+                if (!seen.add(item.javaName)) {
+                    duplicated.add(item.javaName);
+                }
+            }
+            if (duplicated.isEmpty()) {
+                return;
+            }
+            for (Item item : items) {
+                if (duplicated.contains(item.javaName) && item.parent != null) {
+                    item.javaName = item.parent.javaName + capitalise(item.javaName);
+                    item.constantName = item.parent.constantName + "_" + item.constantName;
+                }
+            }
+        }
+        throw new IllegalArgumentException("Cannot give the items unique names");
+    }
+
+    private static void collect(Item item, List<Item> items)
+    {
+        items.add(item);
+        items.addAll(item.conditions);
+        for (Item child : item.children) {
+            collect(child, items);
+        }
+    }
+
+    private static String camel(String cobolName)
+    {
+        StringBuilder name = new StringBuilder();
+        for (String part : cobolName.toLowerCase().split("[-_]+")) {
+            if (part.isEmpty()) {
+                continue;
+            }
+            name.append((name.length() == 0) ? part : capitalise(part));
+        }
+        return Character.isJavaIdentifierStart(name.charAt(0)) ? name.toString() : "f" + capitalise(name.toString());
+    }
+
+    private static String constant(String cobolName)
+    {
+        String name = cobolName.toUpperCase().replaceAll("[-_]+", "_");
+        return Character.isJavaIdentifierStart(name.charAt(0)) ? name : "F_" + name;
+    }
+
+    private static String capitalise(String name)
+    {
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+
+    /**
+     * Writes the layout class for a record
+     */
+    String generate(Item record, String className, String copybookName)
+    {
+        StringBuilder out = new StringBuilder();
+        out.append("/*\n")
+           .append("*      File Name     : ").append(className).append(".java\n")
+           .append("*\n")
+           .append("*      Product       : CICS Transaction Gateway\n")
+           .append("*\n")
+           .append("*      Description   : Layout of ").append(record.name).append(", generated by EciCopybook\n")
+           .append("*                      from ").append(copybookName).append(". Change the copybook and\n")
+           .append("*                      generate this again rather than editing it.\n")
+           .append("*                      Numbers are unscaled, and OCCURS indexes count\n")
+           .append("*                      from 0.\n")
+           .append("*/\n\n")
+           .append("//package com.ibm.ctg.samples.eci;\n\n")
+           .append("import java.nio.ByteBuffer;\n")
+           .append("import java.nio.CharBuffer;\n\n")
+           .append("public class ").append(className).append(" extends EciRecord\n")
+           .append("{\n")
+           .append("    public static final int LENGTH = ").append(record.size * record.occurs).append(";\n\n");
+
+        List<Item> items = new ArrayList<Item>();
+        collect(record, items);
+        items.removeIf(item -> item.level == 88 || item == record);
+
+        //Offsets of the first occurrence, lengths of one occurrence
+        for (Item item : items) {
+            if (item.isFiller() && !(item.occurs > 1 && item.kind == Kind.GROUP)) {
+                continue;
+            }
+            out.append("    public static final int ").append(item.constantName).append("_OFFSET = ")
+               .append(item.offset).append(";\n");
+            out.append("    public static final int ").append(item.constantName).append("_LENGTH = ")
+               .append(item.size).append(";\n");
+            if (item.occurs > 1) {
+                out.append("    public static final int ").append(item.constantName).append("_COUNT = ")
+                   .append(item.occurs).append(";\n");
+            }
+            if (item.scale > 0) {
+                out.append("    public static final int ").append(item.constantName).append("_SCALE = ")
+                   .append(item.scale).append(";\n");
+            }
+        }
+
+        out.append("\n\n")
+           .append("    /**\n")
+           .append("     * @param codec the code page of the character and zoned decimal fields\n")
+           .append("     */\n")
+           .append("    public ").append(className).append("(EciCodec codec)\n")
+           .append("    {\n")
+           .append("        super(codec);\n")
+           .append("    }\n\n")
+           .append("    public int length()\n")
+           .append("    {\n")
+           .append("        return LENGTH;\n")
+           .append("    }\n\n")
+           .append("    /**\n")
+           .append("     * Points this layout at a record at the start of a byte array\n")
+           .append("     */\n")
+           .append("    public ").append(className).append(" wrap(byte[] bytes)\n")
+           .append("    {\n")
+           .append("        attach(bytes, 0);\n")
+           .append("        return this;\n")
+           .append("    }\n\n")
+           .append("    /**\n")
+           .append("     * Points this layout at a record in a byte array\n")
+           .append("     */\n")
+           .append("    public ").append(className).append(" wrap(byte[] bytes, int offset)\n")
+           .append("    {\n")
+           .append("        attach(bytes, offset);\n")
+           .append("        return this;\n")
+           .append("    }\n\n")
+           .append("    /**\n")
+           .append("     * Points this layout at a record in a buffer, at an absolute offset\n")
+           .append("     */\n")
+           .append("    public ").append(className).append(" wrap(ByteBuffer buffer, int offset)\n")
+           .append("    {\n")
+           .append("        attach(buffer, offset);\n")
+           .append("        return this;\n")
+           .append("    }\n\n");
+
+        generateInitialize(out, record, className);
+        for (Item item : items) {
+            if (!item.isFiller()) {
+                generateAccessors(out, item);
+            }
+        }
+        out.append("}\n");
+        return out.toString();
+    }
+
+    /**
+     * Writes initialize, which sets each field to its VALUE, or else
+     * character fields to spaces and numbers to zero, as COBOL does
+     */
+    private void generateInitialize(StringBuilder out, Item record, String className)
+    {
+        out.append("    /**\n")
+           .append("     * Sets each field to its VALUE, or else character fields to spaces and\n")
+           .append("     * numbers to zero\n")
+           .append("     */\n")
+           .append("    public ").append(className).append(" initialize()\n")
+           .append("    {\n");
+        initialize(out, record, new ArrayList<Item>(), "        ");
+        out.append("        return this;\n")
+           .append("    }\n");
+    }
+
+    private void initialize(StringBuilder out, Item item, List<Item> repeats, String indent)
+    {
+        if (item.redefines != null) {
+            //The redefined item sets these bytes
+            return;
+        }
+        if (item.occurs > 1) {
+            String index = "i" + repeats.size();
+            out.append(indent).append("for (int ").append(index).append(" = 0; ").append(index)
+               .append(" < ").append(item.occurs).append("; ").append(index).append("++) {\n");
+            repeats = new ArrayList<Item>(repeats);
+            repeats.add(item);
+            indent = indent + "    ";
+        }
+        String position = position(item, repeats, true);
+        if (item.kind == Kind.GROUP && item.values.isEmpty()) {
+            for (Item child : item.children) {
+                initialize(out, child, repeats, indent);
+            }
+        } else {
+            String value = item.values.isEmpty() ? null : item.values.get(0);
+            out.append(indent).append(store(item, position, value)).append(";\n");
+        }
+        if (item.occurs > 1) {
+            out.append(indent.substring(4)).append("}\n");
+        }
+    }
+
+    /**
+     * @return a statement storing a literal, or the item's initial value if
+     *         null, at a position
+     */
+    private String store(Item item, String position, String value)
+    {
+        String where = "Line " + item.line + ": ";
+        String length = String.valueOf(item.size);
+        if ("{SPACES}".equals(value) || (value == null && !item.isNumeric())) {
+            return "fill(" + position + ", " + length + ", space())";
+        }
+        if ("{LOW-VALUES}".equals(value)) {
+            return "fill(" + position + ", " + length + ", (byte) 0)";
+        }
+        if ("{HIGH-VALUES}".equals(value)) {
+            return "fill(" + position + ", " + length + ", (byte) 0xFF)";
+        }
+        if (!item.isNumeric()) {
+            if ("{ZEROS}".equals(value)) {
+                return "fill(" + position + ", " + length + ", getCodec().encode('0'))";
+            }
+            return "setText(" + position + ", " + length + ", " + javaString(value) + ")";
+        }
+        long number = (value == null || "{ZEROS}".equals(value)) ? 0 : scaled(item, value, where);
+        return numericStore(item, position, number + "L");
+    }
+
+    private String numericStore(Item item, String position, String value)
+    {
+        switch (item.kind) {
+            case ZONED:
+                return "setZoned(" + position + ", " + item.size + ", " + value + ", " + item.signed + ")";
+            case PACKED:
+                return "setPacked(" + position + ", " + item.size + ", " + value + ", " + item.signed + ")";
+            case BINARY:
+                return "setBinary(" + position + ", " + item.size + ", " + value + ", " + item.digits + ")";
+            default:
+                return "setBinary(" + position + ", " + item.size + ", " + value + ", 0)";
+        }
+    }
+
+    private String numericLoad(Item item, String position)
+    {
+        switch (item.kind) {
+            case ZONED:
+                return "getZoned(" + position + ", " + item.size + ")";
+            case PACKED:
+                return "getPacked(" + position + ", " + item.size + ")";
+            default:
+                return "getBinary(" + position + ", " + item.size + ", " + item.signed + ")";
+        }
+    }
+
+    /**
+     * @return a numeric literal as the unscaled value of a field
+     */
+    private static long scaled(Item item, String value, String where)
+    {
+        if (value.startsWith("{")) {
+            throw new IllegalArgumentException(where + value + " is not a number");
+        }
+        try {
+            return new BigDecimal(value).movePointRight(item.scale).longValueExact();
+        } catch (NumberFormatException | ArithmeticException e) {
+            throw new IllegalArgumentException(where + value + " does not fit PIC " + item.picture);
+        }
+    }
+
+    /**
+     * @return an expression for the offset of an item, given index
+     *         variables i0, i1, ... for initialize or checked index
+     *         parameters for accessors
+     */
+    private static String position(Item item, List<Item> repeats, boolean loop)
+    {
+        StringBuilder position = new StringBuilder(String.valueOf(item.offset));
+        for (int i = 0; i < repeats.size(); i++) {
+            Item repeat = repeats.get(i);
+            String index = loop ? "i" + i
+                                : "checkIndex(" + repeat.javaName + "Index, " + repeat.occurs + ")";
+            position.append(" + ").append(index).append(" * ").append(repeat.size);
+        }
+        return position.toString();
+    }
+
+    /**
+     * Writes the get and set methods of an item and its 88 levels
+     */
+    private void generateAccessors(StringBuilder out, Item item)
+    {
+        List<Item> repeats = new ArrayList<Item>();
+        for (Item ancestor = item; ancestor != null; ancestor = ancestor.parent) {
+            if (ancestor.occurs > 1) {
+                repeats.add(0, ancestor);
+            }
+        }
+        StringBuilder parameters = new StringBuilder();
+        for (Item repeat : repeats) {
+            if (parameters.length() > 0) {
+                parameters.append(", ");
+            }
+            parameters.append("int ").append(repeat.javaName).append("Index");
+        }
+        String indexes = parameters.toString();
+        String leading = indexes.isEmpty() ? "" : indexes + ", ";
+        String position = position(item, repeats, false);
+        String name = capitalise(item.javaName);
+        String length = String.valueOf(item.size);
+
+        out.append("\n    /*\n")
+           .append("     * ").append(item.name);
+        if (item.picture != null) {
+            out.append(" PIC ").append(item.picture);
+        }
+        out.append(", ").append(describe(item)).append(" at ").append(item.offset);
+        if (!repeats.isEmpty()) {
+            out.append(", occurs");
+            for (Item repeat : repeats) {
+                out.append(' ').append(repeat.occurs);
+            }
+        }
+        out.append("\n     */\n");
+
+        if (item.isNumeric()) {
+            out.append("    public long get").append(name).append("(").append(indexes).append(")\n")
+               .append("    {\n")
+               .append("        return ").append(numericLoad(item, position)).append(";\n")
+               .append("    }\n\n")
+               .append("    public void set").append(name).append("(").append(leading).append("long value)\n")
+               .append("    {\n")
+               .append("        ").append(numericStore(item, position, "value")).append(";\n")
+               .append("    }\n");
+        } else {
+            out.append("    public int get").append(name).append("(").append(leading)
+               .append("char[] dest, int destOffset)\n")
+               .append("    {\n")
+               .append("        return getText(").append(position).append(", ").append(length)
+               .append(", dest, destOffset);\n")
+               .append("    }\n\n")
+               .append("    public int get").append(name).append("(").append(leading).append("CharBuffer dest)\n")
+               .append("    {\n")
+               .append("        return getText(").append(position).append(", ").append(length).append(", dest);\n")
+               .append("    }\n\n")
+               .append("    public boolean ").append(item.javaName).append("Equals(").append(leading)
+               .append("CharSequence value)\n")
+               .append("    {\n")
+               .append("        return textEquals(").append(position).append(", ").append(length)
+               .append(", value);\n")
+               .append("    }\n\n")
+               .append("    public void set").append(name).append("(").append(leading).append("CharSequence value)\n")
+               .append("    {\n")
+               .append("        setText(").append(position).append(", ").append(length).append(", value);\n")
+               .append("    }\n\n")
+               .append("    public String get").append(name).append("AsString(").append(indexes).append(")\n")
+               .append("    {\n")
+               .append("        return getString(").append(position).append(", ").append(length).append(");\n")
+               .append("    }\n");
+        }
+
+        for (Item condition : item.conditions) {
+            generateCondition(out, item, condition, indexes, position);
+        }
+    }
+
+    private static String describe(Item item)
+    {
+        switch (item.kind) {
+            case GROUP:
+                return "group of " + item.size + " bytes";
+            case TEXT:
+                return item.size + " characters";
+            case ZONED:
+                return "zoned decimal" + scaleNote(item);
+            case PACKED:
+                return "packed decimal" + scaleNote(item);
+            case BINARY:
+                return item.size + " byte binary" + scaleNote(item);
+            default:
+                return item.size + " byte native binary" + scaleNote(item);
+        }
+    }
+
+    private static String scaleNote(Item item)
+    {
+        return (item.scale == 0) ? "" : " with " + item.scale + " decimal places";
+    }
+
+    /**
+     * Writes isCondition, true if the field holds one of the values, and
+     * setCondition, which sets the field to the first value
+     */
+    private void generateCondition(StringBuilder out, Item item, Item condition, String indexes, String position)
+    {
+        String where = "Line " + condition.line + ": ";
+        String leading = indexes.isEmpty() ? "" : indexes + ", ";
+        StringBuilder test = new StringBuilder();
+        for (String value : condition.values) {
+            if (test.length() > 0) {
+                test.append("\n               || ");
+            }
+            int thru = value.indexOf('\u0000');
+            if (thru >= 0) {
+                if (!item.isNumeric()) {
+                    throw new IllegalArgumentException(where + "THRU is only supported for numeric items");
+                }
+                String value2 = "value";
+                test.append("(").append(value2).append(" >= ").append(scaled(item, value.substring(0, thru), where))
+                    .append("L && ").append(value2).append(" <= ")
+                    .append(scaled(item, value.substring(thru + 1), where)).append("L)");
+            } else if (item.isNumeric()) {
+                long number = "{ZEROS}".equals(value) ? 0 : scaled(item, value, where);
+                test.append("value == ").append(number).append("L");
+            } else if ("{SPACES}".equals(value)) {
+                test.append("textEquals(").append(position).append(", ").append(item.size).append(", \"\")");
+            } else if (value.startsWith("{")) {
+                throw new IllegalArgumentException(where + value + " is not supported in an 88 level");
+            } else {
+                test.append("textEquals(").append(position).append(", ").append(item.size).append(", ")
+                    .append(javaString(value)).append(")");
+            }
+        }
+
+        String name = capitalise(condition.javaName);
+        String first = condition.values.get(0);
+        int thru = first.indexOf('\u0000');
+        if (thru >= 0) {
+            first = first.substring(0, thru);
+        }
+
+        out.append("\n    /*\n")
+           .append("     * 88 ").append(condition.name).append("\n")
+           .append("     */\n")
+           .append("    public boolean is").append(name).append("(").append(indexes).append(")\n")
+           .append("    {\n");
+        if (item.isNumeric()) {
+            out.append("        long value = ").append(numericLoad(item, position)).append(";\n");
+        }
+        out.append("        return ").append(test).append(";\n")
+           .append("    }\n\n")
+           .append("    public void set").append(name).append("(").append(indexes).append(")\n")
+           .append("    {\n")
+           .append("        ").append(store(item, position, first)).append(";\n")
+           .append("    }\n");
+    }
+
+    private static String javaString(String value)
+    {
+        StringBuilder literal = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                literal.append('\\').append(c);
+            } else if (c < 0x20 || c > 0x7e) {
+                literal.append(String.format("\\u%04X", (int) c));
+            } else {
+                literal.append(c);
+            }
+        }
+        return literal.append('"').toString();
+    }
+}
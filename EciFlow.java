@@ -0,0 +1,27 @@
+/*
+*      File Name     : EciFlow.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : Something an ECIRequest can be flowed through - a
+*                      single Gateway connection, a pool of connections,
+*                      or a wrapper that adds behaviour around another
+*                      EciFlow.
+*/
+
+//package com.ibm.ctg.samples.eci;
+
+import java.io.*;
+import com.ibm.ctg.client.*;
+
+public interface EciFlow
+{
+    /**
+     * Flows the request to CICS, updating it in place with the reply in
+     * the same way as JavaGateway.flow
+     *
+     * @param eciRequest    the request to flow
+     * @return the return code of the flow
+     */
+    int flow(ECIRequest eciRequest) throws IOException;
+}
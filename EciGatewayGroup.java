@@ -0,0 +1,441 @@
+/*
+*      File Name     : EciGatewayGroup.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : Spreads connections over several Gateway daemons and
+*                      fails over between them, so losing one Gateway does
+*                      not stop the client.
+*
+*                      Each connection opened from the group goes to the
+*                      running Gateway with the fewest connections. When a
+*                      Gateway fails, by refusing a connection or by an
+*                      IOException on a flow, it is marked down at once,
+*                      and pooled connections to it report themselves
+*                      closed, so a pool drops them the next time they are
+*                      borrowed. A request about to be flowed over a
+*                      connection to a Gateway already marked down moves
+*                      to another Gateway first. When a Gateway that was down comes back,
+*                      connections to the busier Gateways also report
+*                      themselves closed, so a pool moves its connections
+*                      back over.
+*
+*                      A request whose flow fails part way may already
+*                      have run in CICS, so by default its IOException is
+*                      passed on rather than the request being flowed
+*                      again. Programs that are safe to run twice can be
+*                      marked with setReflow; a request to one of them
+*                      that starts something new is then flowed again on
+*                      another Gateway. A call continuing an extended LUW
+*                      never moves, as the LUW is on the Gateway that
+*                      failed.
+*
+*                      A probe thread checks each Gateway that is down, and
+*                      each that has not been used recently, by flowing
+*                      listSystems over a connection of its own. Any reply
+*                      at all shows the Gateway is running.
+*/
+
+//package com.ibm.ctg.samples.eci;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import com.ibm.ctg.client.*;
+
+public class EciGatewayGroup implements EciGatewayPool.Factory
+{
+    /**
+     * Opens a connection to one Gateway
+     */
+    public interface Opener
+    {
+        EciConnection open(String url, int port) throws IOException;
+    }
+
+    private final List<Member> members;
+    private final Opener opener;
+    private final AtomicInteger next = new AtomicInteger();
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong failovers = new AtomicLong();
+    private final Set<String> reflowPrograms = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService prober;
+    private volatile long probeNanos = TimeUnit.SECONDS.toNanos(1);
+    private volatile boolean closed = false;
+
+
+    /**
+     * Creates a group and starts probing its Gateways every second
+     *
+     * @param gateways  Gateway URLs, each optionally ending in :port, such
+     *                  as tcp://gw1:2006. local: is not a remote Gateway
+     *                  and so cannot be in a group.
+     * @param port      the port of Gateways that do not give one
+     * @param opener    opens a connection to one Gateway
+     */
+    public EciGatewayGroup(List<String> gateways, int port, Opener opener)
+    {
+        if (gateways.isEmpty()) {
+            throw new IllegalArgumentException("No Gateways given");
+        }
+        List<Member> list = new ArrayList<Member>();
+        for (String gateway : gateways) {
+            String url = gateway.trim();
+            int memberPort = port;
+            int colon = url.lastIndexOf(':');
+            if (colon > url.indexOf("//") && colon > 0 && colon < url.length() - 1) {
+                try {
+                    memberPort = Integer.parseInt(url.substring(colon + 1));
+                    url = url.substring(0, colon);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Bad port in Gateway " + gateway);
+                }
+            }
+            list.add(new Member(url, memberPort));
+        }
+        this.members = Collections.unmodifiableList(list);
+        this.opener = opener;
+
+        //One thread per Gateway, so a Gateway that hangs does not stop the others being probed
+        prober = Executors.newScheduledThreadPool(members.size(), runnable -> {
+            Thread thread = new Thread(runnable, "EciGatewayGroup-probe");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (Member member : members) {
+            prober.schedule(() -> probe(member), 0, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Sets how often Gateways that are down or idle are probed
+     */
+    public void setProbeInterval(long millis)
+    {
+        probeNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, millis));
+    }
+
+    /**
+     * Lets a request to a program be flowed again on another Gateway when
+     * its flow fails part way. Only give programs that are safe to run
+     * twice, as the first flow may have reached CICS.
+     */
+    public void setReflow(String program)
+    {
+        reflowPrograms.add(program);
+    }
+
+    /**
+     * Opens a connection to the running Gateway with the fewest connections.
+     * If no Gateway is known to be running, each is tried in turn.
+     *
+     * @throws IOException if no Gateway could be connected to
+     */
+    public EciConnection open() throws IOException
+    {
+        return connect(null);
+    }
+
+    /**
+     * @return the number of Gateways believed to be running
+     */
+    public int getAvailable()
+    {
+        int count = 0;
+        for (Member member : members) {
+            if (member.up) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Stops probing and closes the probe connections. Connections opened
+     * from the group are closed by whoever holds them.
+     */
+    public void close()
+    {
+        closed = true;
+        prober.shutdownNow();
+        for (Member member : members) {
+            member.closeProbe();
+        }
+    }
+
+    /**
+     * @return one line per Gateway giving its state, connections and
+     *         throughput
+     */
+    public String getStatistics()
+    {
+        StringBuilder report = new StringBuilder();
+        double seconds = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+        for (Member member : members) {
+            long requests = member.requests.get();
+            report.append(String.format("%-28s %-4s connections=%d requests=%d rate=%.1f/s"
+                                        + " avg=%.3fms failures=%d downs=%d probes=%d%n",
+                                        member, member.up ? "up" : "down", member.connections.get(),
+                                        requests, requests / seconds,
+                                        (requests == 0) ? 0.0 : member.totalNanos.get() / 1e6 / requests,
+                                        member.failures.get(), member.downs.get(), member.probes.get()));
+        }
+        report.append("failovers=").append(failovers.get());
+        return report.toString();
+    }
+
+    /**
+     * Connects to the least used running Gateway other than the one given
+     */
+    private GroupConnection connect(Member failed) throws IOException
+    {
+        IOException lastFailure = null;
+        for (Member member : candidates(failed)) {
+            try {
+                EciConnection connection = opener.open(member.url, member.port);
+                member.connections.incrementAndGet();
+                markUp(member);
+                return new GroupConnection(member, connection);
+            } catch (IOException e) {
+                markDown(member);
+                lastFailure = e;
+            }
+        }
+        throw (lastFailure != null) ? lastFailure : new IOException("No Gateway to connect to");
+    }
+
+    /**
+     * Lists the Gateways to try, running ones first by fewest connections
+     * and then those that are down, each starting from a rotating point so
+     * ties are shared out
+     */
+    private List<Member> candidates(Member failed)
+    {
+        int start = Math.floorMod(next.getAndIncrement(), members.size());
+        List<Member> up = new ArrayList<Member>(members.size());
+        List<Member> down = new ArrayList<Member>(members.size());
+        for (int i = 0; i < members.size(); i++) {
+            Member member = members.get((start + i) % members.size());
+            if (member != failed) {
+                (member.up ? up : down).add(member);
+            }
+        }
+        up.sort((a, b) -> Integer.compare(a.connections.get(), b.connections.get()));
+        up.addAll(down);
+        if (failed != null) {
+            //Last resort, if it was only the one connection that failed
+            up.add(failed);
+        }
+        return up;
+    }
+
+    /**
+     * @return true if a Gateway has more than its share of the connections,
+     *         so one should move to a running Gateway with fewer
+     */
+    private boolean isCrowded(Member member)
+    {
+        int fewest = Integer.MAX_VALUE;
+        for (Member other : members) {
+            if (other.up) {
+                fewest = Math.min(fewest, other.connections.get());
+            }
+        }
+        return member.connections.get() > fewest + 1;
+    }
+
+    private void markDown(Member member)
+    {
+        if (member.up) {
+            member.up = false;
+            member.downs.incrementAndGet();
+        }
+    }
+
+    private void markUp(Member member)
+    {
+        member.up = true;
+    }
+
+    /**
+     * Checks a Gateway if it is down or has not been used for a probe
+     * interval, then schedules the next check
+     */
+    private void probe(Member member)
+    {
+        if (closed) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (!member.up || now - member.lastUsedNanos >= probeNanos) {
+            member.probes.incrementAndGet();
+            try {
+                if (member.probe == null) {
+                    member.probe = opener.open(member.url, member.port);
+                }
+                member.probe.flow(ECIRequest.listSystems(1));
+                markUp(member);
+                member.lastUsedNanos = System.nanoTime();
+            } catch (IOException | RuntimeException e) {
+                member.closeProbe();
+                markDown(member);
+            }
+        }
+        if (!closed) {
+            try {
+                prober.schedule(() -> probe(member), probeNanos, TimeUnit.NANOSECONDS);
+            } catch (java.util.concurrent.RejectedExecutionException e) {
+                //Closed while probing
+            }
+        }
+    }
+
+
+    /**
+     * One Gateway and its use
+     */
+    private static class Member
+    {
+        final String url;
+        final int    port;
+        volatile boolean up = true;
+        volatile long    lastUsedNanos = System.nanoTime();
+        //Only used on the probe thread
+        EciConnection probe = null;
+
+        final AtomicInteger connections = new AtomicInteger();
+        final AtomicLong    requests = new AtomicLong();
+        final AtomicLong    totalNanos = new AtomicLong();
+        final AtomicLong    failures = new AtomicLong();
+        final AtomicLong    downs = new AtomicLong();
+        final AtomicLong    probes = new AtomicLong();
+
+        Member(String url, int port)
+        {
+            this.url = url;
+            this.port = port;
+        }
+
+        void closeProbe()
+        {
+            EciConnection connection = probe;
+            probe = null;
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    //Already broken
+                }
+            }
+        }
+
+        public String toString()
+        {
+            return url + ":" + port;
+        }
+    }
+
+    /**
+     * A connection opened from the group. It stays on one Gateway until
+     * that Gateway fails, then moves to another.
+     */
+    private class GroupConnection implements EciConnection
+    {
+        private Member        member;
+        private EciConnection connection;
+
+        GroupConnection(Member member, EciConnection connection)
+        {
+            this.member = member;
+            this.connection = connection;
+        }
+
+        public int flow(ECIRequest eciRequest) throws IOException
+        {
+            boolean startsNew = (eciRequest.Luw_Token == ECIRequest.ECI_LUW_NEW);
+            if (startsNew && (!member.up || !connection.isOpen()) && getAvailable() > 0) {
+                //Move before sending, while the request is sure not to have run
+                moveFrom(member);
+            }
+            boolean reflow = startsNew && eciRequest.Program != null
+                             && reflowPrograms.contains(eciRequest.Program);
+            for (int attempt = 1; ; attempt++) {
+                Member current = member;
+                long start = System.nanoTime();
+                try {
+                    int rc = connection.flow(eciRequest);
+                    long end = System.nanoTime();
+                    current.requests.incrementAndGet();
+                    current.totalNanos.addAndGet(end - start);
+                    current.lastUsedNanos = end;
+                    return rc;
+                } catch (IOException e) {
+                    current.failures.incrementAndGet();
+                    markDown(current);
+                    if (!reflow || attempt >= members.size() || closed) {
+                        throw e;
+                    }
+                    try {
+                        moveFrom(current);
+                    } catch (IOException eMove) {
+                        e.addSuppressed(eMove);
+                        throw e;
+                    }
+                    failovers.incrementAndGet();
+                }
+            }
+        }
+
+        public int flowAsync(ECIRequest eciRequest, Callbackable callback) throws IOException
+        {
+            //The reply arrives later, so an asynchronous request is not moved
+            member.requests.incrementAndGet();
+            try {
+                return connection.flowAsync(eciRequest, callback);
+            } catch (IOException e) {
+                member.failures.incrementAndGet();
+                markDown(member);
+                throw e;
+            }
+        }
+
+        public boolean isOpen()
+        {
+            return connection.isOpen() && member.up && !isCrowded(member);
+        }
+
+        public void close() throws IOException
+        {
+            member.connections.decrementAndGet();
+            connection.close();
+        }
+
+        public String toString()
+        {
+            return member.toString();
+        }
+
+        /**
+         * Closes the connection to a Gateway and connects to another
+         */
+        private void moveFrom(Member from) throws IOException
+        {
+            GroupConnection replacement = connect(from);
+            try {
+                close();
+            } catch (IOException e) {
+                //The Gateway has gone, so there is nothing to close cleanly
+            }
+            member = replacement.member;
+            connection = replacement.connection;
+        }
+    }
+}
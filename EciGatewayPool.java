@@ -0,0 +1,480 @@
+/*
+*      File Name     : EciGatewayPool.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : A bounded, thread-safe pool of open Gateway
+*                      connections. Worker threads borrow a connection,
+*                      flow one or more requests through it and return it,
+*                      so the connect and SSL handshake are only paid when
+*                      the pool grows or recycles a connection.
+*
+*                      Connections are validated when borrowed, closed
+*                      after being idle for too long, and recycled once
+*                      they reach their maximum lifetime. Occupancy and
+*                      wait time statistics are kept for sizing the pool.
+*
+*                      The pool waits on a ReentrantLock rather than a
+*                      monitor, so callers running on virtual threads do
+*                      not pin their carrier thread while waiting.
+*/
+
+//package com.ibm.ctg.samples.eci;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import com.ibm.ctg.client.*;
+
+public class EciGatewayPool implements EciFlow
+{
+    /**
+     * Opens new connections for the pool
+     */
+    public interface Factory
+    {
+        EciConnection open() throws IOException;
+    }
+
+    /**
+     * A connection on loan from the pool. Flow requests through it and then
+     * hand it back with release, or with invalidate if it failed.
+     */
+    public static class Pooled implements EciFlow
+    {
+        private final EciConnection connection;
+        private final long          createdNanos;
+        private long                lastUsedNanos;
+
+        Pooled(EciConnection connection)
+        {
+            this.connection = connection;
+            this.createdNanos = System.nanoTime();
+            this.lastUsedNanos = createdNanos;
+        }
+
+        public int flow(ECIRequest eciRequest) throws IOException
+        {
+            return connection.flow(eciRequest);
+        }
+
+        public EciConnection getConnection()
+        {
+            return connection;
+        }
+    }
+
+
+    private final Factory      factory;
+    private final int          maxSize;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition    available = lock.newCondition();
+    private final ArrayDeque<Pooled> idle = new ArrayDeque<Pooled>();
+    private final ScheduledExecutorService evictor;
+
+    private volatile long borrowTimeoutMillis = 30000;
+    private volatile long maxIdleMillis = 60000;
+    private volatile long maxLifetimeMillis = 30 * 60000;
+    private volatile Predicate<EciConnection> validator = EciConnection::isOpen;
+
+    //Guarded by lock
+    private int     size;
+    private int     waiting;
+    private boolean closed;
+
+    //Statistics, guarded by lock
+    private long borrows;
+    private long creates;
+    private long destroys;
+    private long timeouts;
+    private long waits;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+    private int  peakActive;
+
+
+    /**
+     * Creates a pool that opens connections on demand, up to maxSize
+     *
+     * @param factory   opens new connections
+     * @param maxSize   the maximum number of open connections
+     */
+    public EciGatewayPool(Factory factory, int maxSize)
+    {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1");
+        }
+        this.factory = factory;
+        this.maxSize = maxSize;
+
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "EciGatewayPool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor.scheduleWithFixedDelay(this::evict, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param millis    how long borrow waits for a free connection
+     */
+    public void setBorrowTimeout(long millis)
+    {
+        borrowTimeoutMillis = millis;
+    }
+
+    /**
+     * @param millis    how long a connection may sit idle before it is
+     *                  closed, or 0 to keep idle connections open
+     */
+    public void setMaxIdle(long millis)
+    {
+        maxIdleMillis = millis;
+    }
+
+    /**
+     * @param millis    how long a connection is used for before it is
+     *                  closed and replaced, or 0 for no limit
+     */
+    public void setMaxLifetime(long millis)
+    {
+        maxLifetimeMillis = millis;
+    }
+
+    /**
+     * @param validator checks an idle connection is usable before it is
+     *                  lent out; the default only checks it is still open
+     */
+    public void setValidator(Predicate<EciConnection> validator)
+    {
+        this.validator = validator;
+    }
+
+    /**
+     * Borrows a connection, opening a new one if none are idle and the pool
+     * is not full, otherwise waiting for one to be returned
+     *
+     * @return a connection which must be passed to release or invalidate
+     * @throws IOException if no connection could be obtained in time
+     */
+    public Pooled borrow() throws IOException
+    {
+        long startNanos = System.nanoTime();
+        long deadline = startNanos + TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMillis);
+        boolean waited = false;
+
+        while (true) {
+            Pooled pooled = null;
+            boolean create = false;
+
+            lock.lock();
+            try {
+                while (true) {
+                    if (closed) {
+                        throw new IOException("Gateway pool is closed");
+                    }
+                    pooled = idle.pollFirst();
+                    if (pooled != null) {
+                        break;
+                    }
+                    if (size < maxSize) {
+                        //Reserve the slot now, open the connection outside the lock
+                        size++;
+                        create = true;
+                        break;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        timeouts++;
+                        throw new IOException("Timed out after " + borrowTimeoutMillis
+                                              + "ms waiting for a Gateway connection");
+                    }
+                    waited = true;
+                    waiting++;
+                    try {
+                        available.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for a Gateway connection");
+                    } finally {
+                        waiting--;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (create) {
+                try {
+                    pooled = new Pooled(factory.open());
+                } catch (IOException | RuntimeException e) {
+                    lock.lock();
+                    try {
+                        size--;
+                        available.signal();
+                    } finally {
+                        lock.unlock();
+                    }
+                    throw e;
+                }
+                recordBorrow(startNanos, waited, true);
+                return pooled;
+            }
+
+            if (isUsable(pooled, System.nanoTime())) {
+                recordBorrow(startNanos, waited, false);
+                return pooled;
+            }
+            destroy(pooled);
+        }
+    }
+
+    /**
+     * Returns a borrowed connection to the pool. Connections that have been
+     * closed or have reached their maximum lifetime are closed instead.
+     */
+    public void release(Pooled pooled)
+    {
+        long now = System.nanoTime();
+        if (!pooled.connection.isOpen() || isExpired(pooled, now)) {
+            destroy(pooled);
+            return;
+        }
+
+        boolean keep;
+        lock.lock();
+        try {
+            keep = !closed;
+            if (keep) {
+                pooled.lastUsedNanos = now;
+                idle.addFirst(pooled);
+                available.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (!keep) {
+            destroy(pooled);
+        }
+    }
+
+    /**
+     * Closes a borrowed connection that failed rather than returning it
+     */
+    public void invalidate(Pooled pooled)
+    {
+        destroy(pooled);
+    }
+
+    /**
+     * Borrows a connection, flows the request through it and returns it.
+     * The connection is discarded if the flow throws an IOException.
+     */
+    public int flow(ECIRequest eciRequest) throws IOException
+    {
+        Pooled pooled = borrow();
+        try {
+            int rc = pooled.flow(eciRequest);
+            release(pooled);
+            return rc;
+        } catch (IOException | RuntimeException e) {
+            invalidate(pooled);
+            throw e;
+        }
+    }
+
+    /**
+     * Closes all idle connections and stops lending connections out.
+     * Borrowed connections are closed when they are returned.
+     */
+    public void close()
+    {
+        ArrayDeque<Pooled> toClose;
+        lock.lock();
+        try {
+            closed = true;
+            toClose = new ArrayDeque<Pooled>(idle);
+            idle.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        evictor.shutdownNow();
+        for (Pooled pooled : toClose) {
+            destroy(pooled);
+        }
+    }
+
+    /**
+     * Closes idle connections that have been idle too long or reached their
+     * maximum lifetime; run periodically by the evictor thread
+     */
+    void evict()
+    {
+        long now = System.nanoTime();
+        ArrayDeque<Pooled> toClose = new ArrayDeque<Pooled>();
+        lock.lock();
+        try {
+            for (Iterator<Pooled> it = idle.iterator(); it.hasNext();) {
+                Pooled pooled = it.next();
+                if (isExpired(pooled, now) || isIdleTooLong(pooled, now)) {
+                    it.remove();
+                    toClose.add(pooled);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Pooled pooled : toClose) {
+            destroy(pooled);
+        }
+    }
+
+    private boolean isUsable(Pooled pooled, long now)
+    {
+        if (isExpired(pooled, now)) {
+            return false;
+        }
+        try {
+            return validator.test(pooled.connection);
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private boolean isExpired(Pooled pooled, long now)
+    {
+        long lifetime = maxLifetimeMillis;
+        return (lifetime > 0) && (now - pooled.createdNanos >= TimeUnit.MILLISECONDS.toNanos(lifetime));
+    }
+
+    private boolean isIdleTooLong(Pooled pooled, long now)
+    {
+        long maxIdle = maxIdleMillis;
+        return (maxIdle > 0) && (now - pooled.lastUsedNanos >= TimeUnit.MILLISECONDS.toNanos(maxIdle));
+    }
+
+    private void destroy(Pooled pooled)
+    {
+        try {
+            pooled.connection.close();
+        } catch (IOException e) {
+            //The connection is being discarded anyway
+        }
+        lock.lock();
+        try {
+            size--;
+            destroys++;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void recordBorrow(long startNanos, boolean waited, boolean created)
+    {
+        long waitNanos = System.nanoTime() - startNanos;
+        lock.lock();
+        try {
+            borrows++;
+            if (created) {
+                creates++;
+            }
+            if (waited) {
+                waits++;
+            }
+            totalWaitNanos += waitNanos;
+            if (waitNanos > maxWaitNanos) {
+                maxWaitNanos = waitNanos;
+            }
+            int active = size - idle.size();
+            if (active > peakActive) {
+                peakActive = active;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of open connections, borrowed or idle
+     */
+    public int getSize()
+    {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of connections currently borrowed
+     */
+    public int getActive()
+    {
+        lock.lock();
+        try {
+            return size - idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of idle connections
+     */
+    public int getIdle()
+    {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of threads waiting for a connection
+     */
+    public int getWaiting()
+    {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return a one line summary of the pool occupancy and wait times
+     */
+    public String getStatistics()
+    {
+        lock.lock();
+        try {
+            double avgWaitMillis = (borrows == 0) ? 0 : totalWaitNanos / 1e6 / borrows;
+            return String.format("size=%d/%d active=%d idle=%d waiting=%d peakActive=%d"
+                                 + " borrows=%d creates=%d destroys=%d waits=%d timeouts=%d"
+                                 + " avgWait=%.3fms maxWait=%.3fms",
+                                 size, maxSize, size - idle.size(), idle.size(), waiting, peakActive,
+                                 borrows, creates, destroys, waits, timeouts,
+                                 avgWaitMillis, maxWaitNanos / 1e6);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String toString()
+    {
+        return "EciGatewayPool[" + getStatistics() + "]";
+    }
+}
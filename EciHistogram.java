@@ -0,0 +1,164 @@
+/*
+*      File Name     : EciHistogram.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : A latency histogram that many threads can record into
+*                      at once. Values are counted in log-linear buckets,
+*                      32 to each power of two, so a percentile is reported
+*                      to within about 3% however long the run. The count,
+*                      minimum and maximum are exact.
+*
+*                      Histograms of the same kind of value can be merged,
+*                      for example to total the latencies of a program over
+*                      all the servers it runs on.
+*/
+
+//package com.ibm.ctg.samples.eci;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class EciHistogram
+{
+    //Buckets per power of two, as a power of two
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    //Values of 2^40ns, about 18 minutes, and above share the last bucket
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+
+    /**
+     * Records a value
+     *
+     * @param value     the value, such as a latency in nanoseconds
+     */
+    public void record(long value)
+    {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+        if (value < min.get()) {
+            min.accumulateAndGet(value, Math::min);
+        }
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    /**
+     * Adds the values recorded in another histogram to this one
+     */
+    public void merge(EciHistogram other)
+    {
+        long otherCount = other.count.get();
+        if (otherCount == 0) {
+            return;
+        }
+        for (int i = 0; i < BUCKETS; i++) {
+            long bucket = other.counts.get(i);
+            if (bucket != 0) {
+                counts.addAndGet(i, bucket);
+            }
+        }
+        count.addAndGet(otherCount);
+        total.addAndGet(other.total.get());
+        min.accumulateAndGet(other.min.get(), Math::min);
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    /**
+     * @return the smallest value recorded, or 0 if there are none
+     */
+    public long getMin()
+    {
+        return (count.get() == 0) ? 0 : min.get();
+    }
+
+    /**
+     * @return the largest value recorded, or 0 if there are none
+     */
+    public long getMax()
+    {
+        return (count.get() == 0) ? 0 : max.get();
+    }
+
+    /**
+     * @return the mean of the values recorded, or 0 if there are none
+     */
+    public double getMean()
+    {
+        long values = count.get();
+        return (values == 0) ? 0 : (double) total.get() / values;
+    }
+
+    /**
+     * Gets the value below which the given percentage of values fall
+     *
+     * @param percentile    the percentile, such as 99.9
+     * @return the value, or 0 if there are none
+     */
+    public long getPercentile(double percentile)
+    {
+        long values = count.get();
+        if (values == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * values));
+        if (rank >= values) {
+            return getMax();
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                //Report the middle of the bucket, but never beyond the range seen
+                long value = bucketMiddle(i);
+                return Math.max(getMin(), Math.min(value, getMax()));
+            }
+        }
+        return getMax();
+    }
+
+    static int bucketOf(long value)
+    {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long bucketMiddle(int bucket)
+    {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        long lowest = (1L << exponent) + (bucket % SUB_BUCKETS) * width;
+        return lowest + width / 2;
+    }
+}
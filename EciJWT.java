@@ -74,6 +74,19 @@ static final String copyright_notice ="Licensed Materials - Property of IBM 5724
     private JavaGateway javaGatewayObject;// We need a connection to the Java Gateway
 	String JWToken=null;
 
+    //Tokens are valid for 24 hours and re-signed an hour before they expire
+    private static final EciTokenCache tokenCache =
+        new EciTokenCache(24*60*60*1000L, 60*60*1000L);
+
+    private String strJwtKeyStore = null;      // Keystore holding an RS256 or ES256 signing key
+    private String strJwtStorePassword = null; // Password of the keystore
+    private String strJwtKeyAlias = null;      // Alias of the signing key
+    private EciJwtSigner jwtSigner = null;     // Signs tokens when a keystore is given
+
+    private EciLog.Level logLevel = EciLog.Level.VERBOSE; // Verbosity of the output
+    private boolean bAsyncLog = false;         // Whether to write output on a background thread
+    private EciLog log = new EciLog(System.out, EciLog.Level.VERBOSE); // Where output is written
+
 
     /*
      * Main Method
@@ -86,7 +99,12 @@ static final String copyright_notice ="Licensed Materials - Property of IBM 5724
 
         if (test.processArgs(args) == true)
         {
-            test.runTests();
+            try {
+                test.runTests();
+            } finally {
+                //Write out anything still queued
+                test.log.close();
+            }
         }
     }
 
@@ -205,33 +223,32 @@ static final String copyright_notice ="Licensed Materials - Property of IBM 5724
                     eciRequest.Extend_Mode = ECIRequest.ECI_NO_EXTEND;
 
                     //Flow the request via the JGate to CICS
-                    displayMsg("About to call : " + eciRequest.Program);
-                    if (eciRequest.Commarea != null)
+                    displayDetail("About to call : " + eciRequest.Program);
+                    if (eciRequest.Commarea != null && log.isEnabled(EciLog.Level.VERBOSE))
                     {
                         if (bDataConv) {
-                               displayMsg("  COMMAREA    : "
+                               displayDetail("  COMMAREA    : "
                                   + new String(eciRequest.Commarea,strDataConv));
                         } else {
-                            displayMsg("  COMMAREA    : "
+                            displayDetail("  COMMAREA    : "
                                + new String(eciRequest.Commarea));
                         }
                     }
-                    displayMsg("  extend_mode : " + eciRequest.Extend_Mode + "\n"
+                    displayDetail("  extend_mode : " + eciRequest.Extend_Mode + "\n"
                              + "  LUW_token   : " + eciRequest.Luw_Token);
-JWToken=create_JWTHMAC256("IBM","CTGUSER1","secret");
-displayMsg("JWT token" + JWToken); 
+JWToken=getJWT("IBM","CTGUSER1");
 eciRequest.setJWTToken(JWToken);
 //eciRequest.setIdid(new IDID("UID=CTGuser1,OU=TMS,DC=CTGTest,O=HURSLEYCTG", "ctg-ldap.hursley.ibm.com:389", true));
 //eciRequest.setIdid(new IDID("CTGUSER1","*", true));
                     javaGatewayObject.flow(eciRequest);
 
-                    if (eciRequest.Commarea != null)
+                    if (eciRequest.Commarea != null && log.isEnabled(EciLog.Level.VERBOSE))
                     {
                         if (bDataConv) {
-                            displayMsg("  Commarea    : "
+                            displayDetail("  Commarea    : "
                                + new String(eciRequest.Commarea,strDataConv));
                         } else {
-                            displayMsg("  COMMAREA    : "
+                            displayDetail("  COMMAREA    : "
                                + new String(eciRequest.Commarea));
                         }
                     }
@@ -247,33 +264,33 @@ eciRequest.setJWTToken(JWToken);
                         eciRequest.Extend_Mode = ECIRequest.ECI_EXTENDED;
 
                         //Flow the request via the JGate to CICS
-                        displayMsg("About to call : " + eciRequest.Program);
-                        if (eciRequest.Commarea != null)
+                        displayDetail("About to call : " + eciRequest.Program);
+                        if (eciRequest.Commarea != null && log.isEnabled(EciLog.Level.VERBOSE))
                         {
                             if (bDataConv) {
-                                displayMsg("  COMMAREA    : "
+                                displayDetail("  COMMAREA    : "
                                    + new String(eciRequest.Commarea,strDataConv));
                             } else {
-                                displayMsg("  COMMAREA    : "
+                                displayDetail("  COMMAREA    : "
                                    + new String(eciRequest.Commarea));
                             }
                         }
-                        displayMsg("  Extend_Mode : " + eciRequest.Extend_Mode + "\n"
+                        displayDetail("  Extend_Mode : " + eciRequest.Extend_Mode + "\n"
                                  + "  Luw_Token   : " + eciRequest.Luw_Token);
 
 //eciRequest.setIdid(new IDID("UID=CTGuser1,OU=TMS,DC=CTGTest,O=HURSLEYCTG", "ctg-ldap.hursley.ibm.com:389", true));
 //eciRequest.setIdid(new IDID("CTGUSER1","*", true));
-JWToken=create_JWTHMAC256("IBM","CICSTG","secret");
+JWToken=getJWT("IBM","CICSTG");
 eciRequest.setJWTToken(JWToken);
                         javaGatewayObject.flow(eciRequest);
 
-                        if (eciRequest.Commarea != null)
+                        if (eciRequest.Commarea != null && log.isEnabled(EciLog.Level.VERBOSE))
                         {
                             if (bDataConv) {
-                                displayMsg("  COMMAREA    : "
+                                displayDetail("  COMMAREA    : "
                                    + new String(eciRequest.Commarea,"ASCII"));
                             } else {
-                                displayMsg("  COMMAREA    : "
+                                displayDetail("  COMMAREA    : "
                                    + new String(eciRequest.Commarea));
                             }
                         }
@@ -286,7 +303,7 @@ eciRequest.setJWTToken(JWToken);
                      * call failed.
                      */
                     if (eciRequest.Luw_Token != 0) {
-                        displayMsg("About to commit LUW");
+                        displayDetail("About to commit LUW");
                         eciRequest.Cics_Rc = 0;
                         eciRequest.Extend_Mode = ECIRequest.ECI_COMMIT;
 
@@ -300,14 +317,14 @@ eciRequest.setJWTToken(JWToken);
         //Catch any exceptions
         catch (java.io.UnsupportedEncodingException e)
         {
-           displayMsg("Character set " + strDataConv + " is not supported by this JVM\n");
-           displayMsg("This sample can be run without performing code page conversion\n"
+           displayResult("Character set " + strDataConv + " is not supported by this JVM\n");
+           displayResult("This sample can be run without performing code page conversion\n"
                       + "by specifying the ASIS parameter.");
            e.printStackTrace();
         }
         catch (IOException e)
         {
-            displayMsg("Error:");
+            displayResult("Error:");
             e.printStackTrace();
 
             /*
@@ -327,7 +344,7 @@ eciRequest.setJWTToken(JWToken);
                      */
                     eciRequest.Extend_Mode = ECIRequest.ECI_BACKOUT;
 
-                    displayMsg("About to attempt a backout" + "\n"
+                    displayDetail("About to attempt a backout" + "\n"
                              + "  Extend_Mode : " + eciRequest.Extend_Mode + "\n"
                              + "  Luw_Token   : " + eciRequest.Luw_Token);
 
@@ -336,7 +353,7 @@ eciRequest.setJWTToken(JWToken);
                     displayRc(eciRequest);
                 }
                 catch (IOException eBack) {
-                    displayMsg("Exception during backout : " + eBack);
+                    displayResult("Exception during backout : " + eBack);
                 }
             }
         }
@@ -353,7 +370,7 @@ eciRequest.setJWTToken(JWToken);
                 }
             } catch (IOException eClose)
             {
-                displayMsg("Exception during close : " + eClose);
+                displayResult("Exception during close : " + eClose);
             }
         }
     }
@@ -423,7 +440,26 @@ eciRequest.setJWTToken(JWToken);
                     displayMsg("Non-sequential numbering of program names");
                     bShowHelp = true;
                 }
-            } 
+            } else if (strArg.startsWith("JWTKEYSTORE=")) {
+                strJwtKeyStore = astrArg[iArgLoop].substring(12);
+
+            } else if (strArg.startsWith("JWTSTOREPASS=")) {
+                strJwtStorePassword = astrArg[iArgLoop].substring(13);
+
+            } else if (strArg.startsWith("JWTKEYALIAS=")) {
+                strJwtKeyAlias = astrArg[iArgLoop].substring(12);
+
+            } else if (strArg.startsWith("VERBOSITY=")) {
+                try {
+                    logLevel = EciLog.Level.valueOf(strArg.substring(10));
+                } catch (IllegalArgumentException e) {
+                    displayMsg("Error - verbosity must be quiet, normal or verbose");
+                    bShowHelp = true;
+                }
+
+            } else if (strArg.startsWith("ASYNCLOG")) {
+                bAsyncLog = true;
+            }
 /* else if (strArg.startsWith("JWTOKEN=")) {
 		JWToken=astrArg[iArgLoop].substring(8);
 		displayMsg("JWToken: " + JWToken);
@@ -440,6 +476,24 @@ else {
             bShowHelp = true;
         }
 
+        //Load the signing key once, rather than for each token
+        if (strJwtKeyStore != null && !bShowHelp)
+        {
+            if (strJwtStorePassword == null) {
+                displayMsg("Error - jwtstorepass is required with jwtkeystore");
+                bShowHelp = true;
+            } else {
+                try {
+                    jwtSigner = EciJwtSigner.fromKeyStore(strJwtKeyStore, strJwtStorePassword,
+                                                          strJwtKeyAlias, null);
+                } catch (IOException | java.security.GeneralSecurityException e) {
+                    displayMsg("Error - cannot load signing key from " + strJwtKeyStore
+                             + ": " + e.getMessage());
+                    bShowHelp = true;
+                }
+            }
+        }
+
         //Work out how many program names have been given
         for (int iNoOfProgLoop = 0; iNoOfProgLoop < 10; iNoOfProgLoop++)
         {
@@ -484,24 +538,46 @@ else {
                       + "                                      [COMMAREAlength=comm_area_length]\n"
                       + "                                      [status]\n"
                       + "                                      [trace]\n"
-                      + "                                      [ascii | ebcdic | asis]");
+                      + "                                      [ascii | ebcdic | asis]\n"
+                      + "                                      [jwtkeystore=keystore_file]\n"
+                      + "                                      [jwtstorepass=keystore_password]\n"
+                      + "                                      [jwtkeyalias=signing_key_alias]\n"
+                      + "                                      [verbosity=quiet | normal | verbose]\n"
+                      + "                                      [asynclog]");
 
             displayMsg( "\nExample:\n"
                       + "  java com.ibm.ctg.samples.eci.Eci jgate=tcp://server.ibm.com jgateport=2006\n" + "   server=mycics prog0=EC01 COMMAREA=mydata userid=myuid password=mypwd");
             //Returns false if program to stop after printing command line usage.
             return false;
         }
+
+        //Set up the output as requested
+        log = bAsyncLog ? new EciLog(System.out, logLevel, 100000) : new EciLog(System.out, logLevel);
         return true;
     }
 
+    //Progress messages, shown unless running quietly
     void displayMsg (String message) {
-        System.out.println(message);
+        log.log(EciLog.Level.NORMAL, message);
+    }
+
+    //Each request and reply, shown only when verbose
+    void displayDetail (String message) {
+        log.log(EciLog.Level.VERBOSE, message);
+    }
+
+    //Results and errors, always shown
+    void displayResult (String message) {
+        log.log(EciLog.Level.QUIET, message);
     }
 
     void displayRc (ECIRequest eciRequest) {
-        displayMsg("Return code   : " + eciRequest.getRcString()
+        if (!log.isEnabled(EciLog.Level.VERBOSE)) {
+            return;
+        }
+        displayDetail("Return code   : " + eciRequest.getRcString()
                  + "(" + eciRequest.getRc() + ")");
-        displayMsg("Abend code    : " + eciRequest.Abend_Code);
+        displayDetail("Abend code    : " + eciRequest.Abend_Code);
     }
 
     byte[] getBytes(String source) throws java.io.UnsupportedEncodingException {
@@ -512,6 +588,22 @@ else {
         }
     }
 
+    //Get a cached JWT Token, signed with the keystore key if one was given
+    //and with HMAC256 otherwise
+
+    public String getJWT(String issuer, String subject) {
+        if (jwtSigner != null) {
+            return tokenCache.getToken(issuer, subject, jwtSigner);
+        }
+        return getJWTHMAC256(issuer, subject, "secret");
+    }
+
+    //Get a cached JWT Token based on HMAC256 Algorithm, creating it if needed
+
+    public String getJWTHMAC256(String issuer, String subject, String secretKey) {
+        return tokenCache.getHMAC256Token(issuer, subject, secretKey);
+    }
+
     //Create JWT Token based on HMAC256 Algorithm
    
   	public String create_JWTHMAC256(String issuer, String subject, String secretKey) {
@@ -520,7 +612,6 @@ else {
   		Date now = new Date(nowMillis);
   		Date expNew = new Date(System.currentTimeMillis()+24*60*60*1000);
 
-		System.out.println("create_JWTHMAC256 entry ");
   		//The JWT signature algorithm we will be using to sign the token
   		try {
   			Algorithm algorithm = Algorithm.HMAC256(secretKey);
@@ -532,7 +623,6 @@ else {
   			System.out.println("Exception while creating JWT Token");
   			System.out.println(exception.getMessage());
   		}
-  		System.out.println("createJWTTokens,HMAC256: {0}" + jwtToken);
   		return jwtToken;
   	}
     
@@ -0,0 +1,276 @@
+/*
+*      File Name     : EciJson.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : Reads and writes the JSON used by the replay and
+*                      capture files, one object per line. Objects become
+*                      Maps, arrays Lists, numbers Longs or Doubles.
+*
+*                      This keeps EciB2 free of a JSON library, so it still
+*                      runs with only the CICS TG jars on the classpath.
+*/
+
+//package com.ibm.ctg.samples.eci;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public final class EciJson
+{
+    private final String text;
+    private int position = 0;
+
+
+    private EciJson(String text)
+    {
+        this.text = text;
+    }
+
+    /**
+     * Parses one JSON object
+     *
+     * @param text  the JSON text, such as a line of a JSONL file
+     * @throws IOException if the text is not a JSON object
+     */
+    public static Map<String, Object> parseObject(String text) throws IOException
+    {
+        EciJson parser = new EciJson(text);
+        parser.skipSpace();
+        if (parser.peek() != '{') {
+            throw parser.error("Expected an object");
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> object = (Map<String, Object>) parser.readValue();
+        parser.skipSpace();
+        if (parser.position < text.length()) {
+            throw parser.error("Unexpected text after the object");
+        }
+        return object;
+    }
+
+    /**
+     * Appends a string as a quoted JSON string
+     */
+    public static StringBuilder appendString(StringBuilder json, String value)
+    {
+        if (value == null) {
+            return json.append("null");
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        return json.append('"');
+    }
+
+    private Object readValue() throws IOException
+    {
+        skipSpace();
+        char c = peek();
+        switch (c) {
+            case '{':
+                return readObject();
+            case '[':
+                return readArray();
+            case '"':
+                return readString();
+            case 't':
+                expect("true");
+                return Boolean.TRUE;
+            case 'f':
+                expect("false");
+                return Boolean.FALSE;
+            case 'n':
+                expect("null");
+                return null;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    return readNumber();
+                }
+                throw error("Unexpected character '" + c + "'");
+        }
+    }
+
+    private Map<String, Object> readObject() throws IOException
+    {
+        Map<String, Object> object = new LinkedHashMap<String, Object>();
+        position++;
+        skipSpace();
+        if (peek() == '}') {
+            position++;
+            return object;
+        }
+        while (true) {
+            skipSpace();
+            if (peek() != '"') {
+                throw error("Expected a field name");
+            }
+            String name = readString();
+            skipSpace();
+            if (next() != ':') {
+                throw error("Expected ':'");
+            }
+            object.put(name, readValue());
+            skipSpace();
+            char c = next();
+            if (c == '}') {
+                return object;
+            }
+            if (c != ',') {
+                throw error("Expected ',' or '}'");
+            }
+        }
+    }
+
+    private List<Object> readArray() throws IOException
+    {
+        List<Object> array = new ArrayList<Object>();
+        position++;
+        skipSpace();
+        if (peek() == ']') {
+            position++;
+            return array;
+        }
+        while (true) {
+            array.add(readValue());
+            skipSpace();
+            char c = next();
+            if (c == ']') {
+                return array;
+            }
+            if (c != ',') {
+                throw error("Expected ',' or ']'");
+            }
+        }
+    }
+
+    private String readString() throws IOException
+    {
+        position++;
+        StringBuilder value = new StringBuilder();
+        while (true) {
+            char c = next();
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            c = next();
+            switch (c) {
+                case 'b':
+                    value.append('\b');
+                    break;
+                case 'f':
+                    value.append('\f');
+                    break;
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'u':
+                    if (position + 4 > text.length()) {
+                        throw error("Incomplete \\u escape");
+                    }
+                    try {
+                        value.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("Invalid \\u escape");
+                    }
+                    position += 4;
+                    break;
+                default:
+                    value.append(c);
+            }
+        }
+    }
+
+    private Number readNumber() throws IOException
+    {
+        int start = position;
+        boolean isDecimal = false;
+        while (position < text.length()) {
+            char c = text.charAt(position);
+            if (c == '.' || c == 'e' || c == 'E') {
+                isDecimal = true;
+            } else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9'))) {
+                break;
+            }
+            position++;
+        }
+        String number = text.substring(start, position);
+        try {
+            return isDecimal ? (Number) Double.valueOf(number) : (Number) Long.valueOf(number);
+        } catch (NumberFormatException e) {
+            throw error("Invalid number " + number);
+        }
+    }
+
+    private void expect(String word) throws IOException
+    {
+        if (!text.startsWith(word, position)) {
+            throw error("Expected " + word);
+        }
+        position += word.length();
+    }
+
+    private void skipSpace()
+    {
+        while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+            position++;
+        }
+    }
+
+    private char peek() throws IOException
+    {
+        if (position >= text.length()) {
+            throw error("Unexpected end of text");
+        }
+        return text.charAt(position);
+    }
+
+    private char next() throws IOException
+    {
+        char c = peek();
+        position++;
+        return c;
+    }
+
+    private IOException error(String message)
+    {
+        return new IOException(message + " at position " + position);
+    }
+}
@@ -0,0 +1,277 @@
+/*
+*      File Name     : EciJwtSigner.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : Signs JWT tokens with RS256 or ES256 using a private
+*                      key, typically one held in a Java keystore such as
+*                      serverkey.jks.
+*
+*                      Keystores are loaded once and the keys reused. Each
+*                      thread keeps its own java.security.Signature,
+*                      initialised with the key once, so signing a token
+*                      does not look up providers or re-initialise the key
+*                      every time as the java-jwt algorithms do.
+*
+*                      ES256 signatures are converted from DER to the fixed
+*                      length R||S form that JWS requires.
+*/
+
+//package com.ibm.ctg.samples.eci;
+
+import java.io.*;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.cert.Certificate;
+import java.util.concurrent.ConcurrentHashMap;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.auth0.jwt.exceptions.SignatureGenerationException;
+import com.auth0.jwt.exceptions.SignatureVerificationException;
+
+public class EciJwtSigner extends Algorithm
+{
+    //Keystores already loaded, by path
+    private static final ConcurrentHashMap<String, KeyStore> keyStores = new ConcurrentHashMap<String, KeyStore>();
+
+    private final PublicKey  publicKey;
+    //Size of R and S in an EC signature, or 0 for RSA
+    private final int        ecNumberSize;
+
+    private final ThreadLocal<Signature> signers;
+    private final ThreadLocal<Signature> verifiers;
+
+
+    private EciJwtSigner(String name, String jcaAlgorithm, PrivateKey privateKey,
+                         PublicKey publicKey, int ecNumberSize)
+    {
+        super(name, jcaAlgorithm);
+        this.publicKey = publicKey;
+        this.ecNumberSize = ecNumberSize;
+
+        signers = ThreadLocal.withInitial(() -> {
+            try {
+                Signature signature = Signature.getInstance(jcaAlgorithm);
+                signature.initSign(privateKey);
+                return signature;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Cannot sign with " + jcaAlgorithm, e);
+            }
+        });
+        verifiers = ThreadLocal.withInitial(() -> {
+            try {
+                Signature signature = Signature.getInstance(jcaAlgorithm);
+                signature.initVerify(publicKey);
+                return signature;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Cannot verify with " + jcaAlgorithm, e);
+            }
+        });
+    }
+
+    /**
+     * Creates an RS256 signer
+     *
+     * @param privateKey    the RSA key to sign with
+     * @param publicKey     the matching public key, or null if tokens will
+     *                      not be verified
+     */
+    public static EciJwtSigner RS256(PrivateKey privateKey, PublicKey publicKey)
+    {
+        checkKey(privateKey, "RSA");
+        return new EciJwtSigner("RS256", "SHA256withRSA", privateKey, publicKey, 0);
+    }
+
+    /**
+     * Creates an ES256 signer
+     *
+     * @param privateKey    the P-256 EC key to sign with
+     * @param publicKey     the matching public key, or null if tokens will
+     *                      not be verified
+     */
+    public static EciJwtSigner ES256(PrivateKey privateKey, PublicKey publicKey)
+    {
+        checkKey(privateKey, "EC");
+        return new EciJwtSigner("ES256", "SHA256withECDSA", privateKey, publicKey, 32);
+    }
+
+    /**
+     * Creates a signer from a key in a keystore, choosing RS256 or ES256 to
+     * suit the key. The keystore is only read the first time it is used.
+     *
+     * @param path          path of the keystore, such as serverkey.jks
+     * @param storePassword password of the keystore
+     * @param alias         alias of the key, or null for the first key
+     * @param keyPassword   password of the key, or null to use the
+     *                      keystore password
+     */
+    public static EciJwtSigner fromKeyStore(String path, String storePassword, String alias, String keyPassword)
+        throws IOException, GeneralSecurityException
+    {
+        KeyStore keyStore = loadKeyStore(path, storePassword);
+
+        if (alias == null) {
+            for (java.util.Enumeration<String> aliases = keyStore.aliases(); aliases.hasMoreElements();) {
+                String candidate = aliases.nextElement();
+                if (keyStore.isKeyEntry(candidate)) {
+                    alias = candidate;
+                    break;
+                }
+            }
+            if (alias == null) {
+                throw new GeneralSecurityException("No private key found in " + path);
+            }
+        }
+
+        char[] password = ((keyPassword != null) ? keyPassword : storePassword).toCharArray();
+        java.security.Key key = keyStore.getKey(alias, password);
+        if (!(key instanceof PrivateKey)) {
+            throw new GeneralSecurityException("Alias " + alias + " in " + path + " is not a private key");
+        }
+        Certificate certificate = keyStore.getCertificate(alias);
+        PublicKey publicKey = (certificate != null) ? certificate.getPublicKey() : null;
+
+        if (key.getAlgorithm().equals("EC")) {
+            return ES256((PrivateKey) key, publicKey);
+        }
+        return RS256((PrivateKey) key, publicKey);
+    }
+
+    private static KeyStore loadKeyStore(String path, String storePassword)
+        throws IOException, GeneralSecurityException
+    {
+        KeyStore keyStore = keyStores.get(path);
+        if (keyStore == null) {
+            keyStore = KeyStore.getInstance(path.toLowerCase().endsWith(".jks") ? "JKS" : KeyStore.getDefaultType());
+            try (InputStream in = new FileInputStream(path)) {
+                keyStore.load(in, storePassword.toCharArray());
+            }
+            KeyStore existing = keyStores.putIfAbsent(path, keyStore);
+            if (existing != null) {
+                keyStore = existing;
+            }
+        }
+        return keyStore;
+    }
+
+    private static void checkKey(PrivateKey privateKey, String keyAlgorithm)
+    {
+        if (privateKey == null || !privateKey.getAlgorithm().equals(keyAlgorithm)) {
+            throw new IllegalArgumentException("An " + keyAlgorithm + " private key is required");
+        }
+    }
+
+    public byte[] sign(byte[] contentBytes) throws SignatureGenerationException
+    {
+        try {
+            Signature signature = signers.get();
+            signature.update(contentBytes);
+            byte[] signed = signature.sign();
+            return (ecNumberSize > 0) ? derToJose(signed) : signed;
+        } catch (SignatureException | RuntimeException e) {
+            //Start again with a fresh Signature on this thread
+            signers.remove();
+            throw new SignatureGenerationException(this, e);
+        }
+    }
+
+    public void verify(byte[] contentBytes, byte[] signatureBytes) throws SignatureVerificationException
+    {
+        if (publicKey == null) {
+            throw new SignatureVerificationException(this);
+        }
+        try {
+            Signature signature = verifiers.get();
+            signature.update(contentBytes);
+            byte[] expected = (ecNumberSize > 0) ? joseToDer(signatureBytes) : signatureBytes;
+            if (!signature.verify(expected)) {
+                throw new SignatureVerificationException(this);
+            }
+        } catch (SignatureException | RuntimeException e) {
+            verifiers.remove();
+            throw new SignatureVerificationException(this, e);
+        }
+    }
+
+    /**
+     * Converts a DER encoded ECDSA signature, SEQUENCE { INTEGER r, INTEGER s },
+     * to the fixed length R||S form used by JWS
+     */
+    private byte[] derToJose(byte[] der) throws SignatureException
+    {
+        int offset = 2;
+        if (der.length < 8 || der[0] != 0x30) {
+            throw new SignatureException("Invalid DER signature");
+        }
+        if ((der[1] & 0xff) == 0x81) {
+            offset = 3;
+        }
+
+        byte[] jose = new byte[ecNumberSize * 2];
+        offset = copyInteger(der, offset, jose, 0);
+        copyInteger(der, offset, jose, ecNumberSize);
+        return jose;
+    }
+
+    private int copyInteger(byte[] der, int offset, byte[] jose, int joseOffset) throws SignatureException
+    {
+        if (der[offset] != 0x02) {
+            throw new SignatureException("Invalid DER signature");
+        }
+        int length = der[offset + 1] & 0xff;
+        int start = offset + 2;
+        //Skip sign padding and leading zeros
+        while (length > ecNumberSize && der[start] == 0) {
+            start++;
+            length--;
+        }
+        if (length > ecNumberSize) {
+            throw new SignatureException("Invalid DER signature");
+        }
+        System.arraycopy(der, start, jose, joseOffset + ecNumberSize - length, length);
+        return start + length;
+    }
+
+    /**
+     * Converts an R||S signature back to DER for verification
+     */
+    private byte[] joseToDer(byte[] jose) throws SignatureException
+    {
+        if (jose.length != ecNumberSize * 2) {
+            throw new SignatureException("Invalid JOSE signature");
+        }
+        byte[] r = derInteger(jose, 0);
+        byte[] s = derInteger(jose, ecNumberSize);
+        int length = r.length + s.length;
+
+        ByteArrayOutputStream der = new ByteArrayOutputStream(length + 3);
+        der.write(0x30);
+        if (length >= 128) {
+            der.write(0x81);
+        }
+        der.write(length);
+        der.write(r, 0, r.length);
+        der.write(s, 0, s.length);
+        return der.toByteArray();
+    }
+
+    private byte[] derInteger(byte[] jose, int offset)
+    {
+        int start = offset;
+        int end = offset + ecNumberSize;
+        while (start < end - 1 && jose[start] == 0) {
+            start++;
+        }
+        boolean pad = (jose[start] & 0x80) != 0;
+        int length = end - start + (pad ? 1 : 0);
+
+        byte[] integer = new byte[length + 2];
+        integer[0] = 0x02;
+        integer[1] = (byte) length;
+        System.arraycopy(jose, start, integer, 2 + (pad ? 1 : 0), end - start);
+        return integer;
+    }
+}
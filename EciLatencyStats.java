@@ -0,0 +1,193 @@
+/*
+*      File Name     : EciLatencyStats.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : Latency histograms of ECI calls, one for each CICS
+*                      server, program and return code. The report lists
+*                      p50, p90, p99, p99.9 and max for each, slowest p99
+*                      first, followed by the totals for each program, to
+*                      show which backend program is driving tail latency.
+*
+*                      Flows that end in an exception are recorded with
+*                      the return code shown as "exception".
+*/
+
+//package com.ibm.ctg.samples.eci;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import com.ibm.ctg.client.*;
+
+public class EciLatencyStats
+{
+    //Return code recorded for a flow that threw an exception
+    public static final int RC_EXCEPTION = Integer.MIN_VALUE;
+
+    private final ConcurrentHashMap<Key, EciHistogram> histograms = new ConcurrentHashMap<Key, EciHistogram>();
+
+
+    /**
+     * Records the latency of a call
+     *
+     * @param server        the CICS server
+     * @param program       the program called
+     * @param rc            the return code, or RC_EXCEPTION
+     * @param latencyNanos  how long the call took
+     */
+    public void record(String server, String program, int rc, long latencyNanos)
+    {
+        Key key = new Key(server, program, rc);
+        EciHistogram histogram = histograms.get(key);
+        if (histogram == null) {
+            histogram = histograms.computeIfAbsent(key, k -> new EciHistogram());
+        }
+        histogram.record(latencyNanos);
+    }
+
+    /**
+     * Records the latency of a flowed request. Commits and backouts are
+     * named after what they did to the LUW whatever Program holds, as
+     * callers often reuse the request of the LUW's last call for them.
+     *
+     * @param eciRequest    the request after it has been flowed
+     * @param failed        true if the flow threw an exception
+     * @param latencyNanos  how long the flow took
+     */
+    public void record(ECIRequest eciRequest, boolean failed, long latencyNanos)
+    {
+        String program;
+        switch (eciRequest.Extend_Mode) {
+            case ECIRequest.ECI_COMMIT:
+                program = "<commit>";
+                break;
+            case ECIRequest.ECI_BACKOUT:
+                program = "<backout>";
+                break;
+            default:
+                program = eciRequest.Program;
+                if (program == null || program.isEmpty()) {
+                    program = "<none>";
+                }
+        }
+        record(eciRequest.Server, program, failed ? RC_EXCEPTION : eciRequest.getRc(), latencyNanos);
+    }
+
+    /**
+     * Wraps a flow so that every request through it is timed
+     *
+     * @param flow  the flow to time
+     */
+    public EciFlow timed(final EciFlow flow)
+    {
+        return eciRequest -> {
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                int rc = flow.flow(eciRequest);
+                failed = false;
+                return rc;
+            } finally {
+                record(eciRequest, failed, System.nanoTime() - start);
+            }
+        };
+    }
+
+    /**
+     * @return the histograms merged by program, over all servers and
+     *         return codes
+     */
+    public Map<String, EciHistogram> byProgram()
+    {
+        Map<String, EciHistogram> programs = new TreeMap<String, EciHistogram>();
+        for (Map.Entry<Key, EciHistogram> entry : histograms.entrySet()) {
+            programs.computeIfAbsent(entry.getKey().program, p -> new EciHistogram())
+                    .merge(entry.getValue());
+        }
+        return programs;
+    }
+
+    /**
+     * Empties the statistics
+     */
+    public void clear()
+    {
+        histograms.clear();
+    }
+
+    /**
+     * @return a table of the latencies in milliseconds, or an empty string
+     *         if nothing has been recorded
+     */
+    public String report()
+    {
+        if (histograms.isEmpty()) {
+            return "";
+        }
+        List<Map.Entry<Key, EciHistogram>> entries =
+            new ArrayList<Map.Entry<Key, EciHistogram>>(histograms.entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue().getPercentile(99.0),
+                                            a.getValue().getPercentile(99.0)));
+
+        StringBuilder report = new StringBuilder();
+        String format = "%-10s %-10s %-10s %9s %9s %9s %9s %9s %9s%n";
+        report.append(String.format(format, "Server", "Program", "Rc", "Count",
+                                    "p50", "p90", "p99", "p99.9", "max"));
+        for (Map.Entry<Key, EciHistogram> entry : entries) {
+            Key key = entry.getKey();
+            appendRow(report, key.server, key.program,
+                      (key.rc == RC_EXCEPTION) ? "exception" : Integer.toString(key.rc),
+                      entry.getValue());
+        }
+        report.append(String.format("%nBy program%n"));
+        for (Map.Entry<String, EciHistogram> entry : byProgram().entrySet()) {
+            appendRow(report, "*", entry.getKey(), "*", entry.getValue());
+        }
+        return report.toString();
+    }
+
+    private static void appendRow(StringBuilder report, String server, String program, String rc,
+                                  EciHistogram histogram)
+    {
+        report.append(String.format("%-10s %-10s %-10s %9d %9.3f %9.3f %9.3f %9.3f %9.3f%n",
+                                    server, program, rc, histogram.getCount(),
+                                    histogram.getPercentile(50.0) / 1e6,
+                                    histogram.getPercentile(90.0) / 1e6,
+                                    histogram.getPercentile(99.0) / 1e6,
+                                    histogram.getPercentile(99.9) / 1e6,
+                                    histogram.getMax() / 1e6));
+    }
+
+
+    private static class Key
+    {
+        final String server;
+        final String program;
+        final int    rc;
+
+        Key(String server, String program, int rc)
+        {
+            this.server = (server == null) ? "" : server;
+            this.program = (program == null) ? "" : program;
+            this.rc = rc;
+        }
+
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return rc == key.rc && server.equals(key.server) && program.equals(key.program);
+        }
+
+        public int hashCode()
+        {
+            return (server.hashCode() * 31 + program.hashCode()) * 31 + rc;
+        }
+    }
+}
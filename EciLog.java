@@ -0,0 +1,235 @@
+/*
+*      File Name     : EciLog.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : Console output for the samples, with verbosity
+*                      levels. QUIET shows only results and errors, NORMAL
+*                      adds progress messages and VERBOSE adds each request
+*                      and reply.
+*
+*                      In asynchronous mode, messages are put on a lock-free
+*                      queue and a background thread writes them out in
+*                      batches, so a thread flowing requests never waits
+*                      for the console. If the writer falls too far behind,
+*                      NORMAL and VERBOSE messages are dropped and counted
+*                      rather than blocking the caller. QUIET messages are
+*                      results and errors, so they are always written.
+*/
+
+//package com.ibm.ctg.samples.eci;
+
+import java.io.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class EciLog
+{
+    public enum Level { QUIET, NORMAL, VERBOSE }
+
+    //Most messages written in one batch
+    private static final int BATCH_SIZE = 1024;
+
+    private final PrintStream out;
+    private final Level level;
+
+    //Asynchronous mode only
+    private final ConcurrentLinkedQueue<String> queue;
+    private final int capacity;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long written = 0;
+    private volatile boolean writerParked = false;
+    private volatile boolean closed = false;
+    private final Thread writer;
+
+
+    /**
+     * Creates a log that writes each message as it is logged
+     *
+     * @param out       where to write messages
+     * @param level     the most detailed level to write
+     */
+    public EciLog(PrintStream out, Level level)
+    {
+        this.out = out;
+        this.level = level;
+        this.queue = null;
+        this.capacity = 0;
+        this.writer = null;
+    }
+
+    /**
+     * Creates a log that writes messages in batches on a background thread
+     *
+     * @param out       where to write messages
+     * @param level     the most detailed level to write
+     * @param capacity  the most messages waiting to be written before
+     *                  further NORMAL and VERBOSE messages are dropped
+     */
+    public EciLog(PrintStream out, Level level, int capacity)
+    {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        this.out = out;
+        this.level = level;
+        this.queue = new ConcurrentLinkedQueue<String>();
+        this.capacity = capacity;
+        this.writer = new Thread(this::writeMessages, "EciLog-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @return true if messages at the level are written. Check this before
+     *         building an expensive message.
+     */
+    public boolean isEnabled(Level messageLevel)
+    {
+        return messageLevel.compareTo(level) <= 0;
+    }
+
+    /**
+     * @return the most detailed level written
+     */
+    public Level getLevel()
+    {
+        return level;
+    }
+
+    /**
+     * Logs a message, if its level is enabled
+     *
+     * @param messageLevel  the level of the message
+     * @param message       the message, written as a line
+     */
+    public void log(Level messageLevel, String message)
+    {
+        if (!isEnabled(messageLevel)) {
+            return;
+        }
+        if (queue == null) {
+            out.println(message);
+            return;
+        }
+        if (closed) {
+            if (messageLevel == Level.QUIET) {
+                out.println(message);
+            } else {
+                dropped.incrementAndGet();
+            }
+            return;
+        }
+        //Results and errors are never dropped, so they may go past the cap
+        if (queued.incrementAndGet() > capacity && messageLevel != Level.QUIET) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        accepted.incrementAndGet();
+        queue.offer(message);
+        //The writer may have seen closed and an empty queue before the offer, so take it back
+        if (closed && queue.remove(message)) {
+            queued.decrementAndGet();
+            accepted.decrementAndGet();
+            if (messageLevel == Level.QUIET) {
+                out.println(message);
+            } else {
+                dropped.incrementAndGet();
+            }
+            return;
+        }
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Waits until the messages logged so far have been written
+     */
+    public void flush()
+    {
+        if (queue == null) {
+            out.flush();
+            return;
+        }
+        long target = accepted.get();
+        while (written < target && writer.isAlive()) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * Writes any waiting messages and stops the background writer. QUIET
+     * messages logged afterwards are written at once; others are dropped.
+     */
+    public void close()
+    {
+        flush();
+        if (queue == null) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (dropped.get() > 0) {
+            out.println("EciLog: " + dropped.get() + " messages dropped, the console could not keep up");
+        }
+        out.flush();
+    }
+
+    /**
+     * @return the number of messages dropped because the queue was full
+     */
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * Takes messages off the queue and writes them a batch at a time, so
+     * the output stream is locked and flushed once per batch
+     */
+    private void writeMessages()
+    {
+        StringBuilder batch = new StringBuilder(64 * 1024);
+        String separator = System.lineSeparator();
+
+        while (true) {
+            int count = 0;
+            String message;
+            while (count < BATCH_SIZE && (message = queue.poll()) != null) {
+                batch.append(message).append(separator);
+                count++;
+            }
+
+            if (count > 0) {
+                queued.addAndGet(-count);
+                out.print(batch);
+                out.flush();
+                batch.setLength(0);
+                written += count;
+                continue;
+            }
+
+            if (closed) {
+                return;
+            }
+            writerParked = true;
+            if (queue.isEmpty() && !closed) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+            }
+            writerParked = false;
+        }
+    }
+}
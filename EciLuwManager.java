@@ -0,0 +1,315 @@
+/*
+*      File Name     : EciLuwManager.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : Runs many extended logical units of work at once
+*                      over a pool of Gateway connections.
+*
+*                      An LUW's calls, and its commit or backout, must all
+*                      flow over the connection that started it. Each Luw
+*                      from begin holds one pooled connection until the
+*                      LUW ends, so LUWs on different threads run side by
+*                      side, each on its own connection.
+*
+*                      Every open LUW is kept in a table with its LUW token
+*                      and a deadline. A reaper thread backs out any LUW
+*                      still open after its deadline, so an LUW left open
+*                      by a caller that failed or forgot does not hold
+*                      locks in CICS, or a connection, for ever. Closing a
+*                      Luw that was not committed also backs it out, so
+*                      try-with-resources never leaves an LUW behind.
+*/
+
+//package com.ibm.ctg.samples.eci;
+
+import java.io.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import com.ibm.ctg.client.*;
+
+public class EciLuwManager
+{
+    private final EciGatewayPool gatewayPool;
+    private final ConcurrentHashMap<Long, Luw> open = new ConcurrentHashMap<Long, Luw>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final ScheduledExecutorService reaper;
+    private volatile long timeoutNanos;
+    private volatile boolean closed = false;
+
+    private final AtomicLong begun = new AtomicLong();
+    private final AtomicLong committed = new AtomicLong();
+    private final AtomicLong backedOut = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong peakOpen = new AtomicLong();
+
+
+    /**
+     * Creates a manager and starts its reaper, which checks deadlines ten
+     * times a second
+     *
+     * @param gatewayPool   the connections LUWs run over
+     * @param timeoutMillis how long an LUW may stay open before it is
+     *                      backed out
+     */
+    public EciLuwManager(EciGatewayPool gatewayPool, long timeoutMillis)
+    {
+        this.gatewayPool = gatewayPool;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+        reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "EciLuwManager-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reaper.scheduleWithFixedDelay(this::reap, 100, 100, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets the deadline of LUWs begun from now on
+     */
+    public void setTimeout(long millis)
+    {
+        timeoutNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Borrows a connection for a new LUW. Flow the LUW's calls through the
+     * Luw, then commit it by flowing ECI_COMMIT, and close it.
+     *
+     * @throws IOException if no connection could be borrowed
+     */
+    public Luw begin() throws IOException
+    {
+        if (closed) {
+            throw new IOException("LUW manager is closed");
+        }
+        Luw luw = new Luw(nextId.incrementAndGet(), gatewayPool.borrow(),
+                          System.nanoTime() + timeoutNanos);
+        open.put(luw.id, luw);
+        begun.incrementAndGet();
+        long count = open.size();
+        long peak;
+        while (count > (peak = peakOpen.get()) && !peakOpen.compareAndSet(peak, count)) {
+            //Another thread raised the peak, so compare again
+        }
+        return luw;
+    }
+
+    /**
+     * @return the number of LUWs holding a connection
+     */
+    public int getOpen()
+    {
+        return open.size();
+    }
+
+    /**
+     * Stops the reaper and backs out every LUW still open
+     */
+    public void close()
+    {
+        closed = true;
+        reaper.shutdownNow();
+        for (Luw luw : open.values()) {
+            luw.lock.lock();
+            try {
+                luw.end("the LUW manager was closed", true);
+            } finally {
+                luw.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return a one line summary of how LUWs ended
+     */
+    public String getStatistics()
+    {
+        return "begun=" + begun.get() + " committed=" + committed.get()
+               + " backedOut=" + backedOut.get() + " timedOut=" + timedOut.get()
+               + " abandoned=" + abandoned.get() + " failed=" + failed.get()
+               + " open=" + open.size() + " peakOpen=" + peakOpen.get();
+    }
+
+    /**
+     * Backs out LUWs past their deadline. One that is flowing a call is
+     * left to the caller's thread, which backs it out when the call
+     * returns.
+     */
+    private void reap()
+    {
+        long now = System.nanoTime();
+        for (Luw luw : open.values()) {
+            if (now - luw.deadlineNanos >= 0 && luw.lock.tryLock()) {
+                try {
+                    if (luw.endedReason == null) {
+                        timedOut.incrementAndGet();
+                        luw.end("the LUW timed out", true);
+                    }
+                } finally {
+                    luw.lock.unlock();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * One extended LUW, pinned to its connection until it ends
+     */
+    public class Luw implements EciFlow, AutoCloseable
+    {
+        private final long id;
+        private final long deadlineNanos;
+        private final ReentrantLock lock = new ReentrantLock();
+        private EciGatewayPool.Pooled pooled;
+        //Guarded by lock
+        private int    luwToken = ECIRequest.ECI_LUW_NEW;
+        private String server;
+        private String userid;
+        private String password;
+        private String endedReason = null;
+
+        Luw(long id, EciGatewayPool.Pooled pooled, long deadlineNanos)
+        {
+            this.id = id;
+            this.pooled = pooled;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * Flows a call of this LUW over its connection. The request's LUW
+         * token is kept in the table, and the LUW ends when a commit or
+         * backout is flowed.
+         *
+         * @throws IOException if the LUW has already ended, for example by
+         *         timing out, or the connection failed
+         */
+        public int flow(ECIRequest eciRequest) throws IOException
+        {
+            lock.lock();
+            try {
+                if (endedReason != null) {
+                    throw new IOException("LUW " + id + " has ended: " + endedReason);
+                }
+                if (System.nanoTime() - deadlineNanos >= 0) {
+                    timedOut.incrementAndGet();
+                    end("the LUW timed out", true);
+                    throw new IOException("LUW " + id + " has ended: " + endedReason);
+                }
+
+                int rc;
+                try {
+                    rc = pooled.flow(eciRequest);
+                } catch (IOException | RuntimeException e) {
+                    //The Gateway backs out an LUW whose connection is lost
+                    failed.incrementAndGet();
+                    gatewayPool.invalidate(pooled);
+                    finish("the connection failed: " + e);
+                    throw e;
+                }
+
+                luwToken = eciRequest.Luw_Token;
+                server = eciRequest.Server;
+                userid = eciRequest.Userid;
+                password = eciRequest.Password;
+                if (eciRequest.Extend_Mode == ECIRequest.ECI_COMMIT && rc == ECIRequest.ECI_NO_ERROR) {
+                    committed.incrementAndGet();
+                    release("the LUW was committed");
+                } else if (eciRequest.Extend_Mode == ECIRequest.ECI_COMMIT
+                           || eciRequest.Extend_Mode == ECIRequest.ECI_BACKOUT) {
+                    backedOut.incrementAndGet();
+                    release("the LUW was backed out");
+                }
+                return rc;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return the LUW token, or 0 if no LUW has been started in CICS
+         */
+        public int getLuwToken()
+        {
+            lock.lock();
+            try {
+                return luwToken;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Backs out the LUW if it is still open and gives back its
+         * connection
+         */
+        public void close()
+        {
+            lock.lock();
+            try {
+                if (endedReason == null) {
+                    if (luwToken != ECIRequest.ECI_LUW_NEW) {
+                        abandoned.incrementAndGet();
+                    }
+                    end("the LUW was closed", luwToken != ECIRequest.ECI_LUW_NEW);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Ends the LUW, backing it out first if asked to and it has a token.
+         * Called with the lock held.
+         */
+        private void end(String reason, boolean backout)
+        {
+            if (endedReason != null) {
+                return;
+            }
+            if (!backout || luwToken == ECIRequest.ECI_LUW_NEW) {
+                release(reason);
+                return;
+            }
+
+            ECIRequest backoutRequest = new ECIRequest();
+            backoutRequest.Call_Type = ECIRequest.ECI_SYNC;
+            backoutRequest.Extend_Mode = ECIRequest.ECI_BACKOUT;
+            backoutRequest.Luw_Token = luwToken;
+            backoutRequest.Server = server;
+            backoutRequest.Userid = userid;
+            backoutRequest.Password = password;
+            try {
+                pooled.flow(backoutRequest);
+                backedOut.incrementAndGet();
+                release(reason + " and was backed out");
+            } catch (IOException | RuntimeException e) {
+                failed.incrementAndGet();
+                gatewayPool.invalidate(pooled);
+                finish(reason + ", and backout failed: " + e);
+            }
+        }
+
+        private void release(String reason)
+        {
+            gatewayPool.release(pooled);
+            finish(reason);
+        }
+
+        private void finish(String reason)
+        {
+            endedReason = reason;
+            luwToken = ECIRequest.ECI_LUW_NEW;
+            pooled = null;
+            open.remove(id);
+        }
+    }
+}
@@ -0,0 +1,376 @@
+/*
+*      File Name     : EciRecord.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : The base of the COMMAREA layouts generated by
+*                      EciCopybook. A layout is a flyweight: it holds no
+*                      data of its own, but reads and writes the fields of
+*                      a COBOL record in place in a COMMAREA byte[] or a
+*                      ByteBuffer. One layout can be moved from buffer to
+*                      buffer with wrap, so reading a reply allocates
+*                      nothing.
+*
+*                      Fields are converted directly between bytes and
+*                      Java values:
+*
+*                        PIC X         characters, through an EciCodec
+*                        PIC 9         zoned decimal, sign in the last byte
+*                        COMP, COMP-4,
+*                        COMP-5, BINARY big-endian binary
+*                        COMP-3        packed decimal
+*
+*                      Numbers are read and written as long, unscaled: a
+*                      PIC 9(5)V99 holding 123.45 reads as 12345. As in
+*                      COBOL, a number too big for its field loses its
+*                      high-order digits when set.
+*/
+
+//package com.ibm.ctg.samples.eci;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+public abstract class EciRecord
+{
+    private static final long[] POWERS_OF_TEN = new long[19];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final EciCodec codec;
+    private final byte space;
+    //High nibble of the digits, and of the last digit of a negative number
+    private final int  digitZone;
+    private final int  negativeZone;
+    private final int  positiveZone;
+
+    private byte[]     bytes;
+    private ByteBuffer buffer;
+    private int        offset;
+
+
+    /**
+     * @param codec the code page of the character and zoned decimal fields
+     */
+    protected EciRecord(EciCodec codec)
+    {
+        this.codec = codec;
+        this.space = codec.encode(' ');
+        this.digitZone = codec.encode('0') & 0xF0;
+        //EBCDIC signs with C and D zones, ASCII as Micro Focus COBOL does
+        boolean ebcdic = (digitZone == 0xF0);
+        this.negativeZone = ebcdic ? 0xD0 : 0x70;
+        this.positiveZone = ebcdic ? 0xC0 : 0x30;
+    }
+
+    /**
+     * @return the length of the record in bytes
+     */
+    public abstract int length();
+
+    /**
+     * @return the code page of the character fields
+     */
+    public EciCodec getCodec()
+    {
+        return codec;
+    }
+
+    /**
+     * Points the layout at a record in a byte array
+     */
+    protected final void attach(byte[] bytes, int offset)
+    {
+        if (offset < 0 || length() > bytes.length - offset) {
+            throw new IndexOutOfBoundsException("No room for a " + length() + " byte record at " + offset
+                                                + " in " + bytes.length + " bytes");
+        }
+        this.bytes = bytes;
+        this.buffer = null;
+        this.offset = offset;
+    }
+
+    /**
+     * Points the layout at a record in a buffer. The buffer's position and
+     * limit are not used or changed.
+     */
+    protected final void attach(ByteBuffer buffer, int offset)
+    {
+        if (buffer.hasArray()) {
+            if (offset < 0 || length() > buffer.capacity() - offset) {
+                throw new IndexOutOfBoundsException("No room for a " + length() + " byte record at "
+                                                    + offset + " in " + buffer.capacity() + " bytes");
+            }
+            this.bytes = buffer.array();
+            this.buffer = null;
+            this.offset = buffer.arrayOffset() + offset;
+            return;
+        }
+        if (offset < 0 || length() > buffer.capacity() - offset) {
+            throw new IndexOutOfBoundsException("No room for a " + length() + " byte record at " + offset
+                                                + " in " + buffer.capacity() + " bytes");
+        }
+        this.bytes = null;
+        this.buffer = buffer;
+        this.offset = offset;
+    }
+
+    protected final byte byteAt(int position)
+    {
+        return (bytes != null) ? bytes[offset + position] : buffer.get(offset + position);
+    }
+
+    protected final void putByte(int position, byte value)
+    {
+        if (bytes != null) {
+            bytes[offset + position] = value;
+        } else {
+            buffer.put(offset + position, value);
+        }
+    }
+
+    /**
+     * Fills a field with one byte value
+     */
+    protected final void fill(int position, int length, byte value)
+    {
+        if (bytes != null) {
+            java.util.Arrays.fill(bytes, offset + position, offset + position + length, value);
+        } else {
+            for (int i = 0; i < length; i++) {
+                buffer.put(offset + position + i, value);
+            }
+        }
+    }
+
+    /**
+     * Decodes a character field into a char array
+     *
+     * @return the number of characters written, which is the field length
+     */
+    protected final int getText(int position, int length, char[] dest, int destOffset)
+    {
+        if (bytes != null) {
+            return codec.decode(bytes, offset + position, length, dest, destOffset);
+        }
+        if (destOffset < 0 || length > dest.length - destOffset) {
+            throw new ArrayIndexOutOfBoundsException("No room for " + length + " characters at " + destOffset);
+        }
+        for (int i = 0; i < length; i++) {
+            dest[destOffset + i] = codec.decode(buffer.get(offset + position + i));
+        }
+        return length;
+    }
+
+    /**
+     * Decodes a character field into a CharBuffer at its position
+     */
+    protected final int getText(int position, int length, CharBuffer dest)
+    {
+        if (bytes != null) {
+            return codec.decode(bytes, offset + position, length, dest);
+        }
+        for (int i = 0; i < length; i++) {
+            dest.put(codec.decode(buffer.get(offset + position + i)));
+        }
+        return length;
+    }
+
+    /**
+     * Encodes characters into a field, padding with spaces or truncating
+     * to the field length
+     */
+    protected final void setText(int position, int length, CharSequence value)
+    {
+        int count = Math.min(length, value.length());
+        if (bytes != null) {
+            codec.encode(value, 0, count, bytes, offset + position);
+        } else {
+            for (int i = 0; i < count; i++) {
+                buffer.put(offset + position + i, codec.encode(value.charAt(i)));
+            }
+        }
+        fill(position + count, length - count, space);
+    }
+
+    /**
+     * @return true if a field holds the characters, padded with spaces to
+     *         the field length
+     */
+    protected final boolean textEquals(int position, int length, CharSequence value)
+    {
+        if (value.length() > length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            byte expected = (i < value.length()) ? codec.encode(value.charAt(i)) : space;
+            if (byteAt(position + i) != expected) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a character field as a new string without its trailing
+     *         spaces. This allocates, so it is for display rather than for
+     *         the paths the layout is used to keep allocation free.
+     */
+    protected final String getString(int position, int length)
+    {
+        int end = length;
+        while (end > 0 && byteAt(position + end - 1) == space) {
+            end--;
+        }
+        char[] chars = new char[end];
+        getText(position, end, chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * Reads a zoned decimal field. Spaces read as zeros, as an unset field
+     * is often all spaces.
+     *
+     * @throws NumberFormatException if a byte is not a digit
+     */
+    protected final long getZoned(int position, int length)
+    {
+        long value = 0;
+        int last = 0;
+        for (int i = 0; i < length; i++) {
+            last = byteAt(position + i) & 0xff;
+            int digit = last & 0x0F;
+            if (last == (space & 0xff)) {
+                digit = 0;
+            } else if (digit > 9) {
+                throw new NumberFormatException("Bad zoned decimal byte 0x" + Integer.toHexString(last)
+                                                + " at " + (position + i));
+            }
+            value = value * 10 + digit;
+        }
+        int zone = last & 0xF0;
+        return (zone == negativeZone || zone == 0xB0) ? -value : value;
+    }
+
+    /**
+     * Writes a zoned decimal field, keeping the low-order digits that fit
+     *
+     * @param signed    true for a PIC S9 field, which has the sign in the
+     *                  zone of its last byte
+     */
+    protected final void setZoned(int position, int length, long value, boolean signed)
+    {
+        boolean negative = signed && value < 0;
+        long remaining = Math.abs(value % POWERS_OF_TEN[Math.min(length, 18)]);
+        for (int i = length - 1; i >= 0; i--) {
+            int digit = (int) (remaining % 10);
+            remaining /= 10;
+            int zone = digitZone;
+            if (i == length - 1 && signed) {
+                zone = negative ? negativeZone : positiveZone;
+            }
+            putByte(position + i, (byte) (zone | digit));
+        }
+    }
+
+    /**
+     * Reads a packed decimal field
+     *
+     * @throws NumberFormatException if a digit nibble is not 0 to 9
+     */
+    protected final long getPacked(int position, int length)
+    {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            int b = byteAt(position + i) & 0xff;
+            int high = b >> 4;
+            int low = b & 0x0F;
+            if (high > 9 || (i < length - 1 && low > 9)) {
+                throw new NumberFormatException("Bad packed decimal byte 0x" + Integer.toHexString(b)
+                                                + " at " + (position + i));
+            }
+            value = value * 10 + high;
+            if (i < length - 1) {
+                value = value * 10 + low;
+            } else if (low == 0x0D || low == 0x0B) {
+                value = -value;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Writes a packed decimal field, keeping the low-order digits that fit
+     *
+     * @param signed    true for a PIC S9 field, signed C or D, otherwise
+     *                  the sign nibble is F
+     */
+    protected final void setPacked(int position, int length, long value, boolean signed)
+    {
+        int digits = length * 2 - 1;
+        long remaining = Math.abs(value % POWERS_OF_TEN[Math.min(digits, 18)]);
+        int sign = !signed ? 0x0F : (value < 0 ? 0x0D : 0x0C);
+        int b = (int) (remaining % 10) << 4 | sign;
+        remaining /= 10;
+        putByte(position + length - 1, (byte) b);
+        for (int i = length - 2; i >= 0; i--) {
+            int low = (int) (remaining % 10);
+            remaining /= 10;
+            int high = (int) (remaining % 10);
+            remaining /= 10;
+            putByte(position + i, (byte) (high << 4 | low));
+        }
+    }
+
+    /**
+     * Reads a big-endian binary field of 2, 4 or 8 bytes
+     */
+    protected final long getBinary(int position, int length, boolean signed)
+    {
+        long value = signed ? byteAt(position) : (byteAt(position) & 0xff);
+        for (int i = 1; i < length; i++) {
+            value = (value << 8) | (byteAt(position + i) & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * Writes a big-endian binary field of 2, 4 or 8 bytes
+     *
+     * @param digits    the PIC digits to truncate to, as COBOL does for
+     *                  COMP, or 0 to keep every bit that fits, as for COMP-5
+     */
+    protected final void setBinary(int position, int length, long value, int digits)
+    {
+        if (digits > 0 && digits < 19) {
+            value = value % POWERS_OF_TEN[digits];
+        }
+        for (int i = length - 1; i >= 0; i--) {
+            putByte(position + i, (byte) value);
+            value >>= 8;
+        }
+    }
+
+    /**
+     * @return the byte a space encodes to, for filling character fields
+     */
+    protected final byte space()
+    {
+        return space;
+    }
+
+    /**
+     * Throws if an OCCURS index is out of range. Indexes count from 0.
+     */
+    protected static int checkIndex(int index, int count)
+    {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of range 0 to " + (count - 1));
+        }
+        return index;
+    }
+}
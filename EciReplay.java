@@ -0,0 +1,487 @@
+/*
+*      File Name     : EciReplay.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : Replays an ECI workload from a JSONL file, one
+*                      request per line, for example:
+*
+*   {"offsetMillis":0,"server":"CICSA","program":"EC01","commarea":"hello","codepage":"IBM037","commareaLength":100}
+*   {"offsetMillis":15,"program":"EC02","commareaBase64":"yIWTk5Y=","extendMode":"EXTENDED","luw":"a1"}
+*   {"offsetMillis":20,"extendMode":"COMMIT","luw":"a1"}
+*
+*                      offsetMillis is when the request was made, relative
+*                      to any earlier point such as the start of a capture.
+*                      The COMMAREA is given as text, converted with
+*                      codepage (ASCII, IBM037 or IBM1047, ASCII by
+*                      default), or as base64 bytes. extendMode is
+*                      NO_EXTEND, EXTENDED, COMMIT or BACKOUT, or its
+*                      number. Records with the same luw are one extended
+*                      LUW and flow in order over the same connection.
+*                      Missing server and userid fields are defaulted.
+*                      A channel request gives channel and a containers
+*                      array of {"name","type","text"} for CHAR containers
+*                      or {"name","type","dataBase64"} for BIT containers,
+*                      in place of a COMMAREA. Other fields, such as the
+*                      replies written by EciCapture, are ignored.
+*
+*                      The file is streamed. A reader thread parses lines
+*                      into small bounded queues, one per worker, so memory
+*                      use does not grow with the size of the file.
+*                      Requests are flowed at the recorded rate times a
+*                      speed multiplier, or as fast as possible with a
+*                      speed of 0. How late each request started is
+*                      recorded, to show whether the replay kept up.
+*/
+
+//package com.ibm.ctg.samples.eci;
+
+import java.io.*;
+import java.util.Base64;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import com.ibm.ctg.client.*;
+
+public class EciReplay
+{
+    //Records waiting for each worker
+    private static final int QUEUE_CAPACITY = 256;
+    private static final Record END = new Record(0, null, null, null);
+
+    private final EciGatewayPool gatewayPool;
+    private final EciCommareaPool commareaPool;
+    private final EciLatencyStats latencyStats;
+    private final int workers;
+    private final double speed;
+
+    private String defaultServer = null;
+    private String defaultUserid = null;
+    private String password = null;
+
+    private final EciHistogram lag = new EciHistogram();
+    private final AtomicLong flowed = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private long lines = 0;
+    private long skipped = 0;
+    private String firstSkipReason = null;
+    private volatile IOException lastException = null;
+
+
+    /**
+     * @param gatewayPool   connections to replay over, one held by each
+     *                      worker
+     * @param workers       number of threads flowing requests
+     * @param speed         multiplier of the recorded rate, or 0 to flow
+     *                      requests as fast as possible
+     * @param latencyStats  records the latency of each flow
+     */
+    public EciReplay(EciGatewayPool gatewayPool, int workers, double speed, EciLatencyStats latencyStats)
+    {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be at least 1");
+        }
+        this.gatewayPool = gatewayPool;
+        this.commareaPool = new EciCommareaPool(workers * QUEUE_CAPACITY);
+        this.latencyStats = latencyStats;
+        this.workers = workers;
+        this.speed = Math.max(0, speed);
+    }
+
+    /**
+     * Sets the server and userid used by records that do not give one, and
+     * the password used with every userid
+     */
+    public void setDefaults(String server, String userid, String password)
+    {
+        this.defaultServer = server;
+        this.defaultUserid = userid;
+        this.password = password;
+    }
+
+    /**
+     * Replays every record in a file, returning when all have been flowed
+     *
+     * @param in    the JSONL file
+     */
+    public void run(BufferedReader in) throws IOException, InterruptedException
+    {
+        List<BlockingQueue<Record>> queues = new ArrayList<BlockingQueue<Record>>(workers);
+        Thread[] threads = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            final BlockingQueue<Record> queue = new ArrayBlockingQueue<Record>(QUEUE_CAPACITY);
+            queues.add(queue);
+            threads[i] = new Thread(() -> replay(queue), "EciReplay-" + i);
+            threads[i].start();
+        }
+
+        try {
+            long startNanos = 0;
+            long firstOffset = 0;
+            int nextWorker = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                Record record;
+                try {
+                    record = parse(line);
+                } catch (IOException | IllegalArgumentException e) {
+                    if (firstSkipReason == null) {
+                        firstSkipReason = "line " + lines + ": " + e.getMessage();
+                    }
+                    skipped++;
+                    continue;
+                }
+
+                if (startNanos == 0) {
+                    startNanos = System.nanoTime();
+                    firstOffset = record.offsetMillis;
+                }
+                if (speed > 0) {
+                    record.dueNanos = startNanos
+                        + (long) ((record.offsetMillis - firstOffset) * 1000000L / speed);
+                }
+
+                //Keep each LUW on one worker, so its requests stay in order
+                int worker;
+                if (record.luw != null) {
+                    worker = (record.luw.hashCode() & Integer.MAX_VALUE) % workers;
+                } else {
+                    worker = nextWorker;
+                    nextWorker = (nextWorker + 1) % workers;
+                }
+                queues.get(worker).put(record);
+            }
+        } finally {
+            for (BlockingQueue<Record> queue : queues) {
+                queue.put(END);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+    }
+
+    /**
+     * Turns one line of the file into a record
+     */
+    Record parse(String line) throws IOException
+    {
+        Map<String, Object> json = EciJson.parseObject(line);
+
+        long offsetMillis = number(json, "offsetMillis", 0);
+        String luw = string(json, "luw", null);
+        int extendMode = extendMode(json.get("extendMode"));
+
+        String channelName = string(json, "channel", null);
+        if (channelName != null) {
+            ECIRequest eciRequest = new ECIRequest(ECIRequest.ECI_SYNC,
+                                                   string(json, "server", defaultServer),
+                                                   string(json, "userid", defaultUserid),
+                                                   password,
+                                                   string(json, "program", null),
+                                                   null,
+                                                   channel(channelName, json.get("containers")),
+                                                   extendMode,
+                                                   ECIRequest.ECI_LUW_NEW);
+            return new Record(offsetMillis, luw, eciRequest, null);
+        }
+
+        byte[] data;
+        String base64 = string(json, "commareaBase64", null);
+        String text = string(json, "commarea", null);
+        if (base64 != null) {
+            data = Base64.getDecoder().decode(base64);
+        } else if (text != null) {
+            data = EciCodec.forName(string(json, "codepage", "ASCII")).encode(text);
+        } else {
+            data = null;
+        }
+        int length = (int) number(json, "commareaLength", (data == null) ? 0 : data.length);
+
+        byte[] commarea = null;
+        if (length > 0) {
+            commarea = commareaPool.acquire(length);
+            int copied = 0;
+            if (data != null) {
+                copied = Math.min(data.length, length);
+                System.arraycopy(data, 0, commarea, 0, copied);
+            }
+            //Pooled buffers are reused, so clear what the record leaves out
+            java.util.Arrays.fill(commarea, copied, length, (byte) 0);
+        }
+
+        ECIRequest eciRequest = new ECIRequest(string(json, "server", defaultServer),
+                                               string(json, "userid", defaultUserid),
+                                               password,
+                                               string(json, "program", null),
+                                               commarea,
+                                               extendMode,
+                                               ECIRequest.ECI_LUW_NEW);
+        eciRequest.Commarea_Length = length;
+        return new Record(offsetMillis, luw, eciRequest, commarea);
+    }
+
+    /**
+     * Flows the records given to one worker, over one connection
+     */
+    private void replay(BlockingQueue<Record> queue)
+    {
+        EciGatewayPool.Pooled pooled = null;
+        Map<String, OpenLuw> luwTokens = new HashMap<String, OpenLuw>();
+
+        try {
+            while (true) {
+                Record record = queue.take();
+                if (record == END) {
+                    break;
+                }
+                ECIRequest eciRequest = record.eciRequest;
+
+                if (record.dueNanos != 0) {
+                    long wait;
+                    while ((wait = record.dueNanos - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    lag.record(System.nanoTime() - record.dueNanos);
+                }
+
+                if (record.luw != null) {
+                    OpenLuw open = luwTokens.get(record.luw);
+                    eciRequest.Luw_Token = (open != null) ? open.token : ECIRequest.ECI_LUW_NEW;
+                }
+
+                long start = System.nanoTime();
+                boolean failed = true;
+                try {
+                    if (pooled == null) {
+                        pooled = gatewayPool.borrow();
+                    }
+                    flowed.incrementAndGet();
+                    pooled.flow(eciRequest);
+                    failed = false;
+                    if (eciRequest.getRc() != ECIRequest.ECI_NO_ERROR) {
+                        errors.incrementAndGet();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    //A worker that stopped here would leave the reader blocked on its full queue
+                    errors.incrementAndGet();
+                    lastException = (e instanceof IOException) ? (IOException) e : new IOException(e);
+                    if (pooled != null) {
+                        //Any LUWs open on the connection are lost with it
+                        gatewayPool.invalidate(pooled);
+                        pooled = null;
+                        luwTokens.clear();
+                    }
+                } finally {
+                    latencyStats.record(eciRequest, failed, System.nanoTime() - start);
+                }
+
+                if (record.luw != null) {
+                    if (!failed && eciRequest.Extend_Mode == ECIRequest.ECI_EXTENDED
+                        && eciRequest.getRc() == ECIRequest.ECI_NO_ERROR) {
+                        luwTokens.put(record.luw, new OpenLuw(eciRequest));
+                    } else {
+                        luwTokens.remove(record.luw);
+                    }
+                }
+                commareaPool.release(record.commarea);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (pooled != null) {
+                if (backoutAll(pooled, luwTokens)) {
+                    gatewayPool.release(pooled);
+                } else {
+                    gatewayPool.invalidate(pooled);
+                }
+            }
+        }
+    }
+
+    /**
+     * Backs out LUWs the file left open
+     *
+     * @return false if a backout failed, so the connection is not fit to reuse
+     */
+    private boolean backoutAll(EciGatewayPool.Pooled pooled, Map<String, OpenLuw> luwTokens)
+    {
+        for (OpenLuw open : luwTokens.values()) {
+            //Backed out on the server and userid that started the LUW, which the record may have given
+            ECIRequest backout = new ECIRequest(open.server, open.userid, password, null, null,
+                                                ECIRequest.ECI_BACKOUT, open.token);
+            try {
+                pooled.flow(backout);
+            } catch (IOException e) {
+                lastException = e;
+                return false;
+            } catch (RuntimeException e) {
+                lastException = new IOException(e);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds a channel holding the containers listed in a record
+     */
+    private static Channel channel(String name, Object containers) throws IOException
+    {
+        if (containers != null && !(containers instanceof List)) {
+            throw new IOException("containers must be an array");
+        }
+        try {
+            Channel channel = new Channel(name);
+            if (containers != null) {
+                for (Object item : (List<?>) containers) {
+                    if (!(item instanceof Map)) {
+                        throw new IOException("Each container must be an object");
+                    }
+                    @SuppressWarnings("unchecked")
+                    Map<String, Object> container = (Map<String, Object>) item;
+                    String containerName = string(container, "name", null);
+                    if (containerName == null) {
+                        throw new IOException("A container has no name");
+                    }
+                    if ("CHAR".equalsIgnoreCase(string(container, "type", "BIT"))) {
+                        channel.createContainer(containerName, string(container, "text", ""));
+                    } else {
+                        channel.createContainer(containerName,
+                                                Base64.getDecoder().decode(string(container, "dataBase64", "")));
+                    }
+                }
+            }
+            return channel;
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Channel " + name + ": " + e.getMessage());
+        }
+    }
+
+    private static String string(Map<String, Object> json, String name, String defaultValue)
+    {
+        Object value = json.get(name);
+        return (value == null) ? defaultValue : value.toString();
+    }
+
+    private static long number(Map<String, Object> json, String name, long defaultValue)
+        throws IOException
+    {
+        Object value = json.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (!(value instanceof Number)) {
+            throw new IOException(name + " must be a number");
+        }
+        return ((Number) value).longValue();
+    }
+
+    private static int extendMode(Object value) throws IOException
+    {
+        if (value == null) {
+            return ECIRequest.ECI_NO_EXTEND;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        switch (value.toString().toUpperCase()) {
+            case "NO_EXTEND":
+                return ECIRequest.ECI_NO_EXTEND;
+            case "EXTENDED":
+                return ECIRequest.ECI_EXTENDED;
+            case "COMMIT":
+                return ECIRequest.ECI_COMMIT;
+            case "BACKOUT":
+                return ECIRequest.ECI_BACKOUT;
+            default:
+                throw new IOException("Unknown extendMode " + value);
+        }
+    }
+
+    /**
+     * @return how late requests started, in nanoseconds. Empty when
+     *         replaying as fast as possible.
+     */
+    public EciHistogram getLag()
+    {
+        return lag;
+    }
+
+    /**
+     * @return the most recent exception from a flow, or null
+     */
+    public IOException getLastException()
+    {
+        return lastException;
+    }
+
+    /**
+     * @return the reason the first skipped line was skipped, or null
+     */
+    public String getFirstSkipReason()
+    {
+        return firstSkipReason;
+    }
+
+    /**
+     * @return a one line summary of the replay
+     */
+    public String getStatistics()
+    {
+        return String.format("lines=%d flowed=%d errors=%d skipped=%d lagP50=%.3fms lagP99=%.3fms lagMax=%.3fms",
+                             lines, flowed.get(), errors.get(), skipped,
+                             lag.getPercentile(50.0) / 1e6, lag.getPercentile(99.0) / 1e6,
+                             lag.getMax() / 1e6);
+    }
+
+
+    /**
+     * An LUW left open by a worker, with the server and userid it runs on
+     */
+    private static class OpenLuw
+    {
+        final int    token;
+        final String server;
+        final String userid;
+
+        OpenLuw(ECIRequest eciRequest)
+        {
+            this.token = eciRequest.Luw_Token;
+            this.server = eciRequest.Server;
+            this.userid = eciRequest.Userid;
+        }
+    }
+
+    /**
+     * A request read from the file
+     */
+    static class Record
+    {
+        final long       offsetMillis;
+        final String     luw;
+        final ECIRequest eciRequest;
+        final byte[]     commarea;
+        long             dueNanos = 0;
+
+        Record(long offsetMillis, String luw, ECIRequest eciRequest, byte[] commarea)
+        {
+            this.offsetMillis = offsetMillis;
+            this.luw = luw;
+            this.eciRequest = eciRequest;
+            this.commarea = commarea;
+        }
+    }
+}
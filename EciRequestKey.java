@@ -0,0 +1,119 @@
+/*
+*      File Name     : EciRequestKey.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : Identifies a COMMAREA request by its server,
+*                      program, userid and input COMMAREA, for finding
+*                      requests that would get the same reply. Keys are
+*                      equal only if every input byte matches, so two
+*                      requests whose hashes collide are never taken for
+*                      each other.
+*
+*                      A key made to look a request up refers to the
+*                      request's own COMMAREA, so making it copies nothing.
+*                      The reply overwrites that COMMAREA, so take a copy
+*                      with copy() before flowing the request if the key
+*                      is to be kept.
+*/
+
+//package com.ibm.ctg.samples.eci;
+
+import java.util.Arrays;
+import java.util.Objects;
+import com.ibm.ctg.client.*;
+
+public final class EciRequestKey
+{
+    private final String server;
+    private final String program;
+    private final String userid;
+    private final byte[] input;
+    private final int    length;
+    private final int    hash;
+
+
+    /**
+     * Makes a key referring to a request's COMMAREA, up to its
+     * Commarea_Length
+     */
+    public EciRequestKey(ECIRequest eciRequest)
+    {
+        this.server = eciRequest.Server;
+        this.program = eciRequest.Program;
+        this.userid = eciRequest.Userid;
+        this.input = eciRequest.Commarea;
+        this.length = (input == null) ? 0 : Math.max(0, Math.min(eciRequest.Commarea_Length, input.length));
+
+        int h = 31 * Objects.hashCode(server) + Objects.hashCode(program);
+        h = 31 * h + Objects.hashCode(userid);
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + input[i];
+        }
+        this.hash = h;
+    }
+
+    private EciRequestKey(EciRequestKey key)
+    {
+        this.server = key.server;
+        this.program = key.program;
+        this.userid = key.userid;
+        this.input = (key.input == null) ? null : Arrays.copyOf(key.input, key.length);
+        this.length = key.length;
+        this.hash = key.hash;
+    }
+
+    /**
+     * @return a key with its own copy of the input, safe to keep after the
+     *         request is flowed
+     */
+    public EciRequestKey copy()
+    {
+        return new EciRequestKey(this);
+    }
+
+    /**
+     * @return the program of the request
+     */
+    public String getProgram()
+    {
+        return program;
+    }
+
+    /**
+     * @return the number of input bytes the key holds
+     */
+    public int length()
+    {
+        return length;
+    }
+
+    public int hashCode()
+    {
+        return hash;
+    }
+
+    public boolean equals(Object other)
+    {
+        if (!(other instanceof EciRequestKey)) {
+            return false;
+        }
+        EciRequestKey key = (EciRequestKey) other;
+        if (hash != key.hash || length != key.length || (input == null) != (key.input == null)
+            || !Objects.equals(program, key.program) || !Objects.equals(server, key.server)
+            || !Objects.equals(userid, key.userid)) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (input[i] != key.input[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String toString()
+    {
+        return server + "/" + program + "/" + userid + " (" + length + " bytes)";
+    }
+}
@@ -0,0 +1,337 @@
+/*
+*      File Name     : EciResponseCache.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : A cache of the replies of read-only CICS programs,
+*                      so an inquiry repeated within a few seconds is
+*                      answered in the JVM without flowing to the Gateway.
+*
+*                      Caching is turned on for each program by giving it
+*                      a time to live; requests to other programs are
+*                      always flowed. A reply is cached under the server,
+*                      program and userid of the request and the bytes of
+*                      its input COMMAREA, and is only used for a request
+*                      that matches all four exactly. The userid is part
+*                      of the key so one user is never given a reply CICS
+*                      made for another.
+*
+*                      Only successful, synchronous, non-extended COMMAREA
+*                      requests are cached. A call in an extended LUW may
+*                      see the LUW's own uncommitted updates, and a
+*                      channel cannot be given a cached reply without
+*                      replacing its containers, so those requests are
+*                      always flowed.
+*
+*                      The cache is split into segments by key hash, each
+*                      with its own lock, and each segment drops its least
+*                      recently used replies when it holds more than its
+*                      share of the entries or bytes allowed.
+*
+*                      Only cache programs whose reply depends on nothing
+*                      but their input: a cached reply does not see
+*                      updates made in CICS until it expires.
+*/
+
+//package com.ibm.ctg.samples.eci;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import com.ibm.ctg.client.*;
+
+public class EciResponseCache
+{
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final Map<String, Program> programs = new ConcurrentHashMap<String, Program>();
+    private final int  maxEntriesPerSegment;
+    private final long maxBytesPerSegment;
+
+
+    /**
+     * Creates an empty cache that caches no programs until
+     * setTimeToLive is called
+     *
+     * @param maxEntries    the most replies kept
+     * @param maxBytes      the most bytes of keys and replies kept
+     */
+    public EciResponseCache(int maxEntries, long maxBytes)
+    {
+        if (maxEntries < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("Cache size must be at least 1");
+        }
+        this.maxEntriesPerSegment = Math.max(1, maxEntries / SEGMENTS);
+        this.maxBytesPerSegment = Math.max(1, maxBytes / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Caches the replies of a program for a time, or stops caching it if
+     * the time is 0
+     */
+    public void setTimeToLive(String program, long millis)
+    {
+        if (millis <= 0) {
+            programs.remove(program);
+            invalidate(program);
+        } else {
+            programs.computeIfAbsent(program, name -> new Program()).ttlNanos =
+                TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+    }
+
+    /**
+     * Wraps a flow so that requests to cached programs are answered from
+     * the cache when they can be. A request answered from the cache gets
+     * the cached COMMAREA and a return code of ECI_NO_ERROR, as if it had
+     * been flowed.
+     *
+     * @param flow  the flow to send requests the cache cannot answer
+     */
+    public EciFlow caching(final EciFlow flow)
+    {
+        return eciRequest -> {
+            Program program = (eciRequest.Program == null) ? null : programs.get(eciRequest.Program);
+            if (program == null || !isCacheable(eciRequest)) {
+                return flow.flow(eciRequest);
+            }
+
+            EciRequestKey probe = new EciRequestKey(eciRequest);
+            Segment segment = segmentFor(probe);
+            if (segment.copyReply(probe, eciRequest, program)) {
+                program.hits.incrementAndGet();
+                return ECIRequest.ECI_NO_ERROR;
+            }
+            program.misses.incrementAndGet();
+
+            //The reply overwrites the COMMAREA, so the key keeps its own copy of the input
+            EciRequestKey key = probe.copy();
+            long expiresNanos = System.nanoTime() + program.ttlNanos;
+            int rc = flow.flow(eciRequest);
+            if (rc == ECIRequest.ECI_NO_ERROR && eciRequest.Cics_Rc == ECIRequest.ECI_NO_ERROR) {
+                segment.put(key, new Reply(eciRequest, expiresNanos), program);
+            }
+            return rc;
+        };
+    }
+
+    /**
+     * Drops every cached reply of a program
+     */
+    public void invalidate(String program)
+    {
+        for (Segment segment : segments) {
+            segment.removeIf(program);
+        }
+    }
+
+    /**
+     * Drops every cached reply
+     */
+    public void clear()
+    {
+        for (Segment segment : segments) {
+            segment.removeIf(null);
+        }
+    }
+
+    /**
+     * @return one line per cached program giving its hits and misses, then
+     *         the size of the cache
+     */
+    public String getStatistics()
+    {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, Program> entry : new TreeMap<String, Program>(programs).entrySet()) {
+            Program program = entry.getValue();
+            long hits = program.hits.get();
+            long lookups = hits + program.misses.get();
+            report.append(String.format("%-8s ttl=%dms hits=%d misses=%d hitRate=%.1f%% expired=%d"
+                                        + " evicted=%d%n",
+                                        entry.getKey(), TimeUnit.NANOSECONDS.toMillis(program.ttlNanos),
+                                        hits, program.misses.get(),
+                                        (lookups == 0) ? 0.0 : hits * 100.0 / lookups,
+                                        program.expired.get(), program.evicted.get()));
+        }
+        long entries = 0;
+        long bytes = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                entries += segment.replies.size();
+                bytes += segment.bytes;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        report.append("entries=").append(entries).append(" bytes=").append(bytes);
+        return report.toString();
+    }
+
+    private static boolean isCacheable(ECIRequest eciRequest)
+    {
+        return eciRequest.Extend_Mode == ECIRequest.ECI_NO_EXTEND
+               && eciRequest.Luw_Token == ECIRequest.ECI_LUW_NEW
+               && eciRequest.Call_Type != ECIRequest.ECI_ASYNC
+               && !eciRequest.hasChannel();
+    }
+
+    private Segment segmentFor(EciRequestKey key)
+    {
+        //Spread the hash so segments are picked by more than its low bits
+        int hash = key.hashCode() ^ (key.hashCode() >>> 16);
+        return segments[hash & (SEGMENTS - 1)];
+    }
+
+
+    /**
+     * Counts for one cached program
+     */
+    private static class Program
+    {
+        volatile long ttlNanos;
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong expired = new AtomicLong();
+        final AtomicLong evicted = new AtomicLong();
+    }
+
+    /**
+     * A cached COMMAREA reply
+     */
+    private static class Reply
+    {
+        final byte[] commarea;
+        final int    commareaLength;
+        final long   expiresNanos;
+
+        Reply(ECIRequest eciRequest, long expiresNanos)
+        {
+            this.commareaLength = eciRequest.Commarea_Length;
+            this.commarea = (eciRequest.Commarea == null) ? null
+                          : java.util.Arrays.copyOf(eciRequest.Commarea,
+                                                    Math.max(0, Math.min(eciRequest.Commarea.length,
+                                                                         eciRequest.Commarea_Length)));
+            this.expiresNanos = expiresNanos;
+        }
+
+        long bytes(EciRequestKey key)
+        {
+            return key.length() + ((commarea == null) ? 0 : commarea.length) + 64;
+        }
+    }
+
+    /**
+     * Part of the cache, in least recently used order
+     */
+    private class Segment
+    {
+        final ReentrantLock lock = new ReentrantLock();
+        //Guarded by lock
+        final LinkedHashMap<EciRequestKey, Reply> replies =
+            new LinkedHashMap<EciRequestKey, Reply>(64, 0.75f, true);
+        long bytes = 0;
+
+        /**
+         * Copies a live cached reply into a request
+         *
+         * @return false if there is no live reply, or it does not fit
+         */
+        boolean copyReply(EciRequestKey key, ECIRequest eciRequest, Program program)
+        {
+            lock.lock();
+            try {
+                Reply reply = replies.get(key);
+                if (reply == null) {
+                    return false;
+                }
+                if (System.nanoTime() - reply.expiresNanos >= 0) {
+                    remove(key, reply);
+                    program.expired.incrementAndGet();
+                    return false;
+                }
+                if (reply.commarea != null) {
+                    if (eciRequest.Commarea == null || eciRequest.Commarea.length < reply.commarea.length) {
+                        return false;
+                    }
+                    System.arraycopy(reply.commarea, 0, eciRequest.Commarea, 0, reply.commarea.length);
+                }
+                eciRequest.Commarea_Length = reply.commareaLength;
+                eciRequest.Cics_Rc = ECIRequest.ECI_NO_ERROR;
+                eciRequest.Abend_Code = null;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void put(EciRequestKey key, Reply reply, Program program)
+        {
+            lock.lock();
+            try {
+                Reply old = replies.put(key, reply);
+                if (old != null) {
+                    bytes -= old.bytes(key);
+                }
+                bytes += reply.bytes(key);
+
+                Iterator<Map.Entry<EciRequestKey, Reply>> eldest = replies.entrySet().iterator();
+                while ((replies.size() > maxEntriesPerSegment || bytes > maxBytesPerSegment)
+                       && eldest.hasNext()) {
+                    Map.Entry<EciRequestKey, Reply> entry = eldest.next();
+                    if (entry.getKey().equals(key)) {
+                        //A reply too big to keep on its own
+                        continue;
+                    }
+                    bytes -= entry.getValue().bytes(entry.getKey());
+                    eldest.remove();
+                    Program owner = programs.get(entry.getKey().getProgram());
+                    (owner != null ? owner : program).evicted.incrementAndGet();
+                }
+                if (bytes > maxBytesPerSegment) {
+                    remove(key, reply);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Removes the replies of a program, or all replies if program is
+         * null
+         */
+        void removeIf(String program)
+        {
+            lock.lock();
+            try {
+                Iterator<Map.Entry<EciRequestKey, Reply>> entries = replies.entrySet().iterator();
+                while (entries.hasNext()) {
+                    Map.Entry<EciRequestKey, Reply> entry = entries.next();
+                    if (program == null || program.equals(entry.getKey().getProgram())) {
+                        bytes -= entry.getValue().bytes(entry.getKey());
+                        entries.remove();
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void remove(EciRequestKey key, Reply reply)
+        {
+            if (replies.remove(key) != null) {
+                bytes -= reply.bytes(key);
+            }
+        }
+    }
+}
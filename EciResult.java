@@ -0,0 +1,100 @@
+/*
+*      File Name     : EciResult.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : The outcome of an ECI request - its return code,
+*                      abend code, LUW token and reply COMMAREA, along with
+*                      how long the request took.
+*/
+
+//package com.ibm.ctg.samples.eci;
+
+import com.ibm.ctg.client.*;
+
+public class EciResult
+{
+    private final ECIRequest eciRequest;
+    private final int        rc;
+    private final String     abendCode;
+    private final int        luwToken;
+    private final long       latencyNanos;
+
+
+    /**
+     * Captures the results held in a request that has been flowed
+     *
+     * @param eciRequest    the request after its reply has been received
+     * @param latencyNanos  how long the request took
+     */
+    public EciResult(ECIRequest eciRequest, long latencyNanos)
+    {
+        this.eciRequest = eciRequest;
+        this.rc = eciRequest.getRc();
+        this.abendCode = eciRequest.Abend_Code;
+        this.luwToken = eciRequest.Luw_Token;
+        this.latencyNanos = latencyNanos;
+    }
+
+    /**
+     * @return the request, holding the reply COMMAREA or channel
+     */
+    public ECIRequest getRequest()
+    {
+        return eciRequest;
+    }
+
+    /**
+     * @return the return code of the request
+     */
+    public int getRc()
+    {
+        return rc;
+    }
+
+    /**
+     * @return true if the request completed with ECI_NO_ERROR
+     */
+    public boolean isOk()
+    {
+        return rc == ECIRequest.ECI_NO_ERROR;
+    }
+
+    /**
+     * @return the abend code, if the program abended
+     */
+    public String getAbendCode()
+    {
+        return abendCode;
+    }
+
+    /**
+     * @return the LUW token returned for an extended request
+     */
+    public int getLuwToken()
+    {
+        return luwToken;
+    }
+
+    /**
+     * @return the reply COMMAREA, or null if the request used a channel
+     */
+    public byte[] getCommarea()
+    {
+        return eciRequest.Commarea;
+    }
+
+    /**
+     * @return the time from submitting the request to its reply
+     */
+    public long getLatencyNanos()
+    {
+        return latencyNanos;
+    }
+
+    public String toString()
+    {
+        return "EciResult[program=" + eciRequest.Program + " rc=" + rc
+               + " abend=" + abendCode + " latency=" + String.format("%.3f", latencyNanos / 1e6) + "ms]";
+    }
+}
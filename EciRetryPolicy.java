@@ -0,0 +1,254 @@
+/*
+*      File Name     : EciRetryPolicy.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : Retries ECI requests that failed for a transient
+*                      reason, such as no sessions being free or the CICS
+*                      server not being reachable, with exponential backoff
+*                      and jitter between attempts.
+*
+*                      Retries are limited by a budget, so that when a
+*                      backend is down the retries add only a fixed
+*                      fraction to the traffic rather than multiplying it.
+*                      Each first attempt adds part of a token to the
+*                      budget and each retry spends a whole token.
+*
+*                      By default only non-extended requests are retried,
+*                      and only on return codes where the request did not
+*                      run in CICS. A request timeout, or an IOException
+*                      such as a connection lost after the request was
+*                      sent, may mean the program has already run.
+*                      Retrying those, or a call that is part of an
+*                      extended LUW, is only safe if the program is
+*                      idempotent, so it is left to the caller to turn on
+*                      with retryOn, setRetryIOException and
+*                      setRetryExtended.
+*/
+
+//package com.ibm.ctg.samples.eci;
+
+import java.io.*;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import com.ibm.ctg.client.*;
+
+public class EciRetryPolicy
+{
+    //The budget is kept in thousandths of a retry
+    private static final long TOKEN = 1000;
+
+    private final Set<Integer> transientRcs = ConcurrentHashMap.newKeySet();
+    private int     maxAttempts = 3;
+    private long    baseBackoffNanos = TimeUnit.MILLISECONDS.toNanos(50);
+    private long    maxBackoffNanos = TimeUnit.SECONDS.toNanos(2);
+    private boolean retryIOException = false;
+    private boolean retryExtended = false;
+    private long    depositPerRequest = 100;
+    private long    maxBalance = 10 * TOKEN;
+
+    private final AtomicLong balance = new AtomicLong(maxBalance);
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong recovered = new AtomicLong();
+    private final AtomicLong budgetRefused = new AtomicLong();
+    //Requests that still failed transiently when retries ran out
+    private final AtomicLong gaveUp = new AtomicLong();
+
+
+    /**
+     * Creates a policy of up to 3 attempts, backing off from 50ms to at most
+     * 2s, with a budget of retries for 10% of requests
+     */
+    public EciRetryPolicy()
+    {
+        //The request did not reach a program in CICS
+        transientRcs.add(ECIRequest.ECI_ERR_NO_CICS);
+        transientRcs.add(ECIRequest.ECI_ERR_RESOURCE_SHORTAGE);
+        transientRcs.add(ECIRequest.ECI_ERR_NO_SESSIONS);
+        transientRcs.add(ECIRequest.ECI_ERR_MAX_SESSIONS);
+        transientRcs.add(ECIRequest.ECI_ERR_MAX_SYSTEMS);
+    }
+
+    /**
+     * Sets the most attempts made at a request, including the first
+     */
+    public void setMaxAttempts(int attempts)
+    {
+        if (attempts < 1) {
+            throw new IllegalArgumentException("attempts must be at least 1");
+        }
+        maxAttempts = attempts;
+    }
+
+    /**
+     * Sets the backoff. Before retry n a random time of up to
+     * base * 2^(n-1), but no more than max, is waited.
+     */
+    public void setBackoff(long baseMillis, long maxMillis)
+    {
+        baseBackoffNanos = TimeUnit.MILLISECONDS.toNanos(baseMillis);
+        maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(baseMillis, maxMillis));
+    }
+
+    /**
+     * Sets the retry budget
+     *
+     * @param percent   retries allowed as a percentage of requests
+     * @param reserve   retries that can be made before any requests have
+     *                  added to the budget, and the most it can hold
+     */
+    public void setBudget(double percent, int reserve)
+    {
+        depositPerRequest = Math.round(percent * TOKEN / 100.0);
+        maxBalance = reserve * TOKEN;
+        balance.set(maxBalance);
+    }
+
+    /**
+     * Treats a return code as transient, so requests failing with it are
+     * retried
+     */
+    public void retryOn(int rc)
+    {
+        transientRcs.add(rc);
+    }
+
+    /**
+     * Treats a return code as permanent, so requests failing with it are not
+     * retried
+     */
+    public void doNotRetryOn(int rc)
+    {
+        transientRcs.remove(rc);
+    }
+
+    /**
+     * Sets whether a request is retried when the flow throws an
+     * IOException, false by default. Only turn this on for idempotent
+     * programs, as the connection may have been lost after CICS ran the
+     * program.
+     */
+    public void setRetryIOException(boolean retry)
+    {
+        retryIOException = retry;
+    }
+
+    /**
+     * Sets whether calls that are part of an extended LUW are retried,
+     * false by default. Only turn this on for idempotent programs, as the
+     * LUW may have been backed out or may still be open.
+     */
+    public void setRetryExtended(boolean retry)
+    {
+        retryExtended = retry;
+    }
+
+    /**
+     * @return true if a request failing with the return code is retried
+     */
+    public boolean isTransient(int rc)
+    {
+        return transientRcs.contains(rc);
+    }
+
+    /**
+     * Wraps a flow so that requests failing for a transient reason are
+     * retried. The last attempt's return code, or exception, is passed on.
+     *
+     * @param flow  the flow to retry
+     */
+    public EciFlow retrying(final EciFlow flow)
+    {
+        return eciRequest -> {
+            requests.incrementAndGet();
+            deposit();
+            boolean canRetry = retryExtended || eciRequest.Extend_Mode == ECIRequest.ECI_NO_EXTEND;
+
+            for (int attempt = 1; ; attempt++) {
+                boolean isLast = !canRetry || attempt >= maxAttempts;
+                int rc;
+                try {
+                    rc = flow.flow(eciRequest);
+                } catch (IOException e) {
+                    if (!canRetry || !retryIOException) {
+                        throw e;
+                    }
+                    if (isLast || !retryAllowed(attempt)) {
+                        gaveUp.incrementAndGet();
+                        throw e;
+                    }
+                    continue;
+                }
+                if (rc == ECIRequest.ECI_NO_ERROR || !isTransient(rc)) {
+                    if (attempt > 1 && rc == ECIRequest.ECI_NO_ERROR) {
+                        recovered.incrementAndGet();
+                    }
+                    return rc;
+                }
+                if (!canRetry) {
+                    return rc;
+                }
+                if (isLast || !retryAllowed(attempt)) {
+                    gaveUp.incrementAndGet();
+                    return rc;
+                }
+            }
+        };
+    }
+
+    /**
+     * Spends from the budget and waits before a retry
+     *
+     * @return false if the budget is spent or the wait was interrupted, so
+     *         the request should not be retried
+     */
+    private boolean retryAllowed(int attempt)
+    {
+        long current;
+        do {
+            current = balance.get();
+            if (current < TOKEN) {
+                budgetRefused.incrementAndGet();
+                return false;
+            }
+        } while (!balance.compareAndSet(current, current - TOKEN));
+
+        //Full jitter, so retries from many callers do not arrive together
+        long ceiling = Math.min(maxBackoffNanos, baseBackoffNanos << Math.min(attempt - 1, 30));
+        long wait = (ceiling > 0) ? ThreadLocalRandom.current().nextLong(ceiling + 1) : 0;
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        retries.incrementAndGet();
+        return true;
+    }
+
+    private void deposit()
+    {
+        long current;
+        do {
+            current = balance.get();
+            if (current >= maxBalance) {
+                return;
+            }
+        } while (!balance.compareAndSet(current, Math.min(maxBalance, current + depositPerRequest)));
+    }
+
+    /**
+     * @return a one line summary of the retries made
+     */
+    public String getStatistics()
+    {
+        return "requests=" + requests.get() + " retries=" + retries.get()
+               + " recovered=" + recovered.get() + " budgetRefused=" + budgetRefused.get()
+               + " gaveUp=" + gaveUp.get()
+               + String.format(" budget=%.1f", balance.get() / (double) TOKEN);
+    }
+}
@@ -0,0 +1,349 @@
+/*
+*      File Name     : EciServerList.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : A cache of the CICS servers a Gateway lists with
+*                      ECIRequest.listSystems, so that picking a server by
+*                      name or number does not cost a round trip to the
+*                      Gateway each time.
+*
+*                      There is one list for each Gateway address, shared
+*                      by every sample in the JVM. The list is kept for a
+*                      time to live, 60 seconds by default, then fetched
+*                      again by the next caller over the caller's own
+*                      connection. A long-running program can also give
+*                      the list a way to open a connection of its own;
+*                      the list is then refreshed on a background thread
+*                      when it is used in the last quarter of its time to
+*                      live, so callers in a steady state never wait for
+*                      listSystems. The caller's connection is never used
+*                      from the background thread, as it may be in use or
+*                      closed by then.
+*
+*                      The samples usually run once per JVM, so the list
+*                      can also be saved to a file and read back by the
+*                      next run while it is still fresh. Both settings can
+*                      be given as Java options:
+*
+*                          -Deci.servers.ttl=60
+*                          -Deci.servers.cache=/tmp/eciservers.txt
+*/
+
+//package com.ibm.ctg.samples.eci;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import com.ibm.ctg.client.*;
+
+public class EciServerList
+{
+    /**
+     * A CICS server defined to the Gateway
+     */
+    public static class Server
+    {
+        public final String name;
+        public final String description;
+
+        Server(String name, String description)
+        {
+            this.name = name;
+            this.description = (description == null) ? "" : description;
+        }
+
+        public String toString()
+        {
+            return name + " -" + description;
+        }
+    }
+
+    private static final ConcurrentHashMap<String, EciServerList> lists =
+        new ConcurrentHashMap<String, EciServerList>();
+
+    //Refreshes lists in the background, one at a time
+    private static final ExecutorService refresher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "EciServerList-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String gatewayKey;
+    private int  maxServers = 40;
+    private long ttlNanos = TimeUnit.SECONDS.toNanos(60);
+    private File cacheFile = null;
+    private volatile EciGatewayPool.Factory refreshFactory = null;
+
+    private volatile Snapshot snapshot = null;
+    private boolean fileChecked = false;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong fetches = new AtomicLong();
+    private final AtomicLong backgroundFetches = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+
+    EciServerList(String gatewayKey)
+    {
+        this.gatewayKey = gatewayKey;
+    }
+
+    /**
+     * Gets the shared list for a Gateway, set up from the eci.servers.ttl
+     * and eci.servers.cache Java options when it is first used
+     *
+     * @param gatewayUrl    the Gateway URL, such as tcp://host or local:
+     * @param port          the Gateway port
+     */
+    public static EciServerList forGateway(String gatewayUrl, int port)
+    {
+        return lists.computeIfAbsent(gatewayUrl.toLowerCase() + ":" + port, key -> {
+            EciServerList list = new EciServerList(key);
+            list.setTimeToLive(TimeUnit.SECONDS.toMillis(Long.getLong("eci.servers.ttl", 60)));
+            String file = System.getProperty("eci.servers.cache");
+            if (file != null) {
+                list.setCacheFile(new File(file));
+            }
+            return list;
+        });
+    }
+
+    /**
+     * Sets how long a list is used before it is fetched again
+     */
+    public void setTimeToLive(long millis)
+    {
+        ttlNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Sets the most servers asked for. listSystems fails with
+     * ECI_ERR_MORE_SYSTEMS if the Gateway has more.
+     */
+    public void setMaxServers(int count)
+    {
+        maxServers = count;
+    }
+
+    /**
+     * Saves each list fetched to a file, and starts from the saved list if
+     * it is still fresh
+     */
+    public synchronized void setCacheFile(File file)
+    {
+        cacheFile = file;
+        fileChecked = false;
+    }
+
+    /**
+     * Refreshes the list in the background before it runs out, over a
+     * connection opened with the factory and closed again after each
+     * refresh. Without one, the list is only fetched when a caller finds
+     * it out of date.
+     */
+    public void setRefreshConnection(EciGatewayPool.Factory factory)
+    {
+        refreshFactory = factory;
+    }
+
+    /**
+     * Gets the servers, flowing listSystems only if the cached list is
+     * missing or out of date
+     *
+     * @param flow  where to flow listSystems, such as a JavaGateway. It is
+     *              only used on the calling thread.
+     * @throws IOException if the list had to be fetched and could not be
+     */
+    public List<Server> getServers(EciFlow flow) throws IOException
+    {
+        Snapshot current = snapshot;
+        if (current == null) {
+            current = readCacheFile();
+        }
+        if (current != null) {
+            long age = System.nanoTime() - current.fetchedNanos;
+            if (age < ttlNanos) {
+                hits.incrementAndGet();
+                if (age > ttlNanos - ttlNanos / 4) {
+                    refreshInBackground();
+                }
+                return current.servers;
+            }
+        }
+        return fetch(flow).servers;
+    }
+
+    /**
+     * Finds a server by its number in the list, counting from 1, or by its
+     * name. A name that is not in the list, such as an IPIC URL, is given
+     * back unchanged. Only a number needs the list, so a name is given
+     * back without fetching it.
+     *
+     * @return the server name, or null if a number is out of range
+     * @throws IOException if the list was needed and could not be fetched
+     */
+    public String resolve(String nameOrNumber, EciFlow flow) throws IOException
+    {
+        int number;
+        try {
+            number = Integer.parseInt(nameOrNumber.trim());
+        } catch (NumberFormatException e) {
+            //The Gateway matches names itself, and may not list them all, such as IPIC servers in local mode
+            return nameOrNumber;
+        }
+        List<Server> servers = getServers(flow);
+        return (number >= 1 && number <= servers.size()) ? servers.get(number - 1).name : null;
+    }
+
+    /**
+     * Forgets the cached list, so the next use fetches it again
+     */
+    public void invalidate()
+    {
+        snapshot = null;
+    }
+
+    /**
+     * @return a one line summary of cache use
+     */
+    public String getStatistics()
+    {
+        return "hits=" + hits.get() + " fetches=" + fetches.get()
+               + " backgroundFetches=" + backgroundFetches.get() + " failures=" + failures.get();
+    }
+
+    private void refreshInBackground()
+    {
+        final EciGatewayPool.Factory factory = refreshFactory;
+        if (factory == null || !refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        refresher.execute(() -> {
+            EciConnection connection = null;
+            try {
+                connection = factory.open();
+                fetch(connection);
+                backgroundFetches.incrementAndGet();
+            } catch (IOException | RuntimeException e) {
+                //Keep using the cached list until it runs out
+            } finally {
+                if (connection != null) {
+                    try {
+                        connection.close();
+                    } catch (IOException e) {
+                        //Already finished with
+                    }
+                }
+                refreshing.set(false);
+            }
+        });
+    }
+
+    private Snapshot fetch(EciFlow flow) throws IOException
+    {
+        fetches.incrementAndGet();
+        ECIRequest listRequest = ECIRequest.listSystems(maxServers);
+        flow.flow(listRequest);
+        if (listRequest.getRc() != ECIRequest.ECI_NO_ERROR) {
+            failures.incrementAndGet();
+            throw new IOException("listSystems failed with " + listRequest.getRcString());
+        }
+
+        List<Server> servers = new ArrayList<Server>(listRequest.numServersReturned);
+        for (int i = 0; i < listRequest.numServersReturned; i++) {
+            servers.add(new Server(listRequest.SystemList.elementAt(i * 2),
+                                   listRequest.SystemList.elementAt(i * 2 + 1)));
+        }
+        Snapshot fetched = new Snapshot(Collections.unmodifiableList(servers), System.nanoTime());
+        snapshot = fetched;
+        writeCacheFile(fetched);
+        return fetched;
+    }
+
+    /**
+     * Reads the saved list once, if it is for this Gateway
+     */
+    private synchronized Snapshot readCacheFile()
+    {
+        if (fileChecked || cacheFile == null || !cacheFile.isFile()) {
+            fileChecked = true;
+            return snapshot;
+        }
+        fileChecked = true;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(cacheFile),
+                                                                          StandardCharsets.UTF_8))) {
+            String header = in.readLine();
+            String[] fields = (header == null) ? new String[0] : header.split("\t");
+            if (fields.length != 2 || !fields[0].equals(gatewayKey)) {
+                return null;
+            }
+            long ageMillis = System.currentTimeMillis() - Long.parseLong(fields[1]);
+            if (ageMillis < 0) {
+                return null;
+            }
+            List<Server> servers = new ArrayList<Server>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    servers.add(new Server(line.substring(0, tab), line.substring(tab + 1)));
+                }
+            }
+            snapshot = new Snapshot(Collections.unmodifiableList(servers),
+                                    System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(ageMillis));
+            return snapshot;
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Saves a list, writing a new file and renaming it so that another run
+     * never reads half a file
+     */
+    private synchronized void writeCacheFile(Snapshot fetched)
+    {
+        if (cacheFile == null) {
+            return;
+        }
+        File temporary = new File(cacheFile.getPath() + ".tmp");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(temporary), StandardCharsets.UTF_8)) {
+            out.write(gatewayKey + "\t" + System.currentTimeMillis() + "\n");
+            for (Server server : fetched.servers) {
+                out.write(server.name + "\t" + server.description + "\n");
+            }
+        } catch (IOException e) {
+            temporary.delete();
+            return;
+        }
+        if (!temporary.renameTo(cacheFile)) {
+            cacheFile.delete();
+            temporary.renameTo(cacheFile);
+        }
+    }
+
+
+    /**
+     * A list and when it was fetched
+     */
+    private static class Snapshot
+    {
+        final List<Server> servers;
+        final long         fetchedNanos;
+
+        Snapshot(List<Server> servers, long fetchedNanos)
+        {
+            this.servers = servers;
+            this.fetchedNanos = fetchedNanos;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+*      File Name     : EciServerRouter.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : Spreads requests over a list of equivalent CICS
+*                      servers, such as cloned regions, by setting the
+*                      server of each request before it is flowed. This is
+*                      done in the client, so it works with any Gateway
+*                      and needs no request exit.
+*
+*                      Strategies:
+*                        ROUND_ROBIN        each server in turn
+*                        WEIGHTED           in proportion to each server's
+*                                           weight, spread evenly
+*                        LEAST_OUTSTANDING  the server with the fewest
+*                                           requests in flight
+*                        LEAST_LATENCY      the server with the lowest
+*                                           moving average latency, scaled
+*                                           by its requests in flight
+*
+*                      The moving average fades while a server is not used,
+*                      so a server that was slow is tried again later
+*                      rather than left out for good. A request that could
+*                      not be served counts as taking a second, so a
+*                      server that fails fast is not mistaken for a fast
+*                      one.
+*
+*                      Only requests that start something new are routed.
+*                      A call continuing an extended LUW, or its commit or
+*                      backout, must go to the server the LUW is on, so its
+*                      server is left as it is.
+*/
+
+//package com.ibm.ctg.samples.eci;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import com.ibm.ctg.client.*;
+
+public class EciServerRouter
+{
+    public enum Strategy { ROUND_ROBIN, WEIGHTED, LEAST_OUTSTANDING, LEAST_LATENCY }
+
+    //Weight of the newest sample in the moving average
+    private static final double EWMA_ALPHA = 0.3;
+    //Time over which an unused server's average fades to a third
+    private static final double DECAY_NANOS = 10e9;
+    //Latency a failure counts as, so a server failing fast is not favoured
+    private static final double FAILURE_NANOS = 1e9;
+
+    private final List<Target> targets;
+    private final Strategy strategy;
+    private final AtomicLong next = new AtomicLong();
+    private Predicate<String> available = server -> true;
+
+
+    /**
+     * @param servers   the equivalent servers to route over
+     * @param weights   the weight of each server for WEIGHTED, or null for
+     *                  equal weights
+     * @param strategy  how to choose a server
+     */
+    public EciServerRouter(List<String> servers, int[] weights, Strategy strategy)
+    {
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("No servers to route over");
+        }
+        if (weights != null && weights.length != servers.size()) {
+            throw new IllegalArgumentException("Need one weight for each server");
+        }
+        List<Target> list = new ArrayList<Target>();
+        for (int i = 0; i < servers.size(); i++) {
+            int weight = (weights == null) ? 1 : weights[i];
+            if (weight < 1) {
+                throw new IllegalArgumentException("Weights must be at least 1");
+            }
+            list.add(new Target(servers.get(i), weight));
+        }
+        this.targets = Collections.unmodifiableList(list);
+        this.strategy = strategy;
+    }
+
+    /**
+     * Sets a test of whether a server can be used, such as whether its
+     * circuit breaker is closed. Servers that fail it are skipped unless
+     * every server fails it.
+     */
+    public void setAvailable(Predicate<String> available)
+    {
+        this.available = available;
+    }
+
+    /**
+     * Wraps a flow so that each new request is sent to a chosen server
+     *
+     * @param flow  the flow to route requests through
+     */
+    public EciFlow routing(final EciFlow flow)
+    {
+        return eciRequest -> {
+            Target target;
+            if (eciRequest.Luw_Token != ECIRequest.ECI_LUW_NEW) {
+                //Stay on the LUW's server, but still count the call
+                target = find(eciRequest.Server);
+            } else {
+                target = choose();
+                eciRequest.Server = target.server;
+            }
+            if (target == null) {
+                return flow.flow(eciRequest);
+            }
+
+            target.outstanding.incrementAndGet();
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                int rc = flow.flow(eciRequest);
+                failed = (rc != ECIRequest.ECI_NO_ERROR && rc != ECIRequest.ECI_ERR_TRANSACTION_ABEND
+                          && rc != ECIRequest.ECI_ERR_SECURITY_ERROR);
+                return rc;
+            } finally {
+                target.outstanding.decrementAndGet();
+                target.requests.incrementAndGet();
+                target.recordLatency(System.nanoTime() - start, failed);
+            }
+        };
+    }
+
+    /**
+     * @return the server the next new request would be sent to. Used by
+     *         routing; exposed for callers that build requests themselves.
+     */
+    public Target choose()
+    {
+        List<Target> candidates = targets;
+        if (targets.size() > 1) {
+            candidates = new ArrayList<Target>(targets.size());
+            for (Target target : targets) {
+                if (available.test(target.server)) {
+                    candidates.add(target);
+                }
+            }
+            if (candidates.isEmpty()) {
+                candidates = targets;
+            }
+        }
+        if (candidates.size() == 1) {
+            return candidates.get(0);
+        }
+
+        switch (strategy) {
+            case WEIGHTED:
+                return chooseWeighted(candidates);
+            case LEAST_OUTSTANDING:
+                return chooseLeast(candidates, false);
+            case LEAST_LATENCY:
+                return chooseLeast(candidates, true);
+            default:
+                return candidates.get((int) (next.getAndIncrement() % candidates.size()));
+        }
+    }
+
+    /**
+     * Smooth weighted round robin: each server gains its weight every
+     * pick, and the leader is chosen and drops back by the total, so the
+     * picks of a heavy server are spread out rather than bunched together
+     */
+    private synchronized Target chooseWeighted(List<Target> candidates)
+    {
+        int total = 0;
+        Target best = null;
+        for (Target target : candidates) {
+            target.currentWeight += target.weight;
+            total += target.weight;
+            if (best == null || target.currentWeight > best.currentWeight) {
+                best = target;
+            }
+        }
+        best.currentWeight -= total;
+        return best;
+    }
+
+    private Target chooseLeast(List<Target> candidates, boolean byLatency)
+    {
+        //Start from a rotating point so ties are shared out
+        int start = (int) (next.getAndIncrement() % candidates.size());
+        Target best = null;
+        double bestScore = Double.MAX_VALUE;
+        long now = System.nanoTime();
+        for (int i = 0; i < candidates.size(); i++) {
+            Target target = candidates.get((start + i) % candidates.size());
+            double score = byLatency ? target.latencyScore(now) * (target.outstanding.get() + 1)
+                                     : target.outstanding.get();
+            if (score < bestScore) {
+                best = target;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    private Target find(String server)
+    {
+        for (Target target : targets) {
+            if (target.server.equals(server)) {
+                return target;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return one line per server giving its share of requests and latency
+     */
+    public String getStatistics()
+    {
+        StringBuilder report = new StringBuilder();
+        long now = System.nanoTime();
+        for (Target target : targets) {
+            if (report.length() > 0) {
+                report.append('\n');
+            }
+            report.append(String.format("%-10s weight=%d requests=%d outstanding=%d ewma=%.3fms",
+                                        target.server, target.weight, target.requests.get(),
+                                        target.outstanding.get(), target.latencyScore(now) / 1e6));
+        }
+        return report.toString();
+    }
+
+
+    /**
+     * One server and its load
+     */
+    public static class Target
+    {
+        final String server;
+        final int    weight;
+        final AtomicInteger outstanding = new AtomicInteger();
+        final AtomicLong    requests = new AtomicLong();
+        int    currentWeight = 0;
+        private double ewmaNanos = 0;
+        private long   updatedNanos = System.nanoTime();
+
+        Target(String server, int weight)
+        {
+            this.server = server;
+            this.weight = weight;
+        }
+
+        public String getServer()
+        {
+            return server;
+        }
+
+        synchronized void recordLatency(long nanos, boolean failed)
+        {
+            long now = System.nanoTime();
+            double current = decayed(now);
+            double sample = failed ? Math.max(nanos, FAILURE_NANOS) : nanos;
+            ewmaNanos = (current == 0) ? sample : current + EWMA_ALPHA * (sample - current);
+            updatedNanos = now;
+        }
+
+        synchronized double latencyScore(long now)
+        {
+            return decayed(now);
+        }
+
+        private double decayed(long now)
+        {
+            return ewmaNanos * Math.exp(-(now - updatedNanos) / DECAY_NANOS);
+        }
+    }
+}
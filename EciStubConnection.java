@@ -0,0 +1,297 @@
+/*
+*      File Name     : EciStubConnection.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : A connection to the stand-in Gateway, EciStubGateway.
+*                      It flows ECIRequests the way a JavaGateway does,
+*                      filling in the return code, abend code, LUW token
+*                      and reply COMMAREA or containers.
+*
+*                      Requests are tagged with an id and a reader thread
+*                      matches replies to them, so many threads can flow
+*                      over one connection at once and asynchronous
+*                      requests are supported.
+*/
+
+//package com.ibm.ctg.samples.eci;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.ibm.ctg.client.*;
+
+public class EciStubConnection implements EciConnection
+{
+    private final String           address;
+    private final Socket           socket;
+    private final DataOutputStream out;
+    private final DataInputStream  in;
+    private final AtomicInteger    nextId = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, Pending> pending = new ConcurrentHashMap<Integer, Pending>();
+    private volatile boolean       open = true;
+
+
+    /**
+     * Opens a connection to a stand-in Gateway
+     *
+     * @param host  host name of the stand-in
+     * @param port  port the stand-in is listening on
+     */
+    public EciStubConnection(String host, int port) throws IOException
+    {
+        address = "stub://" + host + ":" + port;
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+        Thread reader = new Thread(this::readReplies, "EciStubConnection-" + address);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Opens a connection from a jgate URL of the form stub://host
+     *
+     * @param url   the jgate URL
+     * @param port  the jgate port
+     */
+    public static EciStubConnection open(String url, int port) throws IOException
+    {
+        String host = url.substring("stub://".length());
+        if (host.endsWith("/")) {
+            host = host.substring(0, host.length() - 1);
+        }
+        return new EciStubConnection(host.isEmpty() ? "localhost" : host, port);
+    }
+
+    /**
+     * @return true if the URL names a stand-in Gateway
+     */
+    public static boolean isStubUrl(String url)
+    {
+        return (url != null) && url.toLowerCase().startsWith("stub://");
+    }
+
+    public int flow(ECIRequest eciRequest) throws IOException
+    {
+        Pending request = send(eciRequest, null);
+        try {
+            request.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a reply");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+        }
+        return eciRequest.getRc();
+    }
+
+    public int flowAsync(ECIRequest eciRequest, Callbackable callback) throws IOException
+    {
+        send(eciRequest, callback);
+        return ECIRequest.ECI_NO_ERROR;
+    }
+
+    public boolean isOpen()
+    {
+        return open;
+    }
+
+    public void close() throws IOException
+    {
+        open = false;
+        socket.close();
+    }
+
+    public String toString()
+    {
+        return address;
+    }
+
+    private Pending send(ECIRequest eciRequest, Callbackable callback) throws IOException
+    {
+        if (!open) {
+            throw new IOException("Connection to " + address + " is closed");
+        }
+
+        EciStubGateway.Frame frame = new EciStubGateway.Frame();
+        frame.id = nextId.incrementAndGet();
+        frame.server = (eciRequest.Server == null) ? "" : eciRequest.Server;
+        frame.program = (eciRequest.Program == null) ? "" : eciRequest.Program;
+        frame.userid = (eciRequest.Userid == null) ? "" : eciRequest.Userid;
+        frame.extendMode = eciRequest.Extend_Mode;
+        frame.luwToken = eciRequest.Luw_Token;
+        frame.commarea = eciRequest.Commarea;
+        if (eciRequest.Commarea_Length > 0) {
+            //A pooled COMMAREA buffer may be longer than the COMMAREA
+            frame.commareaLength = eciRequest.Commarea_Length;
+        }
+        if (eciRequest.hasChannel()) {
+            frame.containers = readContainers(eciRequest.getChannel());
+        }
+
+        Pending request = new Pending(eciRequest, callback);
+        pending.put(frame.id, request);
+        if (!open) {
+            //The reader thread may have failed the pending requests already
+            pending.remove(frame.id);
+            throw new IOException("Connection to " + address + " is closed");
+        }
+        try {
+            synchronized (out) {
+                frame.writeRequest(out);
+                out.flush();
+            }
+        } catch (IOException e) {
+            pending.remove(frame.id);
+            open = false;
+            throw e;
+        }
+        return request;
+    }
+
+    /**
+     * Reads replies and completes the requests they belong to, until the
+     * connection is closed
+     */
+    private void readReplies()
+    {
+        IOException failure;
+        try {
+            while (true) {
+                EciStubGateway.Frame reply = EciStubGateway.Frame.readReply(in);
+                Pending request = pending.remove(reply.id);
+                if (request != null) {
+                    request.complete(reply);
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+
+        open = false;
+        IOException closed = new IOException("Connection to " + address + " closed", failure);
+        for (Integer id : pending.keySet()) {
+            Pending request = pending.remove(id);
+            if (request != null) {
+                request.fail(closed, ECIRequest.ECI_ERR_NO_CICS);
+            }
+        }
+    }
+
+    private static List<EciStubGateway.Frame.Item> readContainers(Channel channel) throws IOException
+    {
+        List<EciStubGateway.Frame.Item> items = new ArrayList<EciStubGateway.Frame.Item>();
+        try {
+            for (Container container : channel.getContainers()) {
+                if (container.getType() == Container.ContainerType.CHAR) {
+                    items.add(new EciStubGateway.Frame.Item(container.getName(), true,
+                              container.getCHARData().getBytes(StandardCharsets.UTF_8)));
+                } else {
+                    items.add(new EciStubGateway.Frame.Item(container.getName(), false,
+                              container.getBITData()));
+                }
+            }
+        } catch (Exception e) {
+            throw new IOException("Cannot read channel " + channel.getName(), e);
+        }
+        return items;
+    }
+
+    private static void addContainers(Channel channel, List<EciStubGateway.Frame.Item> items)
+        throws IOException
+    {
+        try {
+            Set<String> existing = new HashSet<String>();
+            for (Container container : channel.getContainers()) {
+                existing.add(container.getName());
+            }
+            for (EciStubGateway.Frame.Item item : items) {
+                if (existing.contains(item.name)) {
+                    continue;
+                }
+                if (item.isChar) {
+                    channel.createContainer(item.name, new String(item.data, StandardCharsets.UTF_8));
+                } else {
+                    channel.createContainer(item.name, item.data);
+                }
+            }
+        } catch (Exception e) {
+            throw new IOException("Cannot update channel " + channel.getName(), e);
+        }
+    }
+
+
+    /**
+     * A request awaiting its reply
+     */
+    private static class Pending
+    {
+        final ECIRequest              eciRequest;
+        final Callbackable            callback;
+        final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+        Pending(ECIRequest eciRequest, Callbackable callback)
+        {
+            this.eciRequest = eciRequest;
+            this.callback = callback;
+        }
+
+        void complete(EciStubGateway.Frame reply)
+        {
+            eciRequest.Cics_Rc = reply.rc;
+            eciRequest.Abend_Code = reply.abendCode.isEmpty() ? null : reply.abendCode;
+            eciRequest.Luw_Token = reply.luwToken;
+            if (reply.commarea != null && eciRequest.Commarea != null) {
+                System.arraycopy(reply.commarea, 0, eciRequest.Commarea, 0,
+                                 Math.min(reply.commarea.length, eciRequest.Commarea.length));
+            }
+            try {
+                if (reply.containers != null && eciRequest.hasChannel()) {
+                    addContainers(eciRequest.getChannel(), reply.containers);
+                }
+            } catch (IOException e) {
+                fail(e, ECIRequest.ECI_ERR_SYSTEM_ERROR);
+                return;
+            }
+
+            callBack();
+            done.complete(null);
+        }
+
+        /**
+         * Fails the request. An asynchronous caller only hears through its
+         * callback, so the callback is given the request with an error rc.
+         */
+        void fail(IOException failure, int rc)
+        {
+            eciRequest.Cics_Rc = rc;
+            callBack();
+            done.completeExceptionally(failure);
+        }
+
+        private void callBack()
+        {
+            if (callback != null) {
+                try {
+                    callback.setResults(eciRequest);
+                    callback.run();
+                } catch (RuntimeException e) {
+                    //A failing callback must not stop other replies arriving
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,535 @@
+/*
+*      File Name     : EciStubGateway.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : A stand-in for a Gateway daemon and CICS region, for
+*                      measuring client throughput and latency without a
+*                      live system. It listens on port 2006 and emulates the
+*                      sample CICS programs:
+*
+*                        EC01 - returns the COMMAREA with the current date
+*                               and time written over its start
+*                        EC03 - returns the input channel with OUTPUTDATA,
+*                               CICSTIME, CICSDATE and INPUTDATALENGTH
+*                               containers added
+*
+*                      Any other program abends with AEI0, as CICS does for
+*                      a program that is not defined. Extended units of
+*                      work are given LUW tokens and can be committed or
+*                      backed out.
+*
+*                      Reply latency, reply size and injected errors can be
+*                      set on the command line, as can the extra time a
+*                      syncpoint takes, charged to each request that ends a
+*                      unit of work: a non-extended call or a commit.
+*
+*                      The real Gateway protocol is not public, so the stand
+*                      in speaks a simple framed protocol of its own. Clients
+*                      reach it with EciStubConnection, which EciB2 uses for
+*                      jgate=stub://<host> URLs. Replies may be returned out
+*                      of order, so a connection can have many requests in
+*                      flight at once.
+*/
+
+//package com.ibm.ctg.samples.eci;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import com.ibm.ctg.client.*;
+
+public class EciStubGateway
+{
+    //The kinds of error that can be injected
+    static final String ERROR_SECURITY = "SECURITY";
+    static final String ERROR_ABEND    = "ABEND";
+    static final String ERROR_NO_CICS  = "NOCICS";
+
+    private int         port = 2006;
+    private long        latencyMicros = 0;
+    private long        jitterMicros = 0;
+    private long        syncpointMicros = 0;
+    private double      errorRate = 0.0;
+    private String      errorType = ERROR_ABEND;
+    private int         replySize = -1;
+    private Set<String> servers = null;
+
+    private final AtomicInteger nextLuwToken = new AtomicInteger(1);
+    private final AtomicLong    requests = new AtomicLong();
+    private final AtomicLong    injectedErrors = new AtomicLong();
+    private ScheduledExecutorService replyScheduler;
+    private ServerSocket serverSocket;
+
+
+    /**
+     * Program entry point
+     *
+     * @param args  command line arguments passed to the program
+     */
+    public static void main(String[] args) throws IOException
+    {
+        EciStubGateway stub = new EciStubGateway();
+
+        if (stub.processArgs(args)) {
+            stub.start();
+            stub.acceptConnections();
+        }
+    }
+
+    /**
+     * Processes the command line arguments
+     *
+     * @param args  command line arguments passed to the program
+     * @return false if the usage information was displayed instead
+     */
+    public boolean processArgs(String[] args)
+    {
+        boolean showHelp = false;
+
+        for (String arg : args) {
+            String upper = arg.toUpperCase();
+            String value = arg.substring(arg.indexOf('=') + 1);
+
+            try {
+                if (upper.startsWith("PORT=")) {
+                    port = Integer.parseInt(value);
+                } else if (upper.startsWith("LATENCY=")) {
+                    latencyMicros = parseMicros(value);
+                } else if (upper.startsWith("JITTER=")) {
+                    jitterMicros = parseMicros(value);
+                } else if (upper.startsWith("SYNCPOINT=")) {
+                    syncpointMicros = parseMicros(value);
+                } else if (upper.startsWith("ERRORRATE=")) {
+                    errorRate = Double.parseDouble(value);
+                } else if (upper.startsWith("ERROR=")) {
+                    errorType = value.toUpperCase();
+                    if (!errorType.equals(ERROR_SECURITY) && !errorType.equals(ERROR_ABEND)
+                        && !errorType.equals(ERROR_NO_CICS)) {
+                        System.out.println("Error - unknown error type: " + value);
+                        showHelp = true;
+                    }
+                } else if (upper.startsWith("REPLYSIZE=")) {
+                    replySize = Integer.parseInt(value);
+                } else if (upper.startsWith("SERVERS=")) {
+                    servers = new HashSet<String>(Arrays.asList(value.split(",")));
+                } else {
+                    System.out.println("Error - unrecognised argument: " + arg);
+                    showHelp = true;
+                }
+            } catch (NumberFormatException e) {
+                System.out.println("Error - invalid number: " + arg);
+                showHelp = true;
+            }
+        }
+
+        if (showHelp) {
+            System.out.println();
+            System.out.println("Usage: java EciStubGateway [port=port_number]");
+            System.out.println("                           [latency=time<us|ms|s>]");
+            System.out.println("                           [jitter=time<us|ms|s>]");
+            System.out.println("                           [syncpoint=time<us|ms|s>]");
+            System.out.println("                           [errorrate=0.0-1.0]");
+            System.out.println("                           [error=security | abend | nocics]");
+            System.out.println("                           [replysize=bytes]");
+            System.out.println("                           [servers=name,name,...]");
+            System.out.println();
+            System.out.println("Clients connect with jgate=stub://<host> jgateport=<port_number>.");
+            System.out.println("If servers is given, requests for other CICS servers fail with");
+            System.out.println("ECI_ERR_NO_CICS.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Opens the listening socket and starts the reply scheduler
+     */
+    public void start() throws IOException
+    {
+        serverSocket = new ServerSocket(port);
+        replyScheduler = Executors.newScheduledThreadPool(2, r -> {
+            Thread thread = new Thread(r, "EciStubGateway-reply");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        System.out.println("Stand-in Gateway listening on port " + serverSocket.getLocalPort()
+                           + " latency=" + latencyMicros + "us jitter=" + jitterMicros + "us"
+                           + " syncpoint=" + syncpointMicros + "us"
+                           + " errorrate=" + errorRate + " error=" + errorType
+                           + " replysize=" + replySize
+                           + (servers != null ? " servers=" + servers : ""));
+    }
+
+    /**
+     * @return the port the stand-in is listening on
+     */
+    public int getPort()
+    {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accepts client connections until the stand-in is stopped, serving
+     * each on its own thread
+     */
+    public void acceptConnections()
+    {
+        int connection = 0;
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Thread thread = new Thread(() -> serve(socket), "EciStubGateway-conn-" + connection++);
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops accepting connections
+     */
+    public void stop() throws IOException
+    {
+        serverSocket.close();
+        replyScheduler.shutdownNow();
+        System.out.println("Stand-in Gateway stopped after " + requests.get() + " requests, "
+                           + injectedErrors.get() + " injected errors");
+    }
+
+    /**
+     * Reads requests from one client connection. Each reply is sent after
+     * the configured latency without holding up the next request.
+     */
+    private void serve(Socket socket)
+    {
+        try (Socket s = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+
+            while (true) {
+                final Frame request;
+                try {
+                    request = Frame.readRequest(in);
+                } catch (EOFException e) {
+                    return;
+                }
+                requests.incrementAndGet();
+                final Frame reply = process(request);
+
+                long delay = replyDelayMicros(request);
+                Runnable send = () -> {
+                    try {
+                        synchronized (out) {
+                            reply.writeReply(out);
+                            out.flush();
+                        }
+                    } catch (IOException e) {
+                        //The client has gone away
+                    }
+                };
+                if (delay > 0) {
+                    replyScheduler.schedule(send, delay, TimeUnit.MICROSECONDS);
+                } else {
+                    send.run();
+                }
+            }
+        } catch (IOException e) {
+            //The client has gone away
+        }
+    }
+
+    private long replyDelayMicros(Frame request)
+    {
+        long delay = latencyMicros;
+        if (request.extendMode == ECIRequest.ECI_NO_EXTEND || request.extendMode == ECIRequest.ECI_COMMIT) {
+            delay += syncpointMicros;
+        }
+        if (jitterMicros == 0) {
+            return delay;
+        }
+        long jitter = ThreadLocalRandom.current().nextLong(-jitterMicros, jitterMicros + 1);
+        return Math.max(0, delay + jitter);
+    }
+
+    /**
+     * Runs the emulated program for a request and builds its reply
+     */
+    Frame process(Frame request)
+    {
+        Frame reply = new Frame();
+        reply.id = request.id;
+        reply.luwToken = request.luwToken;
+        reply.abendCode = "";
+
+        if (servers != null && !servers.contains(request.server)) {
+            reply.rc = ECIRequest.ECI_ERR_NO_CICS;
+            return reply;
+        }
+
+        //Ending an extended unit of work
+        if (request.extendMode == ECIRequest.ECI_COMMIT || request.extendMode == ECIRequest.ECI_BACKOUT) {
+            reply.rc = ECIRequest.ECI_NO_ERROR;
+            reply.luwToken = 0;
+            return reply;
+        }
+
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            injectedErrors.incrementAndGet();
+            if (errorType.equals(ERROR_SECURITY)) {
+                reply.rc = ECIRequest.ECI_ERR_SECURITY_ERROR;
+            } else if (errorType.equals(ERROR_NO_CICS)) {
+                reply.rc = ECIRequest.ECI_ERR_NO_CICS;
+            } else {
+                reply.rc = ECIRequest.ECI_ERR_TRANSACTION_ABEND;
+                reply.abendCode = "ASRA";
+            }
+            reply.luwToken = 0;
+            return reply;
+        }
+
+        if ("EC01".equals(request.program)) {
+            reply.commarea = ec01(request.commarea);
+        } else if ("EC03".equals(request.program)) {
+            reply.containers = ec03(request.containers);
+        } else {
+            reply.rc = ECIRequest.ECI_ERR_TRANSACTION_ABEND;
+            reply.abendCode = "AEI0";
+            reply.luwToken = 0;
+            return reply;
+        }
+
+        reply.rc = ECIRequest.ECI_NO_ERROR;
+        if (request.extendMode == ECIRequest.ECI_EXTENDED && request.luwToken == 0) {
+            reply.luwToken = nextLuwToken.getAndIncrement();
+        }
+        return reply;
+    }
+
+    /**
+     * EC01 writes the date and time over the start of the COMMAREA
+     */
+    private byte[] ec01(byte[] commarea)
+    {
+        if (commarea == null) {
+            return null;
+        }
+        byte[] reply = commarea.clone();
+        if (replySize >= 0 && replySize < reply.length) {
+            Arrays.fill(reply, replySize, reply.length, (byte) 0);
+        }
+        byte[] dateTime = new SimpleDateFormat("dd/MM/yy HH:mm:ss").format(new Date())
+                              .getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(dateTime, 0, reply, 0, Math.min(dateTime.length, reply.length));
+        return reply;
+    }
+
+    /**
+     * EC03 adds containers describing the INPUTDATA container
+     */
+    private List<Frame.Item> ec03(List<Frame.Item> containers)
+    {
+        List<Frame.Item> reply = new ArrayList<Frame.Item>();
+        byte[] input = new byte[0];
+        if (containers != null) {
+            for (Frame.Item item : containers) {
+                if (item.name.equals("INPUTDATA")) {
+                    input = item.data;
+                }
+            }
+        }
+
+        byte[] output = input;
+        if (replySize >= 0) {
+            output = Arrays.copyOf(input, replySize);
+            for (int i = input.length; i < replySize; i++) {
+                output[i] = (byte) ('A' + (i % 26));
+            }
+        }
+
+        Date now = new Date();
+        reply.add(new Frame.Item("OUTPUTDATA", true, output));
+        reply.add(new Frame.Item("CICSTIME", true,
+                  new SimpleDateFormat("HH:mm:ss").format(now).getBytes(StandardCharsets.UTF_8)));
+        reply.add(new Frame.Item("CICSDATE", true,
+                  new SimpleDateFormat("dd/MM/yyyy").format(now).getBytes(StandardCharsets.UTF_8)));
+        reply.add(new Frame.Item("INPUTDATALENGTH", false, new byte[] {
+                  (byte) (input.length >>> 24), (byte) (input.length >>> 16),
+                  (byte) (input.length >>> 8), (byte) input.length }));
+        return reply;
+    }
+
+    private static long parseMicros(String value)
+    {
+        String v = value.trim().toLowerCase();
+        if (v.endsWith("us")) {
+            return Long.parseLong(v.substring(0, v.length() - 2));
+        } else if (v.endsWith("ms")) {
+            return Long.parseLong(v.substring(0, v.length() - 2)) * 1000L;
+        } else if (v.endsWith("s")) {
+            return Long.parseLong(v.substring(0, v.length() - 1)) * 1000000L;
+        }
+        return Long.parseLong(v) * 1000L;
+    }
+
+
+    /**
+     * One request or reply as sent between EciStubConnection and the stand
+     * in. Containers are sent as name, type and bytes; CHAR container data
+     * is sent as UTF-8.
+     */
+    static class Frame
+    {
+        static class Item
+        {
+            final String  name;
+            final boolean isChar;
+            final byte[]  data;
+
+            Item(String name, boolean isChar, byte[] data)
+            {
+                this.name = name;
+                this.isChar = isChar;
+                this.data = data;
+            }
+        }
+
+        int        id;
+        String     server = "";
+        String     program = "";
+        String     userid = "";
+        int        extendMode;
+        int        luwToken;
+        int        rc;
+        String     abendCode = "";
+        byte[]     commarea;
+        int        commareaLength = -1;  // Bytes of commarea to send, -1 for all
+        List<Item> containers;
+
+        void writeRequest(DataOutputStream out) throws IOException
+        {
+            out.writeInt(id);
+            out.writeUTF(server);
+            out.writeUTF(program);
+            out.writeUTF(userid);
+            out.writeInt(extendMode);
+            out.writeInt(luwToken);
+            writeBytes(out, commarea, commareaLength);
+            writeItems(out, containers);
+        }
+
+        static Frame readRequest(DataInputStream in) throws IOException
+        {
+            Frame frame = new Frame();
+            frame.id = in.readInt();
+            frame.server = in.readUTF();
+            frame.program = in.readUTF();
+            frame.userid = in.readUTF();
+            frame.extendMode = in.readInt();
+            frame.luwToken = in.readInt();
+            frame.commarea = readBytes(in);
+            frame.containers = readItems(in);
+            return frame;
+        }
+
+        void writeReply(DataOutputStream out) throws IOException
+        {
+            out.writeInt(id);
+            out.writeInt(rc);
+            out.writeUTF(abendCode);
+            out.writeInt(luwToken);
+            writeBytes(out, commarea);
+            writeItems(out, containers);
+        }
+
+        static Frame readReply(DataInputStream in) throws IOException
+        {
+            Frame frame = new Frame();
+            frame.id = in.readInt();
+            frame.rc = in.readInt();
+            frame.abendCode = in.readUTF();
+            frame.luwToken = in.readInt();
+            frame.commarea = readBytes(in);
+            frame.containers = readItems(in);
+            return frame;
+        }
+
+        private static void writeBytes(DataOutputStream out, byte[] data) throws IOException
+        {
+            writeBytes(out, data, -1);
+        }
+
+        private static void writeBytes(DataOutputStream out, byte[] data, int length) throws IOException
+        {
+            if (data == null) {
+                out.writeInt(-1);
+            } else {
+                if (length < 0 || length > data.length) {
+                    length = data.length;
+                }
+                out.writeInt(length);
+                out.write(data, 0, length);
+            }
+        }
+
+        private static byte[] readBytes(DataInputStream in) throws IOException
+        {
+            int length = in.readInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] data = new byte[length];
+            in.readFully(data);
+            return data;
+        }
+
+        private static void writeItems(DataOutputStream out, List<Item> items) throws IOException
+        {
+            if (items == null) {
+                out.writeInt(-1);
+                return;
+            }
+            out.writeInt(items.size());
+            for (Item item : items) {
+                out.writeUTF(item.name);
+                out.writeBoolean(item.isChar);
+                writeBytes(out, item.data);
+            }
+        }
+
+        private static List<Item> readItems(DataInputStream in) throws IOException
+        {
+            int count = in.readInt();
+            if (count < 0) {
+                return null;
+            }
+            List<Item> items = new ArrayList<Item>(count);
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                boolean isChar = in.readBoolean();
+                items.add(new Item(name, isChar, readBytes(in)));
+            }
+            return items;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+*      File Name     : EciTokenCache.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : A cache of signed JWT tokens, keyed by issuer,
+*                      subject and signing key. Tokens are minted once and
+*                      re-signed on a background thread shortly before they
+*                      expire, so getting a token for a request is a map
+*                      lookup rather than a signature and JSON
+*                      serialization.
+*
+*                      Tokens that have not been asked for during a whole
+*                      token lifetime are dropped instead of refreshed.
+*/
+
+//package com.ibm.ctg.samples.eci;
+
+import java.io.*;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.auth0.jwt.exceptions.JWTCreationException;
+
+public class EciTokenCache
+{
+    private final long lifetimeMillis;
+    private final long refreshAheadMillis;
+
+    private final ConcurrentHashMap<Key, Entry> tokens = new ConcurrentHashMap<Key, Entry>();
+    private final ConcurrentHashMap<String, Algorithm> hmacAlgorithms = new ConcurrentHashMap<String, Algorithm>();
+    private final ScheduledExecutorService refresher;
+
+
+    /**
+     * @param lifetimeMillis        how long each token is valid for
+     * @param refreshAheadMillis    how long before expiry a token is
+     *                              replaced
+     */
+    public EciTokenCache(long lifetimeMillis, long refreshAheadMillis)
+    {
+        if (refreshAheadMillis >= lifetimeMillis) {
+            throw new IllegalArgumentException("Tokens must be refreshed before they expire");
+        }
+        this.lifetimeMillis = lifetimeMillis;
+        this.refreshAheadMillis = refreshAheadMillis;
+
+        refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "EciTokenCache-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Gets a token signed with HMAC256 using the given secret
+     *
+     * @param issuer    the iss claim
+     * @param subject   the sub claim
+     * @param secretKey the HMAC secret
+     * @return the token, or an empty string if it could not be created
+     */
+    public String getHMAC256Token(String issuer, String subject, String secretKey)
+    {
+        Algorithm algorithm = hmacAlgorithms.get(secretKey);
+        if (algorithm == null) {
+            try {
+                algorithm = Algorithm.HMAC256(secretKey);
+            } catch (IllegalArgumentException | UnsupportedEncodingException exception) {
+                System.out.println("Exception while creating JWT Token");
+                System.out.println(exception.getMessage());
+                return "";
+            }
+            Algorithm existing = hmacAlgorithms.putIfAbsent(secretKey, algorithm);
+            if (existing != null) {
+                algorithm = existing;
+            }
+        }
+        return getToken(issuer, subject, algorithm);
+    }
+
+    /**
+     * Gets a token signed with the given algorithm. Reuse the same Algorithm
+     * instance for each call, as it forms part of the cache key.
+     *
+     * @param issuer    the iss claim
+     * @param subject   the sub claim
+     * @param algorithm signs the token
+     * @return the token, or an empty string if it could not be created
+     */
+    public String getToken(String issuer, String subject, Algorithm algorithm)
+    {
+        long nowMillis = System.currentTimeMillis();
+        Key key = new Key(issuer, subject, algorithm);
+        Entry entry = tokens.get(key);
+
+        if (entry == null || entry.expiresAtMillis <= nowMillis) {
+            entry = tokens.compute(key, (k, current) -> {
+                if (current != null && current.expiresAtMillis > System.currentTimeMillis()) {
+                    return current;
+                }
+                Entry minted = mint(k);
+                if (minted != null) {
+                    scheduleRefresh(k, minted);
+                }
+                return minted;
+            });
+            if (entry == null) {
+                return "";
+            }
+        }
+        //Only record the use occasionally, to keep writes off the hot path
+        if (nowMillis - entry.lastUsedMillis > 1000) {
+            entry.lastUsedMillis = nowMillis;
+        }
+        return entry.token;
+    }
+
+    /**
+     * @return the number of tokens held
+     */
+    public int size()
+    {
+        return tokens.size();
+    }
+
+    /**
+     * Stops refreshing tokens and empties the cache
+     */
+    public void close()
+    {
+        refresher.shutdownNow();
+        tokens.clear();
+    }
+
+    private Entry mint(Key key)
+    {
+        long nowMillis = System.currentTimeMillis();
+        try {
+            String token = JWT.create()
+                              .withIssuer(key.issuer).withIssuedAt(new Date(nowMillis))
+                              .withSubject(key.subject)
+                              .withExpiresAt(new Date(nowMillis + lifetimeMillis))
+                              .sign(key.algorithm);
+            return new Entry(token, nowMillis + lifetimeMillis, nowMillis);
+        } catch (JWTCreationException | IllegalArgumentException exception) {
+            //Invalid Signing configuration / Couldn't convert Claims.
+            System.out.println("Exception while creating JWT Token");
+            System.out.println(exception.getMessage());
+            return null;
+        }
+    }
+
+    private void scheduleRefresh(Key key, Entry entry)
+    {
+        long delay = entry.expiresAtMillis - refreshAheadMillis - System.currentTimeMillis();
+        try {
+            refresher.schedule(() -> refresh(key, entry), Math.max(0, delay), TimeUnit.MILLISECONDS);
+        } catch (java.util.concurrent.RejectedExecutionException e) {
+            //The cache has been closed
+        }
+    }
+
+    /**
+     * Replaces a token that is about to expire, unless it has not been used
+     * for a whole lifetime
+     */
+    private void refresh(Key key, Entry old)
+    {
+        if (System.currentTimeMillis() - old.lastUsedMillis >= lifetimeMillis) {
+            tokens.remove(key, old);
+            return;
+        }
+        Entry minted = mint(key);
+        if (minted == null) {
+            //Keep the old token until it expires, and try again shortly
+            if (old.expiresAtMillis > System.currentTimeMillis()) {
+                refresher.schedule(() -> refresh(key, old), 1, TimeUnit.SECONDS);
+            }
+            return;
+        }
+        minted.lastUsedMillis = old.lastUsedMillis;
+        if (tokens.replace(key, old, minted)) {
+            scheduleRefresh(key, minted);
+        }
+    }
+
+
+    private static class Entry
+    {
+        final String  token;
+        final long    expiresAtMillis;
+        volatile long lastUsedMillis;
+
+        Entry(String token, long expiresAtMillis, long lastUsedMillis)
+        {
+            this.token = token;
+            this.expiresAtMillis = expiresAtMillis;
+            this.lastUsedMillis = lastUsedMillis;
+        }
+    }
+
+    private static class Key
+    {
+        final String    issuer;
+        final String    subject;
+        final Algorithm algorithm;
+
+        Key(String issuer, String subject, Algorithm algorithm)
+        {
+            this.issuer = issuer;
+            this.subject = subject;
+            this.algorithm = algorithm;
+        }
+
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return issuer.equals(key.issuer) && subject.equals(key.subject)
+                   && algorithm == key.algorithm;
+        }
+
+        public int hashCode()
+        {
+            return (issuer.hashCode() * 31 + subject.hashCode()) * 31
+                   + System.identityHashCode(algorithm);
+        }
+    }
+}
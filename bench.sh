@@ -0,0 +1,27 @@
+#!/bin/bash
+# Builds and runs the JMH benchmarks in bench/ecibench.
+#
+# JMH_HOME must be a directory holding the JMH jars (jmh-core,
+# jmh-generator-annprocess, jopt-simple and commons-math3), and CTG_CLASSES
+# the directory holding ctgclient.jar.
+#
+# Any arguments are passed on to JMH, for example:
+#   ./bench.sh CodepageBench -p codepage=EBCDIC
+#   ./bench.sh FlowBench -p jgate=tcp://mygateway -p server=CICSA
+#   ./bench.sh FlowBench -p jgate=stub://localhost   (with runStub.sh running)
+#   ./bench.sh AsyncFlowBench -p jgate=stub://localhost -p maxInFlight=256
+#   ./bench.sh -rf json -rff bench_result.json
+
+JMH_HOME=${JMH_HOME:-/opt/jmh}
+CTG_CLASSES=${CTG_CLASSES:-/opt/ibm/cicstg/classes}
+
+cd "$(dirname "$0")"
+
+JMH_CP=$(ls $JMH_HOME/*.jar | tr '\n' ':')
+CP=$CTG_CLASSES/ctgclient.jar:java-jwt-3.1.0.jar:commons-codec-1.13.jar:jackson-annotations-2.10.0.jar:jackson-core-2.10.0.jar:jackson-databind-2.10.0.jar
+
+rm -rf bench/classes
+mkdir -p bench/classes
+javac -cp "$CP:$JMH_CP" -d bench/classes *.java bench/ecibench/*.java || exit 1
+
+java -cp "bench/classes:$CP:$JMH_CP" org.openjdk.jmh.Main "$@"
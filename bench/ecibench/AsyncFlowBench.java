@@ -0,0 +1,112 @@
+/*
+*      File Name     : AsyncFlowBench.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : Measures many requests in flight at once over one
+*                      connection, flowed with EciAsyncClient, against the
+*                      one-at-a-time flows of FlowBench. Each invocation
+*                      submits a burst of requests and waits for every
+*                      reply, with at most maxInFlight awaiting a reply at
+*                      any time. Point it at a Gateway with -p jgate=...
+*                      -p jgateport=... or at the stand-in Gateway,
+*                      EciStubGateway, with -p jgate=stub://localhost
+*/
+
+package ecibench;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import com.ibm.ctg.client.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class AsyncFlowBench
+{
+    private static final int BURST = 500;
+
+    private static final MethodHandle PROCESS_ARGS =
+        Samples.method("EciB2", "processArgs", String[].class);
+    private static final MethodHandle BUILD_COMMAREA =
+        Samples.method("EciB2", "buildCommarea");
+    private static final MethodHandle NEW_REQUEST =
+        Samples.method("EciB2", "newRequest", byte[].class);
+    private static final MethodHandle OPEN_CONNECTION =
+        Samples.method("EciB2", "openConnection");
+    private static final MethodHandle NEW_CLIENT =
+        Samples.constructor("EciAsyncClient", classOf("EciConnection"), int.class);
+    private static final MethodHandle SUBMIT =
+        Samples.method("EciAsyncClient", "submit", ECIRequest.class);
+    private static final MethodHandle CLOSE =
+        Samples.method("EciConnection", "close");
+
+    @Param("tcp://localhost")
+    String jgate;
+
+    @Param("2006")
+    String jgateport;
+
+    @Param("CICSA")
+    String server;
+
+    @Param("EC01")
+    String program;
+
+    @Param("70")
+    String commareaLength;
+
+    @Param({"1", "16", "256"})
+    int maxInFlight;
+
+    private Object eciB2;
+    private Object connection;
+    private Object client;
+    private byte[] commarea;
+    private final CompletableFuture<?>[] futures = new CompletableFuture<?>[BURST];
+
+    @Setup
+    public void setup() throws Throwable
+    {
+        eciB2 = Samples.create("EciB2");
+        PROCESS_ARGS.invoke(eciB2, new String[] {
+            "jgate=" + jgate, "jgateport=" + jgateport, "server=" + server,
+            "prog0=" + program, "COMMAREAlength=" + commareaLength, "verbosity=quiet" });
+        commarea = (byte[]) BUILD_COMMAREA.invoke(eciB2);
+        connection = OPEN_CONNECTION.invoke(eciB2);
+        client = NEW_CLIENT.invoke(connection, maxInFlight);
+    }
+
+    @TearDown
+    public void tearDown() throws Throwable
+    {
+        CLOSE.invoke(connection);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public int flowBurst() throws Throwable
+    {
+        for (int i = 0; i < BURST; i++) {
+            ECIRequest eciRequest = (ECIRequest) NEW_REQUEST.invoke(eciB2, commarea.clone());
+            futures[i] = (CompletableFuture<?>) SUBMIT.invoke(client, eciRequest);
+        }
+        //Throws if any request failed or timed out, so failures are not measured as replies
+        CompletableFuture.allOf(futures).join();
+        return BURST;
+    }
+
+    private static Class<?> classOf(String className)
+    {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
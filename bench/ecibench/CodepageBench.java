@@ -0,0 +1,119 @@
+/*
+*      File Name     : CodepageBench.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : Measures COMMAREA code page conversion. EciB2 encodes
+*                      the input COMMAREA with EciB2.getBytes and decodes
+*                      the reply for display, both through EciCodec. The
+*                      codec is measured writing into preallocated arrays
+*                      and a CharBuffer, and against the JDK path of
+*                      String.getBytes and new String with a code page
+*                      name, which EciB2 used before.
+*/
+
+package ecibench;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodepageBench
+{
+    private static final MethodHandle PROCESS_ARGS =
+        Samples.method("EciB2", "processArgs", String[].class);
+    private static final MethodHandle GET_BYTES =
+        Samples.method("EciB2", "getBytes", String.class);
+    private static final MethodHandle FOR_NAME =
+        Samples.method("EciCodec", "forName", String.class);
+    private static final MethodHandle ENCODE =
+        Samples.method("EciCodec", "encode", CharSequence.class, int.class, int.class, byte[].class, int.class);
+    private static final MethodHandle DECODE =
+        Samples.method("EciCodec", "decode", byte[].class, int.class, int.class, char[].class, int.class);
+    private static final MethodHandle DECODE_BUFFER =
+        Samples.method("EciCodec", "decode", byte[].class, int.class, int.class, CharBuffer.class);
+
+    //EciB2 command line option for the code page
+    @Param({"ASCII", "EBCDIC", "IBM1047"})
+    String codepage;
+
+    @Param({"70", "32000"})
+    int length;
+
+    private Object eciB2;
+    private Object codec;
+    private String charsetName;
+    private String text;
+    private byte[] commarea;
+    private byte[] encoded;
+    private char[] decoded;
+    private CharBuffer decodedBuffer;
+
+    @Setup
+    public void setup() throws Throwable
+    {
+        eciB2 = Samples.create("EciB2");
+        PROCESS_ARGS.invoke(eciB2, new String[] { "jgate=local:", codepage });
+        charsetName = codepage.equals("EBCDIC") ? "IBM037" : codepage;
+        codec = FOR_NAME.invoke(charsetName);
+
+        char[] chars = new char[length];
+        Arrays.fill(chars, 'A');
+        for (int i = 0; i < length; i += 10) {
+            chars[i] = (char) ('0' + (i / 10) % 10);
+        }
+        text = new String(chars);
+        commarea = text.getBytes(charsetName);
+        encoded = new byte[length];
+        decoded = new char[length];
+        decodedBuffer = CharBuffer.allocate(length);
+    }
+
+    @Benchmark
+    public byte[] encodeGetBytes() throws Throwable
+    {
+        return (byte[]) GET_BYTES.invoke(eciB2, text);
+    }
+
+    @Benchmark
+    public byte[] encodeJdk() throws Exception
+    {
+        return text.getBytes(charsetName);
+    }
+
+    @Benchmark
+    public byte[] encodeCodec() throws Throwable
+    {
+        ENCODE.invoke(codec, (CharSequence) text, 0, length, encoded, 0);
+        return encoded;
+    }
+
+    @Benchmark
+    public String decodeNewString() throws Exception
+    {
+        return new String(commarea, charsetName);
+    }
+
+    @Benchmark
+    public char[] decodeCodec() throws Throwable
+    {
+        DECODE.invoke(codec, commarea, 0, length, decoded, 0);
+        return decoded;
+    }
+
+    @Benchmark
+    public CharBuffer decodeCodecCharBuffer() throws Throwable
+    {
+        decodedBuffer.clear();
+        DECODE_BUFFER.invoke(codec, commarea, 0, length, decodedBuffer);
+        return decodedBuffer;
+    }
+}
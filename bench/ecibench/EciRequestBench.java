@@ -0,0 +1,61 @@
+/*
+*      File Name     : EciRequestBench.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : Measures the cost of building an ECIRequest, both
+*                      through EciB2.newRequest as the load driver does and
+*                      with the extended ECIRequest constructor used by
+*                      EciB1 and EciB3.
+*/
+
+package ecibench;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import com.ibm.ctg.client.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EciRequestBench
+{
+    private static final MethodHandle NEW_REQUEST =
+        Samples.method("EciB2", "newRequest", byte[].class);
+    private static final MethodHandle PROCESS_ARGS =
+        Samples.method("EciB2", "processArgs", String[].class);
+
+    @Param({"70", "32000"})
+    int commareaLength;
+
+    private Object eciB2;
+    private byte[] commarea;
+
+    @Setup
+    public void setup() throws Throwable
+    {
+        eciB2 = Samples.create("EciB2");
+        PROCESS_ARGS.invoke(eciB2, new String[] {
+            "jgate=local:", "server=CICSA", "prog0=EC01", "COMMAREAlength=" + commareaLength });
+        commarea = new byte[commareaLength];
+    }
+
+    @Benchmark
+    public Object sampleNewRequest() throws Throwable
+    {
+        return (ECIRequest) NEW_REQUEST.invoke(eciB2, commarea.clone());
+    }
+
+    @Benchmark
+    public ECIRequest extendedConstructor()
+    {
+        byte[] abCommarea = new byte[commareaLength];
+        System.arraycopy(commarea, 0, abCommarea, 0, commareaLength);
+        return new ECIRequest(ECIRequest.ECI_SYNC, "CICSA", null, null, "EC01", null,
+                              abCommarea, commareaLength, ECIRequest.ECI_NO_EXTEND, 0);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+*      File Name     : FlowBench.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : Measures a full EciB2 program sequence - building
+*                      the request, flowing it and reading the reply - over
+*                      a connection opened by EciB2.openConnection. Point
+*                      it at a Gateway with -p jgate=... -p jgateport=...
+*                      or at the stand-in Gateway, EciStubGateway, with
+*                      -p jgate=stub://localhost
+*/
+
+package ecibench;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import com.ibm.ctg.client.*;
+
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FlowBench
+{
+    private static final MethodHandle PROCESS_ARGS =
+        Samples.method("EciB2", "processArgs", String[].class);
+    private static final MethodHandle BUILD_COMMAREA =
+        Samples.method("EciB2", "buildCommarea");
+    private static final MethodHandle NEW_REQUEST =
+        Samples.method("EciB2", "newRequest", byte[].class);
+    private static final MethodHandle OPEN_CONNECTION =
+        Samples.method("EciB2", "openConnection");
+    private static final MethodHandle CALL_PROGRAMS =
+        Samples.method("EciB2", "callPrograms", classOf("EciFlow"), ECIRequest.class);
+    private static final MethodHandle CLOSE =
+        Samples.method("EciConnection", "close");
+
+    @Param("tcp://localhost")
+    String jgate;
+
+    @Param("2006")
+    String jgateport;
+
+    @Param("CICSA")
+    String server;
+
+    @Param("EC01")
+    String program;
+
+    @Param("70")
+    String commareaLength;
+
+    private Object eciB2;
+    private Object connection;
+    private byte[] commarea;
+
+    @Setup
+    public void setup() throws Throwable
+    {
+        eciB2 = Samples.create("EciB2");
+        PROCESS_ARGS.invoke(eciB2, new String[] {
+            "jgate=" + jgate, "jgateport=" + jgateport, "server=" + server,
+            "prog0=" + program, "COMMAREAlength=" + commareaLength, "verbosity=quiet" });
+        commarea = (byte[]) BUILD_COMMAREA.invoke(eciB2);
+        connection = OPEN_CONNECTION.invoke(eciB2);
+    }
+
+    @TearDown
+    public void tearDown() throws Throwable
+    {
+        CLOSE.invoke(connection);
+    }
+
+    @Benchmark
+    public int flow() throws Throwable
+    {
+        ECIRequest eciRequest = (ECIRequest) NEW_REQUEST.invoke(eciB2, commarea.clone());
+        CALL_PROGRAMS.invoke(eciB2, connection, eciRequest);
+        return eciRequest.getRc();
+    }
+
+    private static Class<?> classOf(String className)
+    {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
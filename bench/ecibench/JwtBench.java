@@ -0,0 +1,63 @@
+/*
+*      File Name     : JwtBench.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : Measures the cost of minting a JWT with
+*                      EciJWT.create_JWTHMAC256 against getting one from
+*                      the token cache with EciJWT.getJWTHMAC256, which is
+*                      what EciJWT does before every flow. Standard output
+*                      is discarded while the benchmark runs, so the
+*                      console does not dominate the result.
+*/
+
+package ecibench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JwtBench
+{
+    private static final MethodHandle CREATE_HMAC256 =
+        Samples.method("EciJWT", "create_JWTHMAC256", String.class, String.class, String.class);
+    private static final MethodHandle GET_HMAC256 =
+        Samples.method("EciJWT", "getJWTHMAC256", String.class, String.class, String.class);
+
+    private Object eciJWT;
+    private PrintStream stdout;
+
+    @Setup
+    public void setup()
+    {
+        eciJWT = Samples.create("EciJWT");
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public String createHMAC256() throws Throwable
+    {
+        return (String) CREATE_HMAC256.invoke(eciJWT, "IBM", "CTGUSER1", "secret");
+    }
+
+    @Benchmark
+    public String cachedHMAC256() throws Throwable
+    {
+        return (String) GET_HMAC256.invoke(eciJWT, "IBM", "CTGUSER1", "secret");
+    }
+}
@@ -0,0 +1,117 @@
+/*
+*      File Name     : JwtSigningBench.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : Compares the cost of minting a JWT signed with
+*                      HS256, RS256 and ES256. The RS256 and ES256 tokens
+*                      are signed both with EciJwtSigner, which keeps a
+*                      Signature per thread, and with the java-jwt
+*                      algorithms, which create one for every token.
+*
+*                      The RS256 key is read from serverkey.jks. That
+*                      keystore holds no EC key, so the ES256 benchmarks
+*                      sign with a P-256 key pair generated at setup.
+*/
+
+package ecibench;
+
+import java.lang.invoke.MethodHandle;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JwtSigningBench
+{
+    private static final MethodHandle FROM_KEYSTORE =
+        Samples.method("EciJwtSigner", "fromKeyStore", String.class, String.class, String.class, String.class);
+    private static final MethodHandle ES256 =
+        Samples.method("EciJwtSigner", "ES256", PrivateKey.class, PublicKey.class);
+
+    @Param({"serverkey.jks"})
+    public String keystore;
+
+    @Param({"password"})
+    public String storepass;
+
+    private Algorithm hs256;
+    private Algorithm rs256;
+    private Algorithm rs256Library;
+    private Algorithm es256;
+    private Algorithm es256Library;
+
+    @Setup
+    public void setup() throws Throwable
+    {
+        hs256 = Algorithm.HMAC256("secret");
+
+        rs256 = (Algorithm) FROM_KEYSTORE.invoke(keystore, storepass, (String) null, (String) null);
+        java.security.KeyStore keyStore = java.security.KeyStore.getInstance("JKS");
+        try (java.io.InputStream in = new java.io.FileInputStream(keystore)) {
+            keyStore.load(in, storepass.toCharArray());
+        }
+        String alias = keyStore.aliases().nextElement();
+        rs256Library = Algorithm.RSA256((RSAPrivateKey) keyStore.getKey(alias, storepass.toCharArray()));
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair keyPair = generator.generateKeyPair();
+        es256 = (Algorithm) ES256.invoke(keyPair.getPrivate(), keyPair.getPublic());
+        es256Library = Algorithm.ECDSA256((ECPrivateKey) keyPair.getPrivate());
+    }
+
+    private static String mint(Algorithm algorithm)
+    {
+        long nowMillis = System.currentTimeMillis();
+        return JWT.create()
+                  .withIssuer("IBM").withIssuedAt(new Date(nowMillis))
+                  .withSubject("CTGUSER1")
+                  .withExpiresAt(new Date(nowMillis + 24*60*60*1000L))
+                  .sign(algorithm);
+    }
+
+    @Benchmark
+    public String mintHS256()
+    {
+        return mint(hs256);
+    }
+
+    @Benchmark
+    public String mintRS256()
+    {
+        return mint(rs256);
+    }
+
+    @Benchmark
+    public String mintRS256Library()
+    {
+        return mint(rs256Library);
+    }
+
+    @Benchmark
+    public String mintES256()
+    {
+        return mint(es256);
+    }
+
+    @Benchmark
+    public String mintES256Library()
+    {
+        return mint(es256Library);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+*      File Name     : RecordBench.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : Measures reading and writing the fields of an EC01
+*                      reply. The String path decodes the COMMAREA to a
+*                      String, as EciB2 does for display, then parses each
+*                      field from a substring. The layout path reads and
+*                      writes the fields in place through Ec01Commarea,
+*                      generated by EciCopybook from ec01.cpy, and so
+*                      allocates nothing.
+*/
+
+package ecibench;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordBench
+{
+    private static final MethodHandle FOR_NAME =
+        Samples.method("EciCodec", "forName", String.class);
+    private static final MethodHandle DECODE =
+        Samples.method("EciCodec", "decode", byte[].class);
+    private static final MethodHandle WRAP =
+        Samples.method("Ec01Commarea", "wrap", byte[].class);
+    private static final MethodHandle GET_DAY = Samples.method("Ec01Commarea", "getEc01Day");
+    private static final MethodHandle GET_MONTH = Samples.method("Ec01Commarea", "getEc01Month");
+    private static final MethodHandle GET_YEAR = Samples.method("Ec01Commarea", "getEc01Year");
+    private static final MethodHandle GET_HOURS = Samples.method("Ec01Commarea", "getEc01Hours");
+    private static final MethodHandle GET_MINUTES = Samples.method("Ec01Commarea", "getEc01Minutes");
+    private static final MethodHandle GET_SECONDS = Samples.method("Ec01Commarea", "getEc01Seconds");
+    private static final MethodHandle SET_DAY = Samples.method("Ec01Commarea", "setEc01Day", long.class);
+    private static final MethodHandle SET_HOURS = Samples.method("Ec01Commarea", "setEc01Hours", long.class);
+    private static final MethodHandle SET_SECONDS = Samples.method("Ec01Commarea", "setEc01Seconds", long.class);
+
+    @Param({"ASCII", "IBM037"})
+    String codepage;
+
+    private Object codec;
+    private Object layout;
+    private byte[] commarea;
+
+    @Setup
+    public void setup() throws Throwable
+    {
+        codec = FOR_NAME.invoke(codepage);
+        layout = Samples.create("Ec01Commarea", "EciCodec", codec);
+        commarea = "17/10/26 09:05:42".getBytes(codepage);
+    }
+
+    @Benchmark
+    public long readString() throws Throwable
+    {
+        String reply = (String) DECODE.invoke(codec, commarea);
+        return Integer.parseInt(reply.substring(0, 2)) + Integer.parseInt(reply.substring(3, 5))
+               + Integer.parseInt(reply.substring(6, 8)) + Integer.parseInt(reply.substring(9, 11))
+               + Integer.parseInt(reply.substring(12, 14)) + Integer.parseInt(reply.substring(15, 17));
+    }
+
+    @Benchmark
+    public long readLayout() throws Throwable
+    {
+        Object record = WRAP.invoke(layout, commarea);
+        return (long) GET_DAY.invoke(record) + (long) GET_MONTH.invoke(record)
+               + (long) GET_YEAR.invoke(record) + (long) GET_HOURS.invoke(record)
+               + (long) GET_MINUTES.invoke(record) + (long) GET_SECONDS.invoke(record);
+    }
+
+    @Benchmark
+    public byte[] writeLayout() throws Throwable
+    {
+        Object record = WRAP.invoke(layout, commarea);
+        SET_DAY.invoke(record, 17L);
+        SET_HOURS.invoke(record, 9L);
+        SET_SECONDS.invoke(record, 42L);
+        return commarea;
+    }
+}
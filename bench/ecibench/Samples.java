@@ -0,0 +1,118 @@
+/*
+*      File Name     : Samples.java
+*
+*      Product       : CICS Transaction Gateway
+*
+*      Description   : Gives the benchmarks access to the samples. The
+*                      samples are in the default package, which JMH
+*                      benchmarks cannot import, so their methods are
+*                      looked up by name and called through method handles.
+*                      Holding the handles in static final fields lets the
+*                      JIT inline the calls.
+*/
+
+package ecibench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+final class Samples
+{
+    private Samples()
+    {
+    }
+
+    /**
+     * Looks up a method of a sample class, including non-public methods
+     *
+     * @param className     the sample class, such as EciB2
+     * @param methodName    the method to look up
+     * @param parameterTypes the parameter types of the method
+     */
+    static MethodHandle method(String className, String methodName, Class<?>... parameterTypes)
+    {
+        try {
+            Method method = Class.forName(className).getDeclaredMethod(methodName, parameterTypes);
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot find " + className + "." + methodName, e);
+        }
+    }
+
+    /**
+     * Creates an instance of a sample class using its no-argument
+     * constructor
+     *
+     * @param className     the sample class, such as EciB2
+     */
+    static Object create(String className)
+    {
+        try {
+            Constructor<?> constructor = Class.forName(className).getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return constructor.newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create " + className, e);
+        }
+    }
+
+    /**
+     * Creates an instance of a sample class using a constructor taking one
+     * argument of another sample class
+     *
+     * @param className     the sample class, such as Ec01Commarea
+     * @param argumentClass the class of the constructor's parameter
+     * @param argument      the argument to pass
+     */
+    static Object create(String className, String argumentClass, Object argument)
+    {
+        try {
+            Constructor<?> constructor = Class.forName(className)
+                                              .getDeclaredConstructor(Class.forName(argumentClass));
+            constructor.setAccessible(true);
+            return constructor.newInstance(argument);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create " + className, e);
+        }
+    }
+
+    /**
+     * Looks up a constructor of a sample class, including non-public
+     * constructors
+     *
+     * @param className     the sample class, such as EciAsyncClient
+     * @param parameterTypes the parameter types of the constructor
+     */
+    static MethodHandle constructor(String className, Class<?>... parameterTypes)
+    {
+        try {
+            Constructor<?> constructor = Class.forName(className).getDeclaredConstructor(parameterTypes);
+            constructor.setAccessible(true);
+            return MethodHandles.lookup().unreflectConstructor(constructor);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot find a constructor of " + className, e);
+        }
+    }
+
+    /**
+     * Sets a field of a sample, including non-public fields
+     *
+     * @param sample        the sample instance
+     * @param fieldName     the field to set
+     * @param value         the new value of the field
+     */
+    static void set(Object sample, String fieldName, Object value)
+    {
+        try {
+            Field field = sample.getClass().getDeclaredField(fieldName);
+            field.setAccessible(true);
+            field.set(sample, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot set " + fieldName, e);
+        }
+    }
+}
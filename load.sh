@@ -1,9 +1,14 @@
-export CLASSPATH=/opt/ibm/cicstg/classes/ctgclient.jar:/opt/ibm/cicstg/classes/ctgserver.jar:/opt/ibm/cicstg/classes/ctgsamples.jar
+export CLASSPATH=/work/:/opt/ibm/cicstg/classes/ctgclient.jar:/opt/ibm/cicstg/classes/ctgserver.jar:/opt/ibm/cicstg/classes/ctgsamples.jar
 
-i=0;
-while [ 1 ]
-do
-i=`expr $i + 1`
-echo $i > res.log	
-java  com.ibm.ctg.samples.eci.EciB2 jgate=ctg-a-galasa.hursley.ibm.com jgateport=2006 server=IPCIN55 prog0=EC01 COMMAREAlength=70
-done
+# Run EciB2 in load driver mode: one JVM and one Gateway connection for the
+# whole run, reporting calls/sec and latency percentiles at the end.
+# Set RATE (for example RATE=2000/s) for an open loop run at a fixed rate,
+# with THREADS enough to cover the rate times the response time.
+# The samples are built from the sources next to this script into /work/
+# first, so the run always uses the current load driver.
+(cd "$(dirname "$0")" && javac -sourcepath . -d /work/ EciB2.java) || exit 1
+
+DURATION=${DURATION:-60s}
+THREADS=${THREADS:-1}
+
+java EciB2 jgate=ctg-a-galasa.hursley.ibm.com jgateport=2006 server=IPCIN55 prog0=EC01 COMMAREAlength=70 duration=$DURATION threads=$THREADS ${RATE:+rate=$RATE} | tee res.log
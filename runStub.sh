@@ -0,0 +1,7 @@
+#!/bin/bash
+# Starts the stand-in Gateway on port 2006 for local load and benchmark runs.
+# Point clients at it with jgate=stub://localhost, for example:
+#   java EciB2 jgate=stub://localhost server=CICSA prog0=EC01 COMMAREAlength=70 duration=60s threads=16
+export CLASSPATH=/work/:/work/ctgclient.jar
+
+java EciStubGateway "$@"